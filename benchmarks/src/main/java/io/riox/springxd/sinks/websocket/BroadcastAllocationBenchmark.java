@@ -0,0 +1,77 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encoding a message once per subscriber, as the sink used to, with encoding it once and
+ * sharing the frame through retained duplicates, as {@link NettyWebSocketBroadcaster} does. Run with
+ * <code>-prof gc</code>: <code>gc.alloc.rate.norm</code> is the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastAllocationBenchmark {
+
+	@Param({ "256" })
+	int payloadSize;
+
+	@Param({ "1", "10", "100", "1000", "10000" })
+	int subscribers;
+
+	List<Channel> channels;
+
+	NettyWebSocketBroadcaster broadcaster;
+
+	String payload;
+
+	@Setup
+	public void setup() {
+		channels = new ArrayList<Channel>(subscribers);
+		for (int i = 0; i < subscribers; i++) {
+			channels.add(new EmbeddedChannel(new OutboundHandlerBenchmark.DiscardingHandler()));
+		}
+		broadcaster = new NettyWebSocketBroadcaster();
+		payload = OutboundHandlerBenchmark.payload(payloadSize);
+	}
+
+	@Benchmark
+	public void perSubscriber() {
+		for (Channel channel : channels) {
+			channel.writeAndFlush(new TextWebSocketFrame(payload));
+		}
+	}
+
+	@Benchmark
+	public void shared() {
+		broadcaster.broadcast(broadcaster.encode(payload), channels);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Channel channel : channels) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures connection setup: every operation connects to a {@link NettyWebSocketServer} over loopback,
+ * sends an upgrade request for a bound path, waits for the <code>101</code> response and closes the
+ * connection. The benchmark threads act as the load generator of a reconnect storm, so the score is
+ * handshakes/s; compare it across revisions to see the effect of changes to the accept path.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(8)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	static final String PATH = "/handshake";
+
+	static final int END_OF_HEADERS = ('\r' << 24) | ('\n' << 16) | ('\r' << 8) | '\n';
+
+	NettyWebSocketServer server;
+
+	int port;
+
+	byte[] request;
+
+	@Setup
+	public void setup() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new NettyWebSocketServer(port);
+		server.setBacklog(4096);
+		server.run();
+		NettyWebSocketSubscriptionRegistry.bind(PATH);
+		request = ("GET " + PATH + " HTTP/1.1\r\n"
+				+ "Host: localhost:" + port + "\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n"
+				+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void handshake() throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.setTcpNoDelay(true);
+			// close with a reset, so that the load generator does not run out of ports in TIME_WAIT
+			socket.setSoLinger(true, 0);
+			socket.connect(new InetSocketAddress("localhost", port));
+			OutputStream out = socket.getOutputStream();
+			out.write(request);
+			out.flush();
+			awaitUpgrade(socket.getInputStream());
+		}
+	}
+
+	/**
+	 * Reads the response headers, failing unless they switch protocols.
+	 */
+	static void awaitUpgrade(InputStream in) throws IOException {
+		StringBuilder status = new StringBuilder();
+		// the last four bytes read, until they are the blank line ending the headers
+		int last = 0;
+		int b;
+		while (last != END_OF_HEADERS && (b = in.read()) != -1) {
+			if (status.length() < 12) {
+				status.append((char) b);
+			}
+			last = (last << 8) | b;
+		}
+		if (last != END_OF_HEADERS || !status.toString().startsWith("HTTP/1.1 101")) {
+			throw new IOException("Handshake failed: " + status);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		NettyWebSocketSubscriptionRegistry.unbind(NettyWebSocketSubscriptionRegistry.lookup(PATH));
+		server.shutdown();
+	}
+}
@@ -0,0 +1,133 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Broadcasts messages through {@link NettyWebSocketOutboundMessageHandler} to subscribers
+ * backed by {@link EmbeddedChannel}s, which discard the written frames. This measures the
+ * cost of encoding and fanning out a message without any network I/O.
+ * <p>
+ * In POOL mode a message is handed to a {@link NettyWebSocketDispatcher} as the sink does,
+ * so the numbers include the hand-off to the dispatch pool.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class OutboundHandlerBenchmark {
+
+	@Param({ "64", "1024", "16384" })
+	int payloadSize;
+
+	@Param({ "1", "100", "1000" })
+	int subscribers;
+
+	@Param({ "DIRECT", "POOL" })
+	NettyWebSocketDispatcher.Mode dispatchMode;
+
+	NettyWebSocketPathGroup group;
+
+	NettyWebSocketDispatcher dispatcher;
+
+	Runnable send;
+
+	@Setup
+	public void setup() {
+		group = new NettyWebSocketPathGroup("/benchmark", SlowConsumerPolicy.DROP_OLDEST,
+				NettyWebsocketSinkOptions.DEFAULT_SLOW_CONSUMER_QUEUE_SIZE);
+		for (int i = 0; i < subscribers; i++) {
+			group.add(new EmbeddedChannel(new DiscardingHandler()));
+		}
+		final NettyWebSocketOutboundMessageHandler handler = new NettyWebSocketOutboundMessageHandler(group);
+		final Message<String> message = new GenericMessage<String>(payload(payloadSize));
+		send = new Runnable() {
+			public void run() {
+				handler.handleMessage(message);
+			}
+		};
+		if (dispatchMode == NettyWebSocketDispatcher.Mode.POOL) {
+			dispatcher = new NettyWebSocketDispatcher("/benchmark", NettyWebSocketDispatcher.sharedPool(0),
+					NettyWebsocketSinkOptions.DEFAULT_DISPATCH_QUEUE_SIZE,
+					NettyWebSocketDispatcher.RejectionPolicy.BLOCK, 10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void throughput() {
+		broadcast();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void latency() {
+		broadcast();
+	}
+
+	void broadcast() {
+		if (dispatcher == null) {
+			send.run();
+		} else {
+			dispatcher.execute(send);
+		}
+	}
+
+	/**
+	 * Lets the dispatch pool catch up, so that an iteration does not inherit the backlog of the previous one.
+	 */
+	@TearDown(Level.Iteration)
+	public void awaitDispatch() {
+		while (dispatcher != null && (dispatcher.getQueueDepth() > 0 || dispatcher.draining.get())) {
+			Thread.yield();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		group.close();
+	}
+
+	static String payload(int size) {
+		StringBuilder sb = new StringBuilder(size + 8);
+		while (sb.length() < size) {
+			sb.append("{\"v\":42}");
+		}
+		return sb.substring(0, size);
+	}
+
+	/**
+	 * Releases written frames at the head of the pipeline, as a socket would after writing them.
+	 */
+	static final class DiscardingHandler extends ChannelOutboundHandlerAdapter {
+
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+			ReferenceCountUtil.release(msg);
+			promise.setSuccess();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures TLS connection setup like {@link HandshakeBenchmark}: every operation connects over
+ * loopback, does the TLS handshake and the websocket upgrade, and closes the connection. Sweeps the
+ * TLS engine of the server, and whether clients resume their session or do a full handshake each time.
+ * The OPENSSL runs need netty-tcnative on the classpath.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(8)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+
+	static final String PATH = "/tls-handshake";
+
+	@Param({ "JDK", "OPENSSL" })
+	NettyWebSocketSsl.Provider provider;
+
+	@Param({ "false", "true" })
+	boolean resume;
+
+	NettyWebSocketServer server;
+
+	int port;
+
+	byte[] request;
+
+	SSLSocketFactory socketFactory;
+
+	@Setup
+	public void setup() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		NettyWebSocketSsl ssl = new NettyWebSocketSsl();
+		ssl.setProvider(provider);
+		server = new NettyWebSocketServer(port);
+		server.setBacklog(4096);
+		server.setSsl(ssl);
+		server.run();
+		NettyWebSocketSubscriptionRegistry.bind(PATH);
+		request = ("GET " + PATH + " HTTP/1.1\r\n"
+				+ "Host: localhost:" + port + "\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n"
+				+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+		// the server uses a self signed certificate
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, new SecureRandom());
+		socketFactory = context.getSocketFactory();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void handshake() throws IOException {
+		Socket plain = new Socket();
+		plain.setTcpNoDelay(true);
+		plain.setSoLinger(true, 0);
+		plain.connect(new InetSocketAddress("localhost", port));
+		try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(plain, "localhost", port, true)) {
+			socket.startHandshake();
+			OutputStream out = socket.getOutputStream();
+			out.write(request);
+			out.flush();
+			HandshakeBenchmark.awaitUpgrade(socket.getInputStream());
+			if (!resume) {
+				socket.getSession().invalidate();
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		NettyWebSocketSubscriptionRegistry.unbind(NettyWebSocketSubscriptionRegistry.lookup(PATH));
+		server.shutdown();
+	}
+}
@@ -0,0 +1,153 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Sends messages into the input channel of a {@link WebsocketSink} running in its own application
+ * context, with subscribers connected over loopback.
+ * <p>
+ * The throughput benchmark keeps at most {@link #WINDOW} messages per subscriber in flight, so it
+ * measures messages delivered rather than messages dropped by the slow consumer policy. The latency
+ * benchmark sends one message at a time and waits until every subscriber received it.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WebsocketSinkFlowBenchmark {
+
+	static final int WINDOW = 256;
+
+	static final long DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	@Param({ "64", "1024", "16384" })
+	int payloadSize;
+
+	@Param({ "1", "10", "100" })
+	int subscribers;
+
+	@Param({ "DIRECT", "POOL" })
+	NettyWebSocketDispatcher.Mode dispatchMode;
+
+	AnnotationConfigApplicationContext context;
+
+	MessageChannel input;
+
+	Message<String> message;
+
+	final List<WebSocketClient> clients = new ArrayList<WebSocketClient>();
+
+	final AtomicLong received = new AtomicLong();
+
+	long sent;
+
+	@Setup
+	public void setup() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		Properties props = new Properties();
+		props.put("port", port);
+		props.put("path", "/benchmark");
+		props.put("ssl", false);
+		props.put("dispatchMode", dispatchMode.name());
+		PropertySourcesPlaceholderConfigurer configurer = new PropertySourcesPlaceholderConfigurer();
+		configurer.setProperties(props);
+
+		context = new AnnotationConfigApplicationContext();
+		context.addBeanFactoryPostProcessor(configurer);
+		context.register(WebsocketSink.class);
+		context.refresh();
+		input = context.getBean("input", MessageChannel.class);
+		message = new GenericMessage<String>(OutboundHandlerBenchmark.payload(payloadSize));
+
+		URI uri = new URI("ws://localhost:" + port + "/benchmark");
+		for (int i = 0; i < subscribers; i++) {
+			WebSocketClient client = new WebSocketClient(uri) {
+				public void onMessage(String msg) {
+					received.incrementAndGet();
+				}
+				public void onOpen(ServerHandshake handshake) {}
+				public void onClose(int code, String reason, boolean remote) {}
+				public void onError(Exception e) {}
+			};
+			if (!client.connectBlocking()) {
+				throw new IllegalStateException("Cannot connect subscriber to " + uri);
+			}
+			clients.add(client);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void throughput() {
+		input.send(message);
+		sent++;
+		awaitDelivery(sent - WINDOW);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void latency() {
+		input.send(message);
+		sent++;
+		awaitDelivery(sent);
+	}
+
+	/**
+	 * Waits until each subscriber received the given number of messages on average, giving up after
+	 * a timeout as messages may have been dropped.
+	 */
+	void awaitDelivery(long messages) {
+		long expected = messages * subscribers;
+		if (received.get() >= expected) {
+			return;
+		}
+		long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+		while (received.get() < expected) {
+			if (System.nanoTime() - deadline > 0) {
+				// resynchronize, otherwise every following message waits for the lost ones
+				sent = received.get() / subscribers;
+				return;
+			}
+			Thread.yield();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		for (WebSocketClient client : clients) {
+			client.closeBlocking();
+		}
+		context.close();
+	}
+}
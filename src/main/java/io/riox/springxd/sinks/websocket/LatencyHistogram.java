@@ -0,0 +1,128 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in microseconds, bucketed as HdrHistogram does: each power of two
+ * is split into {@link #SUB_BUCKETS} linear sub-buckets, so a bucket is at most 1/16 as wide as the
+ * values it holds, and durations below 32 microseconds are counted exactly.
+ * <p>
+ * Recording a value does not allocate, so it can be done on the I/O threads for every write;
+ * percentiles are computed when they are read and are accurate to about 6%.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	static final int SUB_BUCKET_BITS = 4;
+
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** durations of this many microseconds or more are counted in the last bucket */
+	static final long MAX_MICROS = 1L << 40;
+
+	static final int BUCKETS = bucket(MAX_MICROS - 1) + 1;
+
+	final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	final AtomicLong count = new AtomicLong();
+
+	final AtomicLong totalNanos = new AtomicLong();
+
+	final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		buckets.incrementAndGet(bucket(Math.min(micros, MAX_MICROS - 1)));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return the bucket of the given duration: the duration itself below 2 * {@link #SUB_BUCKETS}, and
+	 * otherwise the sub-bucket of its power of two, taken from the bits below its highest bit
+	 */
+	static int bucket(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (micros >>> shift);
+	}
+
+	/**
+	 * @return the highest duration counted in the given bucket
+	 */
+	static long highestMicros(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public long getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / n);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest duration in microseconds of the bucket holding the given percentile, at most
+	 * the max, or 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestMicros(i), getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	@Override
+	public long getP50Micros() {
+		return getPercentileMicros(50);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return getPercentileMicros(99);
+	}
+
+	@Override
+	public long getP999Micros() {
+		return getPercentileMicros(99.9);
+	}
+}
@@ -0,0 +1,19 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of a {@link LatencyHistogram}.
+ */
+public interface LatencyHistogramMBean {
+
+	long getCount();
+
+	long getMeanMicros();
+
+	long getMaxMicros();
+
+	long getP50Micros();
+
+	long getP99Micros();
+
+	long getP999Micros();
+}
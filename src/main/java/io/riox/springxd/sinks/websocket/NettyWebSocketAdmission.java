@@ -0,0 +1,243 @@
+package io.riox.springxd.sinks.websocket;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpResponseStatus.TEMPORARY_REDIRECT;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a server accepts a websocket handshake, before the connection is upgraded.
+ * <p>
+ * Handshakes are refused while the server holds its max connections, the path holds the max subscribers
+ * set in the {@link NettyWebSocketSubscriptionRegistry}, the event loops lag behind, or the messages
+ * pending for subscribers exceed a threshold. Refused clients are redirected to one of the configured
+ * peers in turn, or answered with 503 and a <code>Retry-After</code> header.
+ * <p>
+ * The decision only reads counters, which a sampler updates every probe interval: the lag of the event
+ * loops, which run a probe task each interval and lag by how late it runs, or by how long it is overdue
+ * if it did not run yet, and the pending bytes of all paths, a running count the subscribers keep.
+ */
+public class NettyWebSocketAdmission {
+
+	public static final long DEFAULT_PROBE_INTERVAL = 100;
+
+	public static final int DEFAULT_RETRY_AFTER = 5;
+
+	int maxConnections;
+
+	long maxEventLoopLagNanos;
+
+	long maxPendingBytes;
+
+	int retryAfter = DEFAULT_RETRY_AFTER;
+
+	String[] redirectPeers = new String[0];
+
+	long probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PROBE_INTERVAL);
+
+	final AtomicInteger nextPeer = new AtomicInteger();
+
+	/** the largest lag of the event loops at the last sample */
+	volatile long eventLoopLagNanos;
+
+	/** the bytes pending for the subscribers of all paths at the last sample */
+	volatile long pendingBytes;
+
+	volatile boolean stopped;
+
+	List<LagProbe> probes = new ArrayList<LagProbe>();
+
+	ScheduledFuture<?> sampler;
+
+	/**
+	 * Sets the max connections of the server, including connections not yet upgraded; 0 for no limit.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Refuses handshakes while an event loop runs its tasks later than this after they were due; 0 for no limit.
+	 */
+	public void setMaxEventLoopLag(long maxLag, TimeUnit unit) {
+		this.maxEventLoopLagNanos = unit.toNanos(maxLag);
+	}
+
+	/**
+	 * Refuses handshakes while more bytes are queued for the subscribers of all paths; 0 for no limit.
+	 */
+	public void setMaxPendingBytes(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Sets the seconds refused clients are asked to wait before they retry.
+	 */
+	public void setRetryAfter(int seconds) {
+		this.retryAfter = seconds;
+	}
+
+	/**
+	 * Sets the base URLs of the servers refused clients are redirected to in turn, e.g.
+	 * <code>ws://node2:9292</code>; the request URI is appended. None to answer with 503.
+	 */
+	public void setRedirectPeers(String... peers) {
+		this.redirectPeers = peers;
+	}
+
+	/**
+	 * Sets how often the event loop lag and the pending bytes are measured.
+	 */
+	public void setProbeInterval(long interval, TimeUnit unit) {
+		this.probeIntervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * Starts measuring the lag of the given event loops and the pending bytes, as far as limits need them.
+	 */
+	public void start(EventLoopGroup eventLoops) {
+		stopped = false;
+		if (maxEventLoopLagNanos > 0) {
+			List<LagProbe> started = new ArrayList<LagProbe>();
+			for (EventExecutor executor : eventLoops) {
+				started.add(new LagProbe(executor));
+			}
+			probes = started;
+			for (LagProbe probe : started) {
+				probe.schedule();
+			}
+		}
+		if (maxEventLoopLagNanos > 0 || maxPendingBytes > 0) {
+			sampler = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					sample();
+				}
+			}, 0, probeIntervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void sample() {
+		long now = System.nanoTime();
+		long lag = 0;
+		for (LagProbe probe : probes) {
+			lag = Math.max(lag, Math.max(probe.lagNanos, now - probe.due));
+		}
+		eventLoopLagNanos = lag;
+		if (maxPendingBytes > 0) {
+			pendingBytes = NettyWebSocketServerRuntime.pendingBytes().get();
+		}
+	}
+
+	/**
+	 * Stops the sampler and the probes, which would otherwise keep running on shared executors after
+	 * the sink is undeployed.
+	 */
+	public void stop() {
+		stopped = true;
+		if (sampler != null) {
+			sampler.cancel(false);
+			sampler = null;
+		}
+		for (LagProbe probe : probes) {
+			probe.cancel();
+		}
+		probes = new ArrayList<LagProbe>();
+	}
+
+	/**
+	 * @param connections the current connections of the server
+	 * @return why a handshake to the given path is refused, or null if it is accepted
+	 */
+	public String refusal(String path, int connections) {
+		if (maxConnections > 0 && connections > maxConnections) {
+			return "server holds " + connections + " connections";
+		}
+		int maxSubscribers = NettyWebSocketSubscriptionRegistry.maxSubscribers(path);
+		if (maxSubscribers > 0 && NettyWebSocketSubscriptionRegistry.subscriberCount(path) >= maxSubscribers) {
+			return "path holds " + maxSubscribers + " subscribers";
+		}
+		if (maxEventLoopLagNanos > 0 && eventLoopLagNanos > maxEventLoopLagNanos) {
+			return "event loops lag " + TimeUnit.NANOSECONDS.toMillis(eventLoopLagNanos) + " ms";
+		}
+		if (maxPendingBytes > 0 && pendingBytes > maxPendingBytes) {
+			return pendingBytes + " bytes pending";
+		}
+		return null;
+	}
+
+	/**
+	 * @return the response refusing the request: a redirect to the next peer if there are any, 503 otherwise
+	 */
+	public FullHttpResponse refuse(FullHttpRequest req) {
+		String[] peers = redirectPeers;
+		if (peers.length > 0) {
+			String peer = peers[(nextPeer.getAndIncrement() & Integer.MAX_VALUE) % peers.length];
+			FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, TEMPORARY_REDIRECT);
+			res.headers().set(HttpHeaders.Names.LOCATION, peer + req.getUri());
+			return res;
+		}
+		FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+		res.headers().set(HttpHeaders.Names.RETRY_AFTER, retryAfter);
+		return res;
+	}
+
+	/**
+	 * @return the largest lag of the event loops at the last sample, 0 if not measured
+	 */
+	public long getEventLoopLagNanos() {
+		return eventLoopLagNanos;
+	}
+
+	/**
+	 * Measures how late an event loop runs a task scheduled every probe interval.
+	 */
+	final class LagProbe implements Runnable {
+
+		final EventExecutor executor;
+
+		volatile long lagNanos;
+
+		volatile long due;
+
+		volatile ScheduledFuture<?> future;
+
+		LagProbe(EventExecutor executor) {
+			this.executor = executor;
+		}
+
+		void schedule() {
+			due = System.nanoTime() + probeIntervalNanos;
+			future = executor.schedule(this, probeIntervalNanos, TimeUnit.NANOSECONDS);
+			if (stopped) {
+				// stopped while this probe ran
+				cancel();
+			}
+		}
+
+		void cancel() {
+			ScheduledFuture<?> scheduled = future;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+		}
+
+		public void run() {
+			lagNanos = Math.max(0, System.nanoTime() - due);
+			if (!stopped && !executor.isShuttingDown()) {
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * Encodes a message payload once and fans the resulting frame out to a set of channels.
+ * <p>
+ * Every channel receives a retained duplicate of the same frame, so all subscribers share
+ * a single buffer, which is released once the last write completed.
+ */
+public class NettyWebSocketBroadcaster {
+
+	/**
+	 * Which frame type payloads are sent as.
+	 */
+	public enum PayloadMode {
+
+		/** binary payloads (byte[], ByteBuffer, ByteBuf) as binary frames, everything else as text frames */
+		AUTO,
+
+		/** all payloads as text frames, binary payloads are expected to hold UTF-8 */
+		TEXT,
+
+		/** all payloads as binary frames */
+		BINARY
+	}
+
+	final ByteBufAllocator allocator;
+
+	final PayloadMode payloadMode;
+
+	final NettyWebSocketPayloadSerializer serializer;
+
+	volatile Executor streamExecutor;
+
+	public NettyWebSocketBroadcaster() {
+		this(PooledByteBufAllocator.DEFAULT);
+	}
+
+	public NettyWebSocketBroadcaster(ByteBufAllocator allocator) {
+		this(allocator, PayloadMode.AUTO, NettyWebSocketPayloadSerializer.TO_STRING);
+	}
+
+	public NettyWebSocketBroadcaster(ByteBufAllocator allocator, PayloadMode payloadMode,
+			NettyWebSocketPayloadSerializer serializer) {
+		this.allocator = allocator;
+		this.payloadMode = payloadMode;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Encodes the given payload into a frame. Binary payloads are wrapped without copying them,
+	 * strings are encoded straight into a buffer of this broadcaster's allocator, streams and resources
+	 * are read into one, and any other payload is handed to the {@link NettyWebSocketPayloadSerializer}.
+	 * The caller owns the returned frame and must either {@link #broadcast} or release it.
+	 */
+	public WebSocketFrame encode(Object payload) {
+		ByteBuf content;
+		boolean binary;
+		if (payload instanceof byte[]) {
+			content = Unpooled.wrappedBuffer((byte[]) payload);
+			binary = payloadMode != PayloadMode.TEXT;
+		} else if (payload instanceof ByteBuffer) {
+			content = Unpooled.wrappedBuffer((ByteBuffer) payload);
+			binary = payloadMode != PayloadMode.TEXT;
+		} else if (payload instanceof ByteBuf) {
+			content = ((ByteBuf) payload).duplicate().retain();
+			binary = payloadMode != PayloadMode.TEXT;
+		} else if (payload instanceof CharSequence) {
+			content = encodeUtf8((CharSequence) payload, allocator);
+			binary = payloadMode == PayloadMode.BINARY;
+		} else if (payload instanceof InputStream || payload instanceof Resource) {
+			try {
+				content = NettyWebSocketPayloadStream.readFully(payload instanceof Resource
+						? ((Resource) payload).getInputStream() : (InputStream) payload, allocator);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Cannot read payload of type " + payload.getClass().getName(), e);
+			}
+			binary = payloadMode != PayloadMode.TEXT;
+		} else {
+			try {
+				content = serializer.serialize(payload, allocator);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Cannot serialize payload of type " + payload.getClass().getName(), e);
+			}
+			binary = payloadMode == PayloadMode.BINARY;
+		}
+		return binary ? new BinaryWebSocketFrame(content) : new TextWebSocketFrame(content);
+	}
+
+	/**
+	 * Encodes the characters as UTF-8 into a buffer of exactly the encoded size. Unpaired surrogates
+	 * are replaced by '?', like {@link String#getBytes(java.nio.charset.Charset)} does.
+	 */
+	static ByteBuf encodeUtf8(CharSequence chars, ByteBufAllocator allocator) {
+		int length = chars.length();
+		ByteBuf buf = allocator.buffer(utf8Length(chars));
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				buf.writeByte(c);
+			} else if (c < 0x800) {
+				buf.writeByte(0xc0 | (c >> 6));
+				buf.writeByte(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				buf.writeByte(0xf0 | (codePoint >> 18));
+				buf.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+				buf.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+				buf.writeByte(0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buf.writeByte('?');
+			} else {
+				buf.writeByte(0xe0 | (c >> 12));
+				buf.writeByte(0x80 | ((c >> 6) & 0x3f));
+				buf.writeByte(0x80 | (c & 0x3f));
+			}
+		}
+		return buf;
+	}
+
+	static int utf8Length(CharSequence chars) {
+		int length = chars.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				bytes += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+				// two chars, four bytes
+				bytes += 2;
+				i++;
+			} else if (!Character.isSurrogate(c)) {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the frame to all given channels and releases it afterwards. The subscribers of a
+	 * {@link NettyWebSocketPathGroup} receive the frame subject to the slow consumer policy of the path;
+	 * if the path compresses messages, the frame is compressed once and shared by all subscribers that
+	 * negotiated compression. Frames over the rate limit of the path are discarded.
+	 *
+	 * @return the number of channels the frame was written to
+	 */
+	public int broadcast(WebSocketFrame frame, Iterable<Channel> channels) {
+		return broadcast(frame, channels, null);
+	}
+
+	/**
+	 * Like {@link #broadcast(WebSocketFrame, Iterable)}, but subscribers of a {@link NettyWebSocketPathGroup}
+	 * only receive the frame if the given message headers match their filter.
+	 */
+	public int broadcast(WebSocketFrame frame, Iterable<Channel> channels, Map<String,?> headers) {
+		int sent = 0;
+		try {
+			if (channels instanceof NettyWebSocketPathGroup) {
+				NettyWebSocketPathGroup group = (NettyWebSocketPathGroup) channels;
+				if (!group.admit(frame.content().readableBytes())) {
+					return 0;
+				}
+				group.messages.incrementAndGet();
+				NettyWebSocketReplayCache cache = group.replayCache;
+				if (cache == null) {
+					return send(frame, group, headers);
+				}
+				synchronized (cache) {
+					cache.add(frame, headers);
+					return send(frame, group, headers);
+				}
+			}
+			for (Channel channel : channels) {
+				channel.writeAndFlush(frame.duplicate().retain());
+				sent++;
+			}
+		} finally {
+			frame.release();
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends a payload as fragmented message to the subscribers of the group matching the headers: a text
+	 * or binary frame followed by continuation frames, each holding a chunk of the payload that is read
+	 * once and shared by all subscribers. The payload is read on the stream executor at the pace of the
+	 * slowest subscriber, as a {@link NettyWebSocketStream}, and this method returns right away. Other
+	 * messages to the subscribers are held until they got the last fragment. Streamed messages are neither
+	 * compressed nor replayed. The stream is closed afterwards.
+	 *
+	 * @return the number of subscribers the message is sent to
+	 */
+	public int stream(NettyWebSocketPayloadStream payload, NettyWebSocketPathGroup group, Map<String,?> headers) {
+		if (!group.admit(0)) {
+			payload.close();
+			return 0;
+		}
+		group.messages.incrementAndGet();
+		boolean binary = payloadMode == PayloadMode.AUTO ? payload.binary() : payloadMode == PayloadMode.BINARY;
+		return new NettyWebSocketStream(payload, group, binary, streamExecutor()).start(receivers(group, headers));
+	}
+
+	/**
+	 * Sets the executor streamed payloads are read on, by default the pool of the container for blocking work.
+	 */
+	public void setStreamExecutor(Executor streamExecutor) {
+		this.streamExecutor = streamExecutor;
+	}
+
+	Executor streamExecutor() {
+		Executor executor = streamExecutor;
+		return executor != null ? executor : NettyWebSocketDispatcher.blockingPool();
+	}
+
+	/**
+	 * @return the subscribers of the group matching the headers, looked up like {@link #send} does
+	 */
+	Collection<NettyWebSocketSubscriber> receivers(NettyWebSocketPathGroup group, Map<String,?> headers) {
+		if (!group.filtering()) {
+			return group.subscribers();
+		}
+		List<NettyWebSocketSubscriber> receivers = new ArrayList<NettyWebSocketSubscriber>(group.unfiltered);
+		if (headers == null) {
+			return receivers;
+		}
+		for (String header : group.filterHeaders) {
+			Object value = headers.get(header);
+			Set<NettyWebSocketSubscriber> indexed = value == null ? null : group.index.get(header).get(value.toString());
+			if (indexed == null) {
+				continue;
+			}
+			for (NettyWebSocketSubscriber subscriber : indexed) {
+				if (subscriber.matches(headers)) {
+					receivers.add(subscriber);
+				}
+			}
+		}
+		return receivers;
+	}
+
+	/**
+	 * Hands a duplicate of the frame to every subscriber of the group matching the headers, compressing
+	 * it once for all subscribers that negotiated compression. On a filtering path, only the unfiltered
+	 * subscribers and those indexed under the value of the first filter header are looked at.
+	 */
+	int send(WebSocketFrame frame, NettyWebSocketPathGroup group, Map<String,?> headers) {
+		int sent = 0;
+		boolean compress = group.compression && frame.content().readableBytes() >= group.compressionThreshold;
+		WebSocketFrame compressed = null;
+		try {
+			if (!group.filtering()) {
+				for (NettyWebSocketSubscriber subscriber : group.subscribers()) {
+					compressed = deliver(frame, compressed, subscriber, group, compress);
+					sent++;
+				}
+				return sent;
+			}
+			for (NettyWebSocketSubscriber subscriber : group.unfiltered) {
+				compressed = deliver(frame, compressed, subscriber, group, compress);
+				sent++;
+			}
+			if (headers == null) {
+				return sent;
+			}
+			for (String header : group.filterHeaders) {
+				Object value = headers.get(header);
+				if (value == null) {
+					continue;
+				}
+				Set<NettyWebSocketSubscriber> indexed = group.index.get(header).get(value.toString());
+				if (indexed == null) {
+					continue;
+				}
+				for (NettyWebSocketSubscriber subscriber : indexed) {
+					// indexed by the first header of its filter, the other headers still have to match
+					if (subscriber.matches(headers)) {
+						compressed = deliver(frame, compressed, subscriber, group, compress);
+						sent++;
+					}
+				}
+			}
+		} finally {
+			if (compressed != null) {
+				compressed.release();
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Hands a duplicate of the frame, or of its compressed form, to the subscriber.
+	 *
+	 * @return the compressed frame, created on first use
+	 */
+	WebSocketFrame deliver(WebSocketFrame frame, WebSocketFrame compressed, NettyWebSocketSubscriber subscriber,
+			NettyWebSocketPathGroup group, boolean compress) {
+		if (compress && subscriber.compression) {
+			if (compressed == null) {
+				compressed = PerMessageDeflate.compress(frame, group.compressionLevel, allocator);
+			}
+			subscriber.send(compressed.duplicate().retain());
+		} else {
+			subscriber.send(frame.duplicate().retain());
+		}
+		return compressed;
+	}
+}
@@ -0,0 +1,132 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limits the handshakes and the frames per second of the clients of a server by remote IP address,
+ * across all connections of an address and the event loops serving them. Frames pass this limit before
+ * the <code>inboundRateLimit</code> of the connection, so both apply and the stricter one wins.
+ * <p>
+ * The buckets of an address are kept in a table of {@link #MAX_ADDRESSES} slots, looked up on every event
+ * without locking among the {@link #PROBES} slots its hash points at. A new address takes the first free
+ * slot among them, or the slot of an address whose buckets are full again, as a new bucket would be the
+ * same. If all of them hold addresses that are still limited, the new address shares the buckets of the
+ * first, so the table never grows and the limits are never lifted by churning addresses.
+ */
+public class NettyWebSocketClientRateLimiter {
+
+	static final int MAX_ADDRESSES = 64 * 1024;
+
+	static final int PROBES = 4;
+
+	final double handshakeRate;
+
+	final double frameRate;
+
+	final AtomicReferenceArray<Buckets> slots;
+
+	/**
+	 * @param handshakeRate the handshakes per second of an address, 0 for no limit
+	 * @param frameRate the frames per second sent from an address, 0 for no limit
+	 */
+	public NettyWebSocketClientRateLimiter(double handshakeRate, double frameRate) {
+		this(handshakeRate, frameRate, MAX_ADDRESSES);
+	}
+
+	/**
+	 * @param maxAddresses the slots of the table, a power of two of at least {@link #PROBES}
+	 */
+	NettyWebSocketClientRateLimiter(double handshakeRate, double frameRate, int maxAddresses) {
+		this.handshakeRate = handshakeRate;
+		this.frameRate = frameRate;
+		this.slots = new AtomicReferenceArray<Buckets>(maxAddresses);
+	}
+
+	/**
+	 * @return false if the address exceeds its handshake rate
+	 */
+	public boolean tryHandshake(SocketAddress address) {
+		if (handshakeRate <= 0) {
+			return true;
+		}
+		Buckets buckets = buckets(address);
+		return buckets == null || buckets.handshakes.tryAcquire(1, System.nanoTime());
+	}
+
+	/**
+	 * @return false if the address exceeds its frame rate
+	 */
+	public boolean tryFrame(SocketAddress address) {
+		if (frameRate <= 0) {
+			return true;
+		}
+		Buckets buckets = buckets(address);
+		return buckets == null || buckets.frames.tryAcquire(1, System.nanoTime());
+	}
+
+	/**
+	 * @return the buckets of the IP address, or null if the address is not an IP address
+	 */
+	Buckets buckets(SocketAddress address) {
+		if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).getAddress() == null) {
+			return null;
+		}
+		InetAddress ip = ((InetSocketAddress) address).getAddress();
+		int mask = slots.length() - 1;
+		int hash = ip.hashCode() * 0x9E3779B9;
+		hash ^= hash >>> 16;
+		long now = System.nanoTime();
+		int free = -1;
+		Buckets replaced = null;
+		for (int i = 0; i < PROBES; i++) {
+			int index = (hash + i) & mask;
+			Buckets candidate = slots.get(index);
+			if (candidate == null) {
+				if (free < 0) {
+					free = index;
+					replaced = null;
+				}
+			} else if (candidate.address.equals(ip)) {
+				return candidate;
+			} else if (free < 0 && candidate.isFull(now)) {
+				free = index;
+				replaced = candidate;
+			}
+		}
+		if (free < 0) {
+			return slots.get(hash & mask);
+		}
+		Buckets created = new Buckets(ip);
+		if (slots.compareAndSet(free, replaced, created)) {
+			return created;
+		}
+		// another event took the slot first, possibly for the same address
+		Buckets taken = slots.get(free);
+		return taken != null && taken.address.equals(ip) ? taken : created;
+	}
+
+	/**
+	 * The buckets of an address, allowing a burst of one second worth of events.
+	 */
+	final class Buckets {
+
+		final InetAddress address;
+
+		final NettyWebSocketTokenBucket.Shared handshakes =
+				new NettyWebSocketTokenBucket.Shared(Math.max(handshakeRate, 1), Math.max(handshakeRate, 1));
+
+		final NettyWebSocketTokenBucket.Shared frames =
+				new NettyWebSocketTokenBucket.Shared(Math.max(frameRate, 1), Math.max(frameRate, 1));
+
+		Buckets(InetAddress address) {
+			this.address = address;
+		}
+
+		boolean isFull(long now) {
+			return handshakes.isFull(now) && frames.isFull(now);
+		}
+	}
+}
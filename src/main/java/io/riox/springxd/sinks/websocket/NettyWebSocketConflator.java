@@ -0,0 +1,222 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.expression.Expression;
+import org.springframework.integration.handler.AbstractMessageHandler;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+
+/**
+ * Conflates the messages of a path by key: only the latest message per key is kept, and the kept
+ * messages are handed to the outbound handler once per tick, in the order their keys first appeared
+ * in the tick. Messages without a key are handed on right away.
+ * <p>
+ * Ticks are triggered by a scheduler shared by all sinks of the container; the messages of a tick are
+ * handed on through the given executor, the dispatcher of the path. The scheduler thread never waits for
+ * a dispatcher: if its queue is full, or a flush is still pending, the messages are kept, still conflated,
+ * for the next tick.
+ */
+public class NettyWebSocketConflator extends AbstractMessageHandler implements NettyWebSocketConflatorMBean {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketConflator.class);
+
+	static final String KEY_CONFLATION_SCHEDULER = "__NETTY_WEBSOCKET_CONFLATION_SCHEDULER__";
+
+	final String path;
+
+	final String keyHeader;
+
+	final Expression keyExpression;
+
+	final long tickMillis;
+
+	final MessageHandler handler;
+
+	final Executor executor;
+
+	Map<Object,Message<?>> latest = new LinkedHashMap<Object,Message<?>>();
+
+	final AtomicLong received = new AtomicLong();
+
+	final AtomicLong flushed = new AtomicLong();
+
+	ScheduledFuture<?> tick;
+
+	/** whether a flush was handed to the executor and did not run yet */
+	final AtomicBoolean flushPending = new AtomicBoolean();
+
+	final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushPending.set(false);
+			flush();
+		}
+	};
+
+	/**
+	 * @param keyHeader the header holding the key of a message, or null to use the expression
+	 * @param keyExpression the SpEL expression evaluated against a message to get its key
+	 */
+	public NettyWebSocketConflator(String path, String keyHeader, Expression keyExpression, long tick,
+			TimeUnit unit, MessageHandler handler, Executor executor) {
+		if (keyHeader == null && keyExpression == null) {
+			throw new IllegalArgumentException("either a key header or a key expression is required");
+		}
+		if (unit.toMillis(tick) <= 0) {
+			throw new IllegalArgumentException("conflationTick must be at least 1 ms: " + tick + " " + unit);
+		}
+		this.path = path;
+		this.keyHeader = keyHeader;
+		this.keyExpression = keyExpression;
+		this.tickMillis = unit.toMillis(tick);
+		this.handler = handler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the conflation scheduler of the container, creating it if this is the first sink to ask for it.
+	 */
+	static ScheduledExecutorService sharedScheduler() {
+		synchronized (System.class) {
+			ScheduledExecutorService scheduler =
+					(ScheduledExecutorService) System.getProperties().get(KEY_CONFLATION_SCHEDULER);
+			if (scheduler == null || scheduler.isShutdown()) {
+				scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "websocket-conflation");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				System.getProperties().put(KEY_CONFLATION_SCHEDULER, scheduler);
+			}
+			return scheduler;
+		}
+	}
+
+	public synchronized void start() {
+		if (tick == null) {
+			tick = sharedScheduler().scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					tick();
+				}
+			}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Hands a flush to the executor without blocking the scheduler shared by all paths.
+	 */
+	void tick() {
+		if (!flushPending.compareAndSet(false, true)) {
+			return;
+		}
+		boolean queued;
+		try {
+			if (executor instanceof NettyWebSocketDispatcher) {
+				queued = ((NettyWebSocketDispatcher) executor).tryExecute(flushTask);
+			} else {
+				executor.execute(flushTask);
+				queued = true;
+			}
+		} catch (RejectedExecutionException e) {
+			log.warn("Cannot flush conflated messages of path {}: {}", path, e.toString());
+			queued = false;
+		}
+		if (!queued) {
+			log.debug("Dispatch queue of path {} is full, keeping conflated messages for the next tick", path);
+			flushPending.set(false);
+		}
+	}
+
+	/**
+	 * Stops ticking and hands on the messages kept so far.
+	 */
+	public synchronized void stop() {
+		if (tick != null) {
+			tick.cancel(false);
+			tick = null;
+			flush();
+		}
+	}
+
+	@Override
+	public String getComponentType() {
+		return "netty-websocket:conflator";
+	}
+
+	@Override
+	protected void handleMessageInternal(final Message<?> message) throws Exception {
+		received.incrementAndGet();
+		Object key = keyHeader != null ? message.getHeaders().get(keyHeader) : keyExpression.getValue(message);
+		if (key == null) {
+			flushed.incrementAndGet();
+			executor.execute(new Runnable() {
+				public void run() {
+					handler.handleMessage(message);
+				}
+			});
+			return;
+		}
+		synchronized (this) {
+			latest.put(key, message);
+		}
+	}
+
+	void flush() {
+		Map<Object,Message<?>> batch;
+		synchronized (this) {
+			if (latest.isEmpty()) {
+				return;
+			}
+			batch = latest;
+			latest = new LinkedHashMap<Object,Message<?>>();
+		}
+		for (Message<?> message : batch.values()) {
+			flushed.incrementAndGet();
+			try {
+				handler.handleMessage(message);
+			} catch (RuntimeException e) {
+				log.error("Failed to send conflated message to path " + path, e);
+			}
+		}
+	}
+
+	@Override
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	@Override
+	public long getReceivedMessages() {
+		return received.get();
+	}
+
+	@Override
+	public long getFlushedMessages() {
+		return flushed.get();
+	}
+
+	@Override
+	public synchronized int getPendingKeys() {
+		return latest.size();
+	}
+
+	@Override
+	public double getConflationRatio() {
+		long out = flushed.get();
+		return out == 0 ? 0 : (double) received.get() / out;
+	}
+}
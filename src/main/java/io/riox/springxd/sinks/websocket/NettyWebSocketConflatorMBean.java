@@ -0,0 +1,26 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the conflation of a sink path.
+ */
+public interface NettyWebSocketConflatorMBean {
+
+	long getTickMillis();
+
+	long getReceivedMessages();
+
+	/**
+	 * @return the number of messages handed on to the subscribers
+	 */
+	long getFlushedMessages();
+
+	/**
+	 * @return the number of keys with a message waiting for the next tick
+	 */
+	int getPendingKeys();
+
+	/**
+	 * @return received messages per message handed on, 1 if nothing was conflated
+	 */
+	double getConflationRatio();
+}
@@ -0,0 +1,305 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the messages of one sink path onto a thread pool shared by all sinks of the container.
+ * <p>
+ * Messages of the path are queued in a bounded queue and executed one after the other, which preserves
+ * their order; the queue is drained in slices so that busy paths do not starve the others.
+ * A full queue is handled according to the {@link RejectionPolicy}.
+ */
+public class NettyWebSocketDispatcher implements Executor, NettyWebSocketDispatcherMBean {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketDispatcher.class);
+
+	static final String KEY_DISPATCH_POOL = "__NETTY_WEBSOCKET_DISPATCH_POOL__";
+
+	static final String KEY_BLOCKING_POOL = "__NETTY_WEBSOCKET_BLOCKING_POOL__";
+
+	/** max tasks of a path executed before the pool thread is handed to the next path */
+	static final int DRAIN_SLICE = 64;
+
+	/**
+	 * How the messages of a sink are handed to the subscribers.
+	 */
+	public enum Mode {
+
+		/** queue the messages and write them from the shared dispatch pool */
+		POOL,
+
+		/** write the messages from the thread sending them to the sink */
+		DIRECT
+	}
+
+	/**
+	 * What to do with a message when the dispatch queue of the path is full.
+	 */
+	public enum RejectionPolicy {
+
+		/** block the sending thread until there is room, failing after the dispatch timeout */
+		BLOCK,
+
+		/** discard the message */
+		DROP,
+
+		/** fail the send with a {@link RejectedExecutionException} */
+		FAIL
+	}
+
+	final String path;
+
+	final Executor pool;
+
+	final BlockingQueue<Dispatch> queue;
+
+	final RejectionPolicy rejectionPolicy;
+
+	final long timeoutNanos;
+
+	final AtomicBoolean draining = new AtomicBoolean();
+
+	final AtomicLong dispatched = new AtomicLong();
+
+	final AtomicLong rejected = new AtomicLong();
+
+	final AtomicLong totalWaitNanos = new AtomicLong();
+
+	final AtomicLong maxWaitNanos = new AtomicLong();
+
+	final Runnable drainer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	public NettyWebSocketDispatcher(String path, Executor pool, int queueSize, RejectionPolicy rejectionPolicy,
+			long timeout, TimeUnit unit) {
+		this.path = path;
+		this.pool = pool;
+		this.queue = new ArrayBlockingQueue<Dispatch>(queueSize);
+		this.rejectionPolicy = rejectionPolicy;
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the dispatch pool of the container, creating it with the given number of threads
+	 * (0 for one per core) if this is the first sink to ask for it. The pool only consists of JDK
+	 * types, so it can be shared by the sinks of all module class loaders.
+	 */
+	static ExecutorService sharedPool(int threads) {
+		synchronized (System.class) {
+			ExecutorService pool = (ExecutorService) System.getProperties().get(KEY_DISPATCH_POOL);
+			if (pool == null || pool.isShutdown()) {
+				int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+				pool = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+							final AtomicInteger count = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "websocket-dispatch-" + count.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				System.getProperties().put(KEY_DISPATCH_POOL, pool);
+				log.info("Created websocket dispatch pool with {} threads", size);
+			} else if (threads > 0 && pool instanceof ThreadPoolExecutor
+					&& ((ThreadPoolExecutor) pool).getCorePoolSize() != threads) {
+				log.warn("Websocket dispatch pool was created with {} threads by another sink, ignoring {} threads",
+						((ThreadPoolExecutor) pool).getCorePoolSize(), threads);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Returns the pool of the container for tasks that may block, like publishing client messages to an
+	 * output channel or reading streamed payloads, so that they never hold up the dispatch pool. Threads
+	 * are started as tasks need them and end after a minute without work.
+	 */
+	static ExecutorService blockingPool() {
+		synchronized (System.class) {
+			ExecutorService pool = (ExecutorService) System.getProperties().get(KEY_BLOCKING_POOL);
+			if (pool == null || pool.isShutdown()) {
+				pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>(), new ThreadFactory() {
+							final AtomicInteger count = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "websocket-blocking-" + count.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				System.getProperties().put(KEY_BLOCKING_POOL, pool);
+			}
+			return pool;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		Dispatch dispatch = new Dispatch(task, System.nanoTime());
+		if (!queue.offer(dispatch)) {
+			reject(dispatch);
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Queues the task unless the queue is full, without applying the rejection policy, for callers that
+	 * must never block and handle a full queue themselves.
+	 *
+	 * @return false if the queue is full and the task was not queued
+	 */
+	public boolean tryExecute(Runnable task) {
+		if (!queue.offer(new Dispatch(task, System.nanoTime()))) {
+			return false;
+		}
+		scheduleDrain();
+		return true;
+	}
+
+	void reject(Dispatch dispatch) {
+		switch (rejectionPolicy) {
+		case BLOCK:
+			try {
+				if (queue.offer(dispatch, timeoutNanos, TimeUnit.NANOSECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Dispatch queue of path " + path + " is full");
+		case DROP:
+			rejected.incrementAndGet();
+			log.debug("Dispatch queue of path {} is full, dropping message", path);
+			return;
+		default:
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Dispatch queue of path " + path + " is full");
+		}
+	}
+
+	void scheduleDrain() {
+		if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+			try {
+				pool.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				draining.set(false);
+				throw e;
+			}
+		}
+	}
+
+	void drain() {
+		try {
+			for (int i = 0; i < DRAIN_SLICE; i++) {
+				Dispatch dispatch = queue.poll();
+				if (dispatch == null) {
+					break;
+				}
+				long wait = System.nanoTime() - dispatch.enqueued;
+				totalWaitNanos.addAndGet(wait);
+				long max;
+				while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {
+					// retry
+				}
+				dispatched.incrementAndGet();
+				try {
+					dispatch.task.run();
+				} catch (RuntimeException e) {
+					log.error("Failed to dispatch message to path " + path, e);
+				}
+			}
+		} finally {
+			draining.set(false);
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Waits until all queued messages were dispatched.
+	 *
+	 * @return false if messages are still queued after the timeout
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!queue.isEmpty() || draining.get()) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of messages waiting to be dispatched
+	 */
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public long getDispatchedMessages() {
+		return dispatched.get();
+	}
+
+	@Override
+	public long getRejectedMessages() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the average time in microseconds messages waited in the queue
+	 */
+	@Override
+	public long getMeanWaitMicros() {
+		long count = dispatched.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count);
+	}
+
+	/**
+	 * @return the longest time in microseconds a message waited in the queue
+	 */
+	@Override
+	public long getMaxWaitMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+	}
+
+	static final class Dispatch {
+
+		final Runnable task;
+
+		final long enqueued;
+
+		Dispatch(Runnable task, long enqueued) {
+			this.task = task;
+			this.enqueued = enqueued;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the dispatch queue of a sink path.
+ */
+public interface NettyWebSocketDispatcherMBean {
+
+	int getQueueDepth();
+
+	long getDispatchedMessages();
+
+	long getRejectedMessages();
+
+	long getMeanWaitMicros();
+
+	long getMaxWaitMicros();
+}
@@ -0,0 +1,97 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reaps dead connections, such as half-open connections of mobile clients, which would otherwise stay
+ * subscribed forever.
+ * <p>
+ * When nothing was read from a client for the heartbeat interval, the server sends it a ping, and closes
+ * the connection unless the client answers, with a pong or anything else, within the timeout. Closing the
+ * connection removes it from the path it subscribed to. Connections idle before their websocket handshake
+ * are closed without a ping.
+ * <p>
+ * The handler is driven by the reader idle events of an {@link IdleStateHandler} placed before it, which
+ * has to fire at least every {@link #checkPeriod} for the timeout to be accurate.
+ */
+public class NettyWebSocketHeartbeatHandler extends ChannelInboundHandlerAdapter {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketHeartbeatHandler.class);
+
+	final long intervalNanos;
+
+	final long timeoutNanos;
+
+	final NettyWebSocketServerMetrics metrics;
+
+	/** whether the connection subscribed to a path */
+	boolean websocket;
+
+	long lastRead = System.nanoTime();
+
+	/** whether a ping is waiting for an answer */
+	boolean pinging;
+
+	long pingSent;
+
+	public NettyWebSocketHeartbeatHandler(long interval, long timeout, TimeUnit unit, NettyWebSocketServerMetrics metrics) {
+		this.intervalNanos = unit.toNanos(interval);
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the reader idle time of the {@link IdleStateHandler} driving a heartbeat with the given
+	 * interval and timeout
+	 */
+	public static long checkPeriod(long interval, long timeout) {
+		return timeout > 0 ? Math.min(interval, timeout) : interval;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		lastRead = System.nanoTime();
+		pinging = false;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt instanceof QueryStringDecoder) {
+			websocket = true;
+		} else if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+			idle(ctx);
+		}
+		ctx.fireUserEventTriggered(evt);
+	}
+
+	void idle(ChannelHandlerContext ctx) {
+		long now = System.nanoTime();
+		if (!websocket) {
+			log.debug("Closing {}, idle before its handshake", ctx.channel());
+			ctx.close();
+		} else if (pinging) {
+			if (now - pingSent >= timeoutNanos) {
+				log.debug("Closing {}, no answer to ping within {} ms", ctx.channel(),
+						TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+				metrics.reaped.incrementAndGet();
+				ctx.close();
+			}
+		} else if (now - lastRead >= intervalNanos) {
+			pinging = true;
+			pingSent = now;
+			ctx.channel().writeAndFlush(new PingWebSocketFrame());
+		}
+	}
+}
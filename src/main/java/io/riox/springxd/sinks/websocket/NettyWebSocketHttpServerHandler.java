@@ -36,6 +36,14 @@ public class NettyWebSocketHttpServerHandler extends NettyWebSocketServerHandler
 		super(ssl);
 	}
 
+	public NettyWebSocketHttpServerHandler(boolean ssl, boolean compression) {
+		super(ssl, compression);
+	}
+
+	public NettyWebSocketHttpServerHandler(boolean ssl, boolean compression, NettyWebSocketServerMetrics metrics) {
+		super(ssl, compression, metrics);
+	}
+
 	@Override
 	protected boolean additionalHttpRequestHandler(ChannelHandlerContext ctx, FullHttpRequest req) {
 		if ("/".equals(req.getUri())) {
@@ -0,0 +1,231 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Publishes the messages clients send to a sink path to an output channel.
+ * <p>
+ * The event loops only copy the content of a message and queue it, which never blocks: messages are
+ * discarded if the bounded queue is full, or if their connection exceeds its rate limit. The queue is
+ * drained in batches, one batch at a time, so the messages of a connection are published in the order
+ * they were received. As sending to the output channel may block, the sink drains it on the blocking pool
+ * of {@link NettyWebSocketDispatcher}, not on the dispatch pool. Messages carry the path and the id of their connection
+ * as headers.
+ */
+public class NettyWebSocketInbound implements NettyWebSocketInboundMBean {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketInbound.class);
+
+	public static final String PATH_HEADER = "websocket_path";
+
+	public static final String CONNECTION_ID_HEADER = "websocket_connectionId";
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	final String path;
+
+	final MessageChannel output;
+
+	final Executor pool;
+
+	final BlockingQueue<Received> queue;
+
+	final int batchSize;
+
+	/** messages per second and connection, 0 for no limit */
+	final double rateLimit;
+
+	/** tells the connections of this sink instance apart from those of other instances */
+	final String node = Long.toHexString(new Random().nextLong());
+
+	final AtomicLong connections = new AtomicLong();
+
+	final AtomicBoolean draining = new AtomicBoolean();
+
+	volatile boolean stopped;
+
+	final AtomicLong received = new AtomicLong();
+
+	final AtomicLong published = new AtomicLong();
+
+	final AtomicLong dropped = new AtomicLong();
+
+	final AtomicLong rateLimited = new AtomicLong();
+
+	final AtomicLong failed = new AtomicLong();
+
+	final Runnable drainer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param pool the executor publishing the messages
+	 * @param queueSize the max messages waiting to be published
+	 * @param batchSize the max messages published by a single task of the pool
+	 * @param rateLimit the max messages per second of a connection, 0 for no limit
+	 */
+	public NettyWebSocketInbound(String path, MessageChannel output, Executor pool, int queueSize, int batchSize,
+			double rateLimit) {
+		this.path = path;
+		this.output = output;
+		this.pool = pool;
+		this.queue = new ArrayBlockingQueue<Received>(queueSize);
+		this.batchSize = batchSize;
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @return an id for a new connection, unique across the instances of the sink
+	 */
+	String nextConnectionId() {
+		return node + "-" + connections.incrementAndGet();
+	}
+
+	/**
+	 * @return the rate limit of a new connection, allowing a burst of one second worth of messages,
+	 * or null if connections are not limited
+	 */
+	NettyWebSocketTokenBucket newRateLimit() {
+		return rateLimit > 0 ? new NettyWebSocketTokenBucket(rateLimit, Math.max(1, rateLimit)) : null;
+	}
+
+	/**
+	 * Queues a message received from a connection, without blocking.
+	 *
+	 * @param payload the String content of a text message, or the byte[] content of a binary message
+	 * @return false if the message was discarded
+	 */
+	public boolean offer(Object payload, String connectionId) {
+		received.incrementAndGet();
+		if (stopped || !queue.offer(new Received(payload, connectionId))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		scheduleDrain();
+		return true;
+	}
+
+	void scheduleDrain() {
+		if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+			try {
+				pool.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				draining.set(false);
+				log.warn("Cannot publish messages received on path {}: {}", path, e.getMessage());
+			}
+		}
+	}
+
+	void drain() {
+		try {
+			for (int i = 0; i < batchSize; i++) {
+				Received message = queue.poll();
+				if (message == null) {
+					break;
+				}
+				Map<String,Object> headers = new HashMap<String,Object>(4);
+				headers.put(PATH_HEADER, path);
+				headers.put(CONNECTION_ID_HEADER, message.connectionId);
+				try {
+					if (output.send(new GenericMessage<Object>(message.payload, headers))) {
+						published.incrementAndGet();
+					} else {
+						failed.incrementAndGet();
+					}
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					log.debug("Cannot publish message received on path {}: {}", path, e.toString());
+				}
+			}
+		} finally {
+			draining.set(false);
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Stops accepting messages.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Waits until all queued messages were published.
+	 *
+	 * @return false if messages are still queued after the timeout
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!queue.isEmpty() || draining.get()) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public long getReceivedMessages() {
+		return received.get();
+	}
+
+	@Override
+	public long getPublishedMessages() {
+		return published.get();
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+
+	@Override
+	public long getRateLimitedMessages() {
+		return rateLimited.get();
+	}
+
+	@Override
+	public long getFailedMessages() {
+		return failed.get();
+	}
+
+	static final class Received {
+
+		final Object payload;
+
+		final String connectionId;
+
+		Received(Object payload, String connectionId) {
+			this.payload = payload;
+			this.connectionId = connectionId;
+		}
+	}
+}
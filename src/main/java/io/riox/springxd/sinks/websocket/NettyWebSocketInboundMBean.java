@@ -0,0 +1,28 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the messages clients send to a sink path.
+ */
+public interface NettyWebSocketInboundMBean {
+
+	int getQueueDepth();
+
+	long getReceivedMessages();
+
+	long getPublishedMessages();
+
+	/**
+	 * @return the number of messages discarded as the inbound queue was full
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * @return the number of messages discarded as their connection exceeded its rate limit
+	 */
+	long getRateLimitedMessages();
+
+	/**
+	 * @return the number of messages the output channel failed to accept
+	 */
+	long getFailedMessages();
+}
@@ -0,0 +1,135 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the metrics of the websocket servers, paths and dispatchers with the platform MBean server,
+ * where they are visible to JMX clients such as the Spring XD admin.
+ * <p>
+ * Servers and paths are registered by the sink that runs or binds them, so their names are unique.
+ * The MBeans every sink registers for itself, even when it shares its path with other sinks, are told
+ * apart by the instance number of the sink, unique within the container.
+ */
+public final class NettyWebSocketJmx {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketJmx.class);
+
+	public static final String DOMAIN = "io.riox.springxd.sinks.websocket";
+
+	static final String KEY_INSTANCES = "__NETTY_WEBSOCKET_SINK_INSTANCES__";
+
+	private NettyWebSocketJmx() {
+	}
+
+	/**
+	 * @return a new sink instance number, unique within the container
+	 */
+	public static int nextInstance() {
+		synchronized (System.class) {
+			AtomicInteger instances = (AtomicInteger) System.getProperties().get(KEY_INSTANCES);
+			if (instances == null) {
+				instances = new AtomicInteger();
+				System.getProperties().put(KEY_INSTANCES, instances);
+			}
+			return instances.incrementAndGet();
+		}
+	}
+
+	public static ObjectName serverName(int port) {
+		return name("type=Server,port=" + port);
+	}
+
+	public static ObjectName pathName(String path) {
+		return name("type=Path,path=" + ObjectName.quote(path));
+	}
+
+	public static ObjectName dispatcherName(String path, int instance) {
+		return name("type=Dispatcher,path=" + ObjectName.quote(path) + ",instance=" + instance);
+	}
+
+	public static ObjectName conflationName(String path, int instance) {
+		return name("type=Conflation,path=" + ObjectName.quote(path) + ",instance=" + instance);
+	}
+
+	public static ObjectName relayName(String path, int instance) {
+		return name("type=Relay,path=" + ObjectName.quote(path) + ",instance=" + instance);
+	}
+
+	public static ObjectName inboundName(String path) {
+		return name("type=Inbound,path=" + ObjectName.quote(path));
+	}
+
+	public static ObjectName latencyName(String path, int instance, String stage) {
+		return name("type=Latency,path=" + ObjectName.quote(path) + ",instance=" + instance + ",stage=" + stage);
+	}
+
+	static ObjectName name(String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Registers the MBean under the given name, replacing an MBean left behind by a deployment that
+	 * did not undeploy cleanly. Failures are logged, metrics are not worth failing a deployment for.
+	 */
+	public static void register(Object mbean, ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				log.warn("Replacing MBean {} left behind by a previous deployment", name);
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (JMException e) {
+			log.warn("Cannot register MBean " + name, e);
+		}
+	}
+
+	/**
+	 * Renders the attributes of all registered MBeans of this domain as plain text, one
+	 * <code>name attribute value</code> line per attribute. As this only reads JMX, it works
+	 * regardless of the module class loader the MBeans were registered from.
+	 */
+	public static String dump() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		StringBuilder sb = new StringBuilder();
+		Set<ObjectName> names = new TreeSet<ObjectName>(server.queryNames(name("*"), null));
+		for (ObjectName name : names) {
+			try {
+				for (MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes()) {
+					sb.append(name).append(' ').append(attribute.getName()).append(' ')
+							.append(server.getAttribute(name, attribute.getName())).append('\n');
+				}
+			} catch (JMException e) {
+				// unregistered concurrently
+				log.debug("Cannot read MBean {}: {}", name, e.toString());
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void unregister(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			log.warn("Cannot unregister MBean " + name, e);
+		}
+	}
+}
@@ -1,17 +1,17 @@
 package io.riox.springxd.sinks.websocket;
 
-import java.util.List;
-import java.util.Map;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
-import io.netty.channel.Channel;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.integration.handler.AbstractMessageHandler;
 import org.springframework.messaging.Message;
-import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
-import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.MessageHandler;
 
 /**
  * Straight forward <code>MessageHandler</code> implementation that forwards all incoming messages to
@@ -24,10 +24,40 @@ import org.springframework.messaging.simp.SimpMessageType;
 public class NettyWebSocketOutboundMessageHandler extends AbstractMessageHandler {
 
 	static final Logger log = LoggerFactory.getLogger(NettyWebSocketOutboundMessageHandler.class);
-	String path;
 
-	public NettyWebSocketOutboundMessageHandler(String path) {
-		this.path = path;
+	final ChannelGroup subscribers;
+
+	final NettyWebSocketBroadcaster broadcaster;
+
+	NettyWebSocketTracer tracer;
+
+	NettyWebSocketRelay relay;
+
+	public NettyWebSocketOutboundMessageHandler(ChannelGroup subscribers) {
+		this(subscribers, new NettyWebSocketBroadcaster());
+	}
+
+	/**
+	 * @param subscribers the channels subscribed to the path of the sink, as bound in the
+	 * {@link NettyWebSocketSubscriptionRegistry}
+	 */
+	public NettyWebSocketOutboundMessageHandler(ChannelGroup subscribers, NettyWebSocketBroadcaster broadcaster) {
+		this.subscribers = subscribers;
+		this.broadcaster = broadcaster;
+	}
+
+	/**
+	 * Sets the tracer recording the latency of messages stamped by its ingress interceptor.
+	 */
+	public void setTracer(NettyWebSocketTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Sets the relay every message is published to, for the other instances of the sink to broadcast.
+	 */
+	public void setRelay(NettyWebSocketRelay relay) {
+		this.relay = relay;
 	}
 
 	@Override
@@ -37,14 +67,74 @@ public class NettyWebSocketOutboundMessageHandler extends AbstractMessageHandler
 
 	@Override
 	protected void handleMessageInternal(Message<?> message) throws Exception {
-		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(message);
-		headers.setMessageTypeIfNotSet(SimpMessageType.MESSAGE);
-		Map<String,List<Channel>> pathsToChannels = NettyWebSocketServer.getPathsToChannels();
-		for (Channel channel : pathsToChannels.get(path)) {
-			String messagePayload = message.getPayload().toString();
-			log.trace("Writing message {} to channel {}", messagePayload, channel.localAddress());
-			channel.write(new TextWebSocketFrame(messagePayload));
-			channel.flush();
+		if (!(subscribers instanceof NettyWebSocketPathGroup)) {
+			MessageHandler owner = NettyWebSocketSubscriptionRegistry.pathHandler(subscribers.name());
+			if (owner != null && owner != this) {
+				// the path is bound by a sink of another class loader, which applies the options of the path
+				owner.handleMessage(message);
+				return;
+			}
+			if (subscribers.getClass().getName().equals(NettyWebSocketPathGroup.class.getName())) {
+				log.warn("Path {} is bound by a sink of another class loader without handler, writing message "
+						+ "without the options of the path", subscribers.name());
+			}
+		}
+		if (subscribers instanceof NettyWebSocketPathGroup) {
+			NettyWebSocketPathGroup group = (NettyWebSocketPathGroup) subscribers;
+			NettyWebSocketPayloadStream stream = NettyWebSocketPayloadStream.of(message.getPayload(),
+					group.streamThreshold, broadcaster.allocator);
+			if (stream != null) {
+				// streamed messages are neither relayed nor traced
+				int sent = broadcaster.stream(stream, group, message.getHeaders());
+				log.trace("Streaming message to {} channels on path {}", sent, group.name());
+				return;
+			}
+		}
+		boolean local = !subscribers.isEmpty() || (subscribers instanceof NettyWebSocketPathGroup
+				&& ((NettyWebSocketPathGroup) subscribers).replayCache != null);
+		if (!local && relay == null) {
+			// nobody to send to, and nothing to keep for subscribers to come
+			return;
+		}
+		Long ingress = tracer == null ? null : message.getHeaders().get(NettyWebSocketTracer.INGRESS_HEADER, Long.class);
+		WebSocketFrame frame;
+		if (ingress == null) {
+			frame = broadcaster.encode(message.getPayload());
+		} else {
+			long dispatched = System.nanoTime();
+			frame = broadcaster.encode(message.getPayload());
+			frame = tracer.traced(frame, ingress, dispatched, System.nanoTime());
+		}
+		if (relay != null) {
+			try {
+				relay.publish(subscribers.name(), frame, relayedHeaders(message.getHeaders()));
+			} catch (RuntimeException e) {
+				// the local subscribers still get the message
+				log.error("Failed to relay message of path " + subscribers.name(), e);
+			}
+			if (!local) {
+				frame.release();
+				return;
+			}
+		}
+		int sent = broadcaster.broadcast(frame, subscribers, message.getHeaders());
+		log.trace("Wrote message to {} channels on path {}", sent, subscribers.name());
+	}
+
+	/**
+	 * @return the values of the filter headers of the path found in the message headers
+	 */
+	Map<String,String> relayedHeaders(Map<String,?> headers) {
+		if (!(subscribers instanceof NettyWebSocketPathGroup) || !((NettyWebSocketPathGroup) subscribers).filtering()) {
+			return Collections.emptyMap();
+		}
+		Map<String,String> relayed = new HashMap<String,String>();
+		for (String header : ((NettyWebSocketPathGroup) subscribers).filterHeaders) {
+			Object value = headers.get(header);
+			if (value != null) {
+				relayed.put(header, value.toString());
+			}
 		}
+		return relayed;
 	}
 }
@@ -0,0 +1,456 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The channels subscribed to the path of a sink.
+ * <p>
+ * Registered in the {@link NettyWebSocketSubscriptionRegistry} by the sink owning the path. The server
+ * handler only sees it as a plain {@link io.netty.channel.group.ChannelGroup}; adding a channel attaches
+ * a {@link NettyWebSocketSubscriber}, which batches the writes to the channel and applies the
+ * {@link SlowConsumerPolicy} of the sink.
+ * <p>
+ * If the path has filter headers, subscribers may restrict the messages they receive to given values
+ * of these headers. Filtered subscribers are indexed by the values of their first filter header, so
+ * a message is only handed to the subscribers matching it.
+ * <p>
+ * The group also collects the metrics of the path, exposed over JMX as {@link NettyWebSocketPathGroupMBean}.
+ */
+public class NettyWebSocketPathGroup extends DefaultChannelGroup implements NettyWebSocketPathGroupMBean {
+
+	public static final int DEFAULT_FLUSH_MAX_BYTES = 64 * 1024;
+
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+	public static final int DEFAULT_STREAM_CHUNK_SIZE = 64 * 1024;
+
+	final SlowConsumerPolicy slowConsumerPolicy;
+
+	final int slowConsumerQueueSize;
+
+	long flushMaxDelayNanos;
+
+	int flushMaxBytes = DEFAULT_FLUSH_MAX_BYTES;
+
+	boolean compression;
+
+	int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+	int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	int streamThreshold;
+
+	int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+
+	long streamTimeoutNanos;
+
+	volatile NettyWebSocketReplayCache replayCache;
+
+	NettyWebSocketInbound inbound;
+
+	NettyWebSocketTokenBucket.Shared messageRateLimit;
+
+	NettyWebSocketTokenBucket.Shared byteRateLimit;
+
+	List<String> filterHeaders = Collections.emptyList();
+
+	/** filtered subscribers by first filter header and value, modified while holding the lock of the index */
+	final ConcurrentMap<String,ConcurrentMap<String,Set<NettyWebSocketSubscriber>>> index =
+			new ConcurrentHashMap<String,ConcurrentMap<String,Set<NettyWebSocketSubscriber>>>();
+
+	final Set<NettyWebSocketSubscriber> unfiltered =
+			Collections.newSetFromMap(new ConcurrentHashMap<NettyWebSocketSubscriber,Boolean>());
+
+	final ConcurrentMap<Channel,NettyWebSocketSubscriber> subscribers =
+			new ConcurrentHashMap<Channel,NettyWebSocketSubscriber>();
+
+	final AtomicLong dropped = new AtomicLong();
+
+	final AtomicLong disconnected = new AtomicLong();
+
+	final AtomicLong messages = new AtomicLong();
+
+	final AtomicLong rateLimited = new AtomicLong();
+
+	final AtomicLong framesSent = new AtomicLong();
+
+	final AtomicLong bytesSent = new AtomicLong();
+
+	/** time from queueing frames for a subscriber until they are written to its socket */
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	public NettyWebSocketPathGroup(String path, SlowConsumerPolicy slowConsumerPolicy, int slowConsumerQueueSize) {
+		super(path, GlobalEventExecutor.INSTANCE);
+		this.slowConsumerPolicy = slowConsumerPolicy;
+		this.slowConsumerQueueSize = slowConsumerQueueSize;
+	}
+
+	/**
+	 * Sets how long frames may be held back to be flushed together with subsequent frames,
+	 * and the number of queued bytes that triggers a flush regardless of that delay.
+	 * With a delay of 0, every batch handed to the event loop is flushed as soon as it runs.
+	 */
+	public void setFlushPolicy(long maxDelay, TimeUnit unit, int maxBytes) {
+		this.flushMaxDelayNanos = unit.toNanos(maxDelay);
+		this.flushMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Keeps the last <code>size</code> messages broadcast to the path, or those of them not older than
+	 * <code>maxAge</code>, and replays them to new subscribers. Must be called before channels subscribe.
+	 *
+	 * @param size the number of messages to keep, 0 to disable replay
+	 * @param maxAge how long to keep messages, 0 for no limit
+	 */
+	public void setReplay(int size, long maxAge, TimeUnit unit) {
+		NettyWebSocketReplayCache previous = replayCache;
+		replayCache = size > 0 ? new NettyWebSocketReplayCache(size, maxAge, unit) : null;
+		if (previous != null) {
+			synchronized (previous) {
+				previous.clear();
+			}
+		}
+	}
+
+	/**
+	 * Sets the message headers subscribers may filter on. Must be called before channels subscribe.
+	 */
+	public void setFilterHeaders(String... headers) {
+		for (String header : headers) {
+			index.putIfAbsent(header, new ConcurrentHashMap<String,Set<NettyWebSocketSubscriber>>());
+		}
+		this.filterHeaders = Arrays.asList(headers);
+	}
+
+	boolean filtering() {
+		return !filterHeaders.isEmpty();
+	}
+
+	/**
+	 * Enables compression of messages of at least <code>threshold</code> bytes for subscribers that
+	 * negotiated the permessage-deflate extension.
+	 *
+	 * @param level the deflate compression level, 0-9
+	 */
+	public void setCompression(boolean enabled, int level, int threshold) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("compression level must be between 0 and 9: " + level);
+		}
+		this.compression = enabled;
+		this.compressionLevel = level;
+		this.compressionThreshold = threshold;
+	}
+
+	/**
+	 * Sends payloads larger than <code>threshold</code> bytes, as well as streams and resources, as
+	 * fragmented messages of <code>chunkSize</code> fragments, read while they are written. Subscribers that
+	 * fall behind a streamed message for longer than the timeout are disconnected, and those still taking
+	 * part in an earlier one miss it if they do not start it within the timeout.
+	 *
+	 * @param threshold the payload size above which payloads are streamed, 0 to send all payloads as single frame
+	 */
+	public void setStreaming(int threshold, int chunkSize, long timeout, TimeUnit unit) {
+		this.streamThreshold = threshold;
+		this.streamChunkSize = chunkSize;
+		this.streamTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Limits the messages broadcast to the path, allowing a burst of one second worth of messages and
+	 * bytes. Messages over the limit are discarded rather than queued. Must be called before messages
+	 * are broadcast.
+	 *
+	 * @param messagesPerSecond the max messages per second, 0 for no limit
+	 * @param bytesPerSecond the max bytes per second, 0 for no limit; larger messages never pass, and streamed
+	 * messages only count as message
+	 */
+	public void setRateLimit(double messagesPerSecond, double bytesPerSecond) {
+		this.messageRateLimit = messagesPerSecond > 0
+				? new NettyWebSocketTokenBucket.Shared(messagesPerSecond, Math.max(1, messagesPerSecond)) : null;
+		this.byteRateLimit = bytesPerSecond > 0
+				? new NettyWebSocketTokenBucket.Shared(bytesPerSecond, bytesPerSecond) : null;
+	}
+
+	/**
+	 * Takes a message of the given size from the rate limit of the path.
+	 *
+	 * @return false if the message is over the limit, which is counted
+	 */
+	boolean admit(int bytes) {
+		if (messageRateLimit == null && byteRateLimit == null) {
+			return true;
+		}
+		long now = System.nanoTime();
+		if ((messageRateLimit != null && !messageRateLimit.tryAcquire(1, now))
+				|| (byteRateLimit != null && bytes > 0 && !byteRateLimit.tryAcquire(bytes, now))) {
+			rateLimited.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Publishes the messages subscribers send, other than subscription updates, with the given inbound.
+	 * Must be called before channels subscribe.
+	 *
+	 * @param inbound the inbound of the path, null to read all messages as subscription updates
+	 */
+	public void setInbound(NettyWebSocketInbound inbound) {
+		this.inbound = inbound;
+	}
+
+	@Override
+	public boolean add(Channel channel) {
+		if (!super.add(channel)) {
+			return false;
+		}
+		NettyWebSocketSubscriber subscriber = new NettyWebSocketSubscriber(channel, this);
+		channel.pipeline().addLast(subscriber);
+		if (!filtering()) {
+			activate(subscriber, null);
+		}
+		// otherwise the subscriber is activated with the filter of the subscription
+		// event fired by the server handler after the handshake
+		if (!channel.isOpen()) {
+			// closed while subscribing, the close listener of the group may already have fired
+			remove(channel);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		NettyWebSocketSubscriber subscriber = subscribers.remove(o);
+		if (subscriber != null && filtering()) {
+			synchronized (index) {
+				unindex(subscriber);
+			}
+		}
+		return super.remove(o);
+	}
+
+	/**
+	 * Sets the filter of a subscriber from the given request parameters, activating the subscriber
+	 * if this is its first subscription. Parameters not naming a filter header are ignored.
+	 */
+	void subscribe(NettyWebSocketSubscriber subscriber, Map<String,List<String>> parameters) {
+		if (!filtering() || !contains(subscriber.channel)) {
+			return;
+		}
+		Map<String,Set<String>> filter = null;
+		for (String header : filterHeaders) {
+			List<String> values = parameters.get(header);
+			if (values != null && !values.isEmpty()) {
+				if (filter == null) {
+					filter = new LinkedHashMap<String,Set<String>>();
+				}
+				filter.put(header, new HashSet<String>(values));
+			}
+		}
+		activate(subscriber, filter);
+	}
+
+	/**
+	 * Starts sending messages to the subscriber, after replaying the cached messages matching its filter.
+	 */
+	void activate(NettyWebSocketSubscriber subscriber, Map<String,Set<String>> filter) {
+		NettyWebSocketReplayCache cache = replayCache;
+		if (cache == null) {
+			index(subscriber, filter);
+			return;
+		}
+		// no message can be broadcast between the replay and the subscription
+		synchronized (cache) {
+			boolean replay = !subscribers.containsKey(subscriber.channel);
+			index(subscriber, filter);
+			if (replay) {
+				cache.replay(subscriber);
+			}
+		}
+	}
+
+	void index(NettyWebSocketSubscriber subscriber, Map<String,Set<String>> filter) {
+		if (filtering()) {
+			synchronized (index) {
+				unindex(subscriber);
+				subscriber.filter = filter;
+				if (filter == null) {
+					unfiltered.add(subscriber);
+				} else {
+					Map.Entry<String,Set<String>> primary = filter.entrySet().iterator().next();
+					ConcurrentMap<String,Set<NettyWebSocketSubscriber>> byValue = index.get(primary.getKey());
+					for (String value : primary.getValue()) {
+						Set<NettyWebSocketSubscriber> matching = byValue.get(value);
+						if (matching == null) {
+							matching = Collections.newSetFromMap(new ConcurrentHashMap<NettyWebSocketSubscriber,Boolean>());
+							byValue.put(value, matching);
+						}
+						matching.add(subscriber);
+					}
+				}
+			}
+		}
+		subscribers.put(subscriber.channel, subscriber);
+	}
+
+	void unindex(NettyWebSocketSubscriber subscriber) {
+		Map<String,Set<String>> filter = subscriber.filter;
+		if (filter == null) {
+			unfiltered.remove(subscriber);
+			return;
+		}
+		Map.Entry<String,Set<String>> primary = filter.entrySet().iterator().next();
+		ConcurrentMap<String,Set<NettyWebSocketSubscriber>> byValue = index.get(primary.getKey());
+		for (String value : primary.getValue()) {
+			Set<NettyWebSocketSubscriber> matching = byValue.get(value);
+			if (matching != null) {
+				matching.remove(subscriber);
+				if (matching.isEmpty()) {
+					byValue.remove(value, matching);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the backlogs of the subscribers to be written, then sends every channel a close frame
+	 * and closes it once the frame is written. Channels still open at the timeout are closed right away.
+	 *
+	 * @return false if the timeout elapsed before all channels were closed
+	 */
+	public boolean closeGracefully(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			while (getPendingBytes() > 0 && deadline - System.nanoTime() > 0) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<ChannelFuture> closed = new ArrayList<ChannelFuture>(size());
+		for (Channel channel : this) {
+			closed.add(channel.closeFuture());
+			channel.writeAndFlush(new CloseWebSocketFrame(1001, "going away")).addListener(ChannelFutureListener.CLOSE);
+		}
+		boolean graceful = true;
+		for (ChannelFuture future : closed) {
+			if (!future.awaitUninterruptibly(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				graceful = false;
+			}
+		}
+		if (!graceful) {
+			close().awaitUninterruptibly();
+		}
+		return graceful;
+	}
+
+	public Collection<NettyWebSocketSubscriber> subscribers() {
+		return subscribers.values();
+	}
+
+	@Override
+	public String getPath() {
+		return name();
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return size();
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.get();
+	}
+
+	@Override
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getPendingBytes() {
+		long pending = 0;
+		for (NettyWebSocketSubscriber subscriber : subscribers.values()) {
+			pending += subscriber.queuedBytes.get();
+		}
+		return pending;
+	}
+
+	/**
+	 * @return the number of messages discarded for slow subscribers
+	 */
+	@Override
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of messages discarded as they exceeded the rate limit of the path
+	 */
+	@Override
+	public long getRateLimitedMessages() {
+		return rateLimited.get();
+	}
+
+	/**
+	 * @return the number of slow subscribers that were disconnected
+	 */
+	@Override
+	public long getDisconnectedSubscribers() {
+		return disconnected.get();
+	}
+
+	@Override
+	public long getWriteLatencyMeanMicros() {
+		return writeLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getWriteLatencyP50Micros() {
+		return writeLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getWriteLatencyP99Micros() {
+		return writeLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getWriteLatencyP999Micros() {
+		return writeLatency.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public long getWriteLatencyMaxMicros() {
+		return writeLatency.getMaxMicros();
+	}
+}
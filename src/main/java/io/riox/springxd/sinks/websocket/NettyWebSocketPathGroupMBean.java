@@ -0,0 +1,44 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the subscribers of a sink path.
+ */
+public interface NettyWebSocketPathGroupMBean {
+
+	String getPath();
+
+	int getActiveConnections();
+
+	/**
+	 * @return the number of messages broadcast to the path
+	 */
+	long getMessages();
+
+	/**
+	 * @return the number of frames written to subscribers
+	 */
+	long getFramesSent();
+
+	long getBytesSent();
+
+	/**
+	 * @return the bytes queued for subscribers that are not yet handed to netty
+	 */
+	long getPendingBytes();
+
+	long getDroppedMessages();
+
+	long getRateLimitedMessages();
+
+	long getDisconnectedSubscribers();
+
+	long getWriteLatencyMeanMicros();
+
+	long getWriteLatencyP50Micros();
+
+	long getWriteLatencyP99Micros();
+
+	long getWriteLatencyP999Micros();
+
+	long getWriteLatencyMaxMicros();
+}
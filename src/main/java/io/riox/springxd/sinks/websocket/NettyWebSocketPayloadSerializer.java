@@ -0,0 +1,27 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Turns message payloads that are neither binary nor text into frame content.
+ * <p>
+ * Implementations are configured per sink through the <code>payloadSerializer</code> option and need
+ * a public no-arg constructor. They must be thread safe.
+ */
+public interface NettyWebSocketPayloadSerializer {
+
+	/**
+	 * @return a buffer holding the serialized payload, owned by the caller
+	 */
+	ByteBuf serialize(Object payload, ByteBufAllocator allocator) throws Exception;
+
+	/**
+	 * Serializes payloads as the UTF-8 encoding of their <code>toString()</code>.
+	 */
+	NettyWebSocketPayloadSerializer TO_STRING = new NettyWebSocketPayloadSerializer() {
+		public ByteBuf serialize(Object payload, ByteBufAllocator allocator) {
+			return NettyWebSocketBroadcaster.encodeUtf8(payload.toString(), allocator);
+		}
+	};
+}
@@ -0,0 +1,220 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * The content of a message payload read chunk by chunk, so that large payloads can be sent as
+ * fragmented message without holding them in memory as a whole.
+ * <p>
+ * Streams of in-memory payloads hand out slices of the payload, or encode a character range per
+ * chunk; streams of {@link InputStream} and {@link Resource} payloads read one chunk at a time.
+ */
+public abstract class NettyWebSocketPayloadStream {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketPayloadStream.class);
+
+	/**
+	 * Returns a stream of the payload if it is to be sent in fragments: streams and resources of unknown
+	 * length or longer than the threshold, and in-memory payloads longer than the threshold.
+	 *
+	 * @param threshold the payload size in bytes above which payloads are streamed, 0 to stream none
+	 * @return null if the payload is to be sent as single frame
+	 */
+	public static NettyWebSocketPayloadStream of(Object payload, int threshold, ByteBufAllocator allocator)
+			throws IOException {
+		if (threshold <= 0) {
+			return null;
+		}
+		if (payload instanceof InputStream) {
+			return new InputStreamPayload((InputStream) payload, allocator);
+		}
+		if (payload instanceof Resource) {
+			Resource resource = (Resource) payload;
+			// the length of an input stream resource is only known after reading it
+			long length = resource instanceof InputStreamResource ? -1 : resource.contentLength();
+			return length >= 0 && length <= threshold ? null
+					: new InputStreamPayload(resource.getInputStream(), allocator);
+		}
+		if (payload instanceof byte[]) {
+			return ((byte[]) payload).length > threshold
+					? new BufferPayload(Unpooled.wrappedBuffer((byte[]) payload)) : null;
+		}
+		if (payload instanceof ByteBuffer) {
+			return ((ByteBuffer) payload).remaining() > threshold
+					? new BufferPayload(Unpooled.wrappedBuffer((ByteBuffer) payload)) : null;
+		}
+		if (payload instanceof ByteBuf) {
+			ByteBuf buf = (ByteBuf) payload;
+			return buf.readableBytes() > threshold ? new BufferPayload(buf.duplicate().retain()) : null;
+		}
+		if (payload instanceof CharSequence) {
+			// at most three bytes per char, so shorter payloads cannot exceed the threshold
+			CharSequence chars = (CharSequence) payload;
+			return chars.length() > threshold / 3 && NettyWebSocketBroadcaster.utf8Length(chars) > threshold
+					? new CharSequencePayload(chars, allocator) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the whole stream into a buffer, for streams not sent in fragments.
+	 *
+	 * @return a buffer owned by the caller
+	 */
+	static ByteBuf readFully(InputStream in, ByteBufAllocator allocator) throws IOException {
+		ByteBuf buf = allocator.buffer();
+		try {
+			while (buf.writeBytes(in, Math.max(buf.writableBytes(), 8192)) >= 0) {
+				// read on
+			}
+			return buf;
+		} catch (IOException e) {
+			buf.release();
+			throw e;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return whether the payload is binary, which {@link NettyWebSocketBroadcaster.PayloadMode#AUTO}
+	 * sends as binary message
+	 */
+	public abstract boolean binary();
+
+	/**
+	 * Reads the next chunk of the payload.
+	 *
+	 * @return a buffer of at most <code>maxBytes</code>, owned by the caller, or null at the end of the payload
+	 */
+	public abstract ByteBuf read(int maxBytes) throws IOException;
+
+	/**
+	 * Releases the payload, whether or not it was read to the end.
+	 */
+	public abstract void close();
+
+	static final class InputStreamPayload extends NettyWebSocketPayloadStream {
+
+		final InputStream in;
+
+		final ByteBufAllocator allocator;
+
+		InputStreamPayload(InputStream in, ByteBufAllocator allocator) {
+			this.in = in;
+			this.allocator = allocator;
+		}
+
+		@Override
+		public boolean binary() {
+			return true;
+		}
+
+		@Override
+		public ByteBuf read(int maxBytes) throws IOException {
+			ByteBuf chunk = allocator.buffer(maxBytes);
+			try {
+				while (chunk.isWritable()) {
+					if (chunk.writeBytes(in, chunk.writableBytes()) < 0) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				chunk.release();
+				throw e;
+			}
+			if (!chunk.isReadable()) {
+				chunk.release();
+				return null;
+			}
+			return chunk;
+		}
+
+		@Override
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.debug("Cannot close streamed payload: {}", e.toString());
+			}
+		}
+	}
+
+	static final class BufferPayload extends NettyWebSocketPayloadStream {
+
+		final ByteBuf buf;
+
+		BufferPayload(ByteBuf buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public boolean binary() {
+			return true;
+		}
+
+		@Override
+		public ByteBuf read(int maxBytes) {
+			if (!buf.isReadable()) {
+				return null;
+			}
+			return buf.readSlice(Math.min(maxBytes, buf.readableBytes())).retain();
+		}
+
+		@Override
+		public void close() {
+			buf.release();
+		}
+	}
+
+	static final class CharSequencePayload extends NettyWebSocketPayloadStream {
+
+		final CharSequence chars;
+
+		final ByteBufAllocator allocator;
+
+		int position;
+
+		CharSequencePayload(CharSequence chars, ByteBufAllocator allocator) {
+			this.chars = chars;
+			this.allocator = allocator;
+		}
+
+		@Override
+		public boolean binary() {
+			return false;
+		}
+
+		/**
+		 * Encodes the next chars fitting into <code>maxBytes</code>, never splitting a surrogate pair.
+		 */
+		@Override
+		public ByteBuf read(int maxBytes) {
+			if (position == chars.length()) {
+				return null;
+			}
+			int end = Math.min(chars.length(), position + Math.max(1, maxBytes / 3));
+			if (end < chars.length() && Character.isHighSurrogate(chars.charAt(end - 1)) && end - 1 > position) {
+				end--;
+			}
+			ByteBuf chunk = NettyWebSocketBroadcaster.encodeUtf8(chars.subSequence(position, end), allocator);
+			position = end;
+			return chunk;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.Map;
+
+/**
+ * Relays the messages of a sink path between the XD containers running instances of the stream, so
+ * that every container broadcasts every message to its local subscribers, and clients may connect to
+ * any container.
+ * <p>
+ * Each sink instance publishes the messages it receives itself once to the relay, and broadcasts the
+ * messages relayed from the other instances. Implementations are configured per sink through the
+ * <code>relay</code> option and need a public no-arg constructor, unless they are the built in
+ * {@link NettyWebSocketTcpRelay}. They must deliver each message at most once per instance and never
+ * back to the instance that published it.
+ */
+public interface NettyWebSocketRelay {
+
+	/**
+	 * Receives the messages published by the other instances.
+	 */
+	interface Listener {
+
+		/**
+		 * Called with a message published by another instance.
+		 *
+		 * @param frame the encoded message, owned by the listener
+		 * @param headers the values of the filter headers of the message
+		 */
+		void relayed(String path, WebSocketFrame frame, Map<String,String> headers);
+	}
+
+	/**
+	 * Connects to the other instances and starts delivering their messages to the listener.
+	 */
+	void start(Listener listener) throws Exception;
+
+	/**
+	 * Publishes a message to the other instances. The frame stays owned by the caller, so
+	 * implementations have to copy or retain its content before returning.
+	 *
+	 * @param headers the values of the filter headers of the message
+	 */
+	void publish(String path, WebSocketFrame frame, Map<String,String> headers);
+
+	/**
+	 * Sends the messages still batched and disconnects from the other instances.
+	 */
+	void stop();
+}
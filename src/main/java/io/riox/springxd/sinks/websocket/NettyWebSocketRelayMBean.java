@@ -0,0 +1,19 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the relay of a sink path.
+ */
+public interface NettyWebSocketRelayMBean {
+
+	long getPublishedMessages();
+
+	long getRelayedMessages();
+
+	long getDuplicateMessages();
+
+	long getBatchesSent();
+
+	long getBatchesDropped();
+
+	int getConnectedPeers();
+}
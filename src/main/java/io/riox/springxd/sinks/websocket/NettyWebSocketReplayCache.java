@@ -0,0 +1,122 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring buffer of the last messages broadcast to a path, replayed to new subscribers so that they
+ * do not have to wait for the next message.
+ * <p>
+ * Messages are kept encoded, as retained duplicates of the broadcast frame content, and are evicted
+ * once the buffer is full or they are older than the max age. Callers synchronize on the cache to
+ * keep broadcasting and replaying in order.
+ * <p>
+ * The headers of the messages are kept as well, so that subscribers only get the messages
+ * passing their filter replayed.
+ */
+public class NettyWebSocketReplayCache {
+
+	final ByteBuf[] contents;
+
+	final boolean[] binary;
+
+	final long[] timestamps;
+
+	final Object[] headers;
+
+	final long maxAgeNanos;
+
+	/** index of the oldest message */
+	int head;
+
+	int size;
+
+	/**
+	 * @param capacity the number of messages to keep
+	 * @param maxAge how long to keep messages, 0 to keep them until they are replaced
+	 */
+	public NettyWebSocketReplayCache(int capacity, long maxAge, TimeUnit unit) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("replay cache capacity must be positive: " + capacity);
+		}
+		this.contents = new ByteBuf[capacity];
+		this.binary = new boolean[capacity];
+		this.timestamps = new long[capacity];
+		this.headers = new Object[capacity];
+		this.maxAgeNanos = unit.toNanos(maxAge);
+	}
+
+	/**
+	 * Caches the content of the given (uncompressed) frame; the frame itself is not released.
+	 */
+	public void add(WebSocketFrame frame) {
+		add(frame, null);
+	}
+
+	/**
+	 * Caches the content of the given frame together with the headers of its message.
+	 */
+	public void add(WebSocketFrame frame, Map<String,?> messageHeaders) {
+		long now = System.nanoTime();
+		evictExpired(now);
+		if (size == contents.length) {
+			evictOldest();
+		}
+		int tail = (head + size) % contents.length;
+		contents[tail] = frame.content().duplicate().retain();
+		binary[tail] = frame instanceof BinaryWebSocketFrame;
+		timestamps[tail] = now;
+		headers[tail] = messageHeaders;
+		size++;
+	}
+
+	/**
+	 * Sends the cached messages matching its filter, oldest first, to the given subscriber.
+	 */
+	@SuppressWarnings("unchecked")
+	public void replay(NettyWebSocketSubscriber subscriber) {
+		evictExpired(System.nanoTime());
+		for (int i = 0; i < size; i++) {
+			int index = (head + i) % contents.length;
+			if (!subscriber.matches((Map<String,?>) headers[index])) {
+				continue;
+			}
+			ByteBuf content = contents[index].duplicate().retain();
+			subscriber.send(binary[index] ? new BinaryWebSocketFrame(content) : new TextWebSocketFrame(content));
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Releases all cached messages.
+	 */
+	public void clear() {
+		while (size > 0) {
+			evictOldest();
+		}
+	}
+
+	void evictExpired(long now) {
+		if (maxAgeNanos > 0) {
+			while (size > 0 && now - timestamps[head] > maxAgeNanos) {
+				evictOldest();
+			}
+		}
+	}
+
+	void evictOldest() {
+		contents[head].release();
+		contents[head] = null;
+		headers[head] = null;
+		head = (head + 1) % contents.length;
+		size--;
+	}
+}
@@ -17,20 +17,24 @@ package io.riox.springxd.sinks.websocket;
 
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.Channel;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.security.cert.CertificateException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import javax.annotation.PreDestroy;
 import javax.net.ssl.SSLException;
@@ -41,6 +45,9 @@ import org.slf4j.LoggerFactory;
 /**
  * simple websocket server implementation based on netty
  * inspired by the netty websocket server example
+ * <p>
+ * The server binds its port with the event loops of the {@link NettyWebSocketServerRuntime} of the
+ * container, so all ports share one set of I/O threads.
  *
  * @see <a href="https://github.com/netty/netty/tree/master/example/src/main/java/io/netty/example/http/websocketx/server">netty websocket server example</a>
  *
@@ -55,16 +62,77 @@ public class NettyWebSocketServer {
 
 	public static final int BOSS_GROUP_THREADS = 1;
 
+	public static final int DEFAULT_BACKLOG = 1024;
+
+	public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+
+	public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+
+	/**
+	 * The netty transport to serve connections with.
+	 */
+	public enum Transport {
+
+		/** java NIO, available everywhere */
+		NIO,
+
+		/** the native linux epoll transport, falling back to NIO if the native library cannot be loaded */
+		EPOLL
+	}
+
 	NettyWebSocketServerInitializer nettyWebSocketServerInitializer;
 
-	EventLoopGroup bossGroup = new NioEventLoopGroup(BOSS_GROUP_THREADS);
+	EventLoopGroup bossGroup;
+
+	EventLoopGroup workerGroup;
+
+	ChannelGroup listenChannels;
+
+	/** the connections accepted by the server, closed with it */
+	ChannelGroup connections;
+
+	Transport transport = Transport.NIO;
+
+	int acceptorThreads = BOSS_GROUP_THREADS;
+
+	int workerThreads;
+
+	boolean tcpNoDelay = true;
+
+	int sendBufferSize;
+
+	int backlog = DEFAULT_BACKLOG;
+
+	boolean pooledAllocator = true;
 
-	EventLoopGroup workerGroup = new NioEventLoopGroup();
+	boolean compression;
 
-	boolean ssl;
+	NettyWebSocketSsl ssl;
 
 	int port = DEFAULT_PORT;
 
+	int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+
+	int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+
+	NettyWebSocketServerMetrics metrics;
+
+	String metricsPath;
+
+	long heartbeatInterval;
+
+	long heartbeatTimeout;
+
+	int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+	double handshakeRateLimit;
+
+	double frameRateLimit;
+
+	NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+
 	// for cmdline testing
 	public static void main(String[] args) throws Exception {
 		new NettyWebSocketServer().run();
@@ -77,44 +145,222 @@ public class NettyWebSocketServer {
 		this.port = port;
 	}
 
-	@SuppressWarnings("unchecked")
-	static synchronized Map<String,List<Channel>> getPathsToChannels() {
-		String key = "__NETTY_WEBSOCKET_PATHS_TO_CHANNELS__";
-		Map<String,List<Channel>> map = (Map<String,List<Channel>>) System.getProperties().get(key);
-		if(map == null) {
-			map = Collections.synchronizedMap(new HashMap<String,List<Channel>>());
-			System.getProperties().put(key, map);
+	/**
+	 * @return the connection metrics of the server, available once it runs
+	 */
+	public NettyWebSocketServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the outbound buffer sizes at which a connection turns unwritable, and writable again.
+	 */
+	public void setWriteBufferWaterMarks(int low, int high) {
+		if (low > high) {
+			throw new IllegalArgumentException("write buffer low water mark " + low +
+					" must not exceed high water mark " + high);
 		}
-		return map;
+		this.writeBufferLowWaterMark = low;
+		this.writeBufferHighWaterMark = high;
+	}
+
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the number of acceptor threads. With the epoll transport, each acceptor binds its own
+	 * listen socket to the port using <code>SO_REUSEPORT</code>, so the kernel spreads new connections
+	 * across them; with NIO there is always a single acceptor.
+	 */
+	public void setAcceptorThreads(int acceptorThreads) {
+		this.acceptorThreads = acceptorThreads;
+	}
+
+	/**
+	 * Sets the number of I/O threads, 0 for netty's default of twice the number of cores.
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * Sets <code>SO_SNDBUF</code> of accepted connections, 0 to keep the OS default.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	public void setPooledAllocator(boolean pooledAllocator) {
+		this.pooledAllocator = pooledAllocator;
+	}
+
+	/**
+	 * Serves TLS connections with the given settings, null for plain connections.
+	 */
+	public void setSsl(NettyWebSocketSsl ssl) {
+		this.ssl = ssl;
+	}
+
+	/**
+	 * Sets whether clients may negotiate the permessage-deflate extension.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a connection may be silent before it is pinged, and how long it
+	 * then has to answer before it is closed. An interval of 0 disables the heartbeat.
+	 */
+	public void setHeartbeat(long interval, long timeout) {
+		this.heartbeatInterval = interval;
+		this.heartbeatTimeout = timeout;
+	}
+
+	/**
+	 * Sets the HTTP path serving the metrics of all websocket servers and paths as plain text,
+	 * null or empty to not serve them.
+	 */
+	public void setMetricsPath(String metricsPath) {
+		this.metricsPath = metricsPath;
+	}
+
+	/**
+	 * Sets the max size in bytes of messages clients send, of a single frame as well as of
+	 * a fragmented message.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Limits the handshakes and the frames per second of each client IP address; handshakes over the
+	 * limit are answered with 429, frames over the limit are discarded. 0 disables a limit.
+	 */
+	public void setClientRateLimits(double handshakesPerSecond, double framesPerSecond) {
+		this.handshakeRateLimit = handshakesPerSecond;
+		this.frameRateLimit = framesPerSecond;
+	}
+
+	/**
+	 * Sets the admission control deciding whether handshakes are accepted.
+	 */
+	public void setAdmission(NettyWebSocketAdmission admission) {
+		this.admission = admission;
 	}
 
 	public void run() throws SSLException, CertificateException, InterruptedException {
 		// Configure SSL.
-		final SslContext sslCtx;
-		if (ssl) {
-			SelfSignedCertificate ssc = new SelfSignedCertificate();
-			sslCtx = SslContext.newServerContext(ssc.certificate(), ssc.privateKey());
-		} else {
-			sslCtx = null;
-		}
+		final SslContext sslCtx = ssl != null ? ssl.newContext() : null;
+
+		listenChannels = new DefaultChannelGroup("port-" + port, GlobalEventExecutor.INSTANCE);
+		connections = new DefaultChannelGroup("connections-" + port, GlobalEventExecutor.INSTANCE);
+		EventLoopGroup[] eventLoops = NettyWebSocketServerRuntime.acquire(port, listenChannels, new Runnable() {
+			public void run() {
+				close();
+			}
+		}, transport, acceptorThreads, workerThreads);
+		bossGroup = eventLoops[0];
+		workerGroup = eventLoops[1];
+		// the transport of the shared event loops, which may differ from the one asked for
+		boolean epoll = bossGroup instanceof EpollEventLoopGroup;
+		Class<? extends ServerChannel> channelClass = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+		ByteBufAllocator allocator = pooledAllocator ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+		metrics = new NettyWebSocketServerMetrics(port);
+		metrics.workerGroup = workerGroup;
+		metrics.httpPath = metricsPath == null || metricsPath.isEmpty() ? null : metricsPath;
+		metrics.admission = admission;
 
-		new ServerBootstrap().group(bossGroup, workerGroup)
-				.channel(NioServerSocketChannel.class)
+		nettyWebSocketServerInitializer = new NettyWebSocketServerInitializer(sslCtx, compression, metrics);
+		nettyWebSocketServerInitializer.setHeartbeat(heartbeatInterval, heartbeatTimeout);
+		nettyWebSocketServerInitializer.setMaxMessageSize(maxMessageSize);
+		nettyWebSocketServerInitializer.setAdmission(admission);
+		nettyWebSocketServerInitializer.setConnections(connections);
+		if (handshakeRateLimit > 0 || frameRateLimit > 0) {
+			nettyWebSocketServerInitializer.setRateLimiter(
+					new NettyWebSocketClientRateLimiter(handshakeRateLimit, frameRateLimit));
+		}
+		if (sslCtx != null) {
+			nettyWebSocketServerInitializer.setSslProtocols(ssl.enabledProtocols(sslCtx));
+		}
+		ServerBootstrap bootstrap = new ServerBootstrap().group(bossGroup, workerGroup)
+				.channel(channelClass)
 				.handler(new LoggingHandler(LogLevel.INFO))
-				.childHandler(new NettyWebSocketServerInitializer(sslCtx))
-				.bind(port)
-				.sync()
-				.channel();
+				.childHandler(nettyWebSocketServerInitializer)
+				.option(ChannelOption.SO_BACKLOG, backlog)
+				.option(ChannelOption.ALLOCATOR, allocator)
+				.childOption(ChannelOption.ALLOCATOR, allocator)
+				.childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+		if (sendBufferSize > 0) {
+			bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+		}
+		// netty rejects a high water mark below the current low water mark (and vice versa),
+		// so the order the options are applied in depends on the direction of the change
+		if (writeBufferHighWaterMark >= DEFAULT_WRITE_BUFFER_LOW_WATER_MARK) {
+			bootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark)
+					.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+		} else {
+			bootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark)
+					.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+		}
+		int acceptors = 1;
+		if (epoll && acceptorThreads > 1) {
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+			acceptors = acceptorThreads;
+		} else if (acceptorThreads > 1) {
+			log.info("Multiple acceptors require the epoll transport, binding a single acceptor");
+		}
+		boolean bound = false;
+		try {
+			for (int i = 0; i < acceptors; i++) {
+				listenChannels.add(bootstrap.bind(port)
+						.sync()
+						.channel());
+			}
+			bound = true;
+		} finally {
+			if (!bound) {
+				shutdown();
+			}
+		}
 
+		admission.start(workerGroup);
+		NettyWebSocketJmx.register(metrics, NettyWebSocketJmx.serverName(port));
 
 		log.info("************************************************");
-		log.info("Started netty websocket server on port {}", port);
+		log.info("Started netty websocket server on port {} ({} transport, {} acceptors)",
+				port, epoll ? "epoll" : "nio", acceptors);
 		log.info("************************************************");
 	}
 
+	/**
+	 * Closes the connections of this server and stops its admission control when its port is unbound,
+	 * as their handlers and tasks belong to the class loader of the sink that started it.
+	 */
+	void close() {
+		admission.stop();
+		// not awaited, the connections close on their event loops while the listen channels are closed
+		connections.close();
+	}
+
+	/**
+	 * Unbinds the port of this server; the shared event loops are shut down with the last port.
+	 */
 	@PreDestroy
 	public void shutdown() {
-		bossGroup.shutdownGracefully();
-		workerGroup.shutdownGracefully();
+		if (listenChannels != null) {
+			listenChannels = null;
+			admission.stop();
+			NettyWebSocketServerRuntime.unbind(port);
+		}
 	}
 }
@@ -15,23 +15,27 @@
  */
 package io.riox.springxd.sinks.websocket;
 
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.HOST;
 import static io.netty.handler.codec.http.HttpMethod.GET;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
@@ -41,8 +45,8 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.util.CharsetUtil;
 
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,12 +60,78 @@ public class NettyWebSocketServerHandler extends SimpleChannelInboundHandler<Obj
 
 	private static final String WEBSOCKET_PATH = "/websocket";
 
+	static final HttpResponseStatus TOO_MANY_REQUESTS = new HttpResponseStatus(429, "Too Many Requests");
+
+	/** bounds the cache, as the host the locations are built from is sent by the client */
+	static final int MAX_HANDSHAKER_FACTORIES = 256;
+
+	/** handshaker factories by location, for clients offering compression or not */
+	static final ConcurrentMap<String,WebSocketServerHandshakerFactory> handshakerFactories =
+			new ConcurrentHashMap<String,WebSocketServerHandshakerFactory>();
+
 	private WebSocketServerHandshaker handshaker;
 
 	private boolean ssl;
 
+	private boolean compression;
+
+	private final NettyWebSocketServerMetrics metrics;
+
+	private int maxMessageSize = NettyWebSocketServer.DEFAULT_MAX_MESSAGE_SIZE;
+
+	private NettyWebSocketClientRateLimiter rateLimiter;
+
+	private NettyWebSocketAdmission admission;
+
 	public NettyWebSocketServerHandler(boolean ssl) {
+		this(ssl, false);
+	}
+
+	public NettyWebSocketServerHandler(boolean ssl, boolean compression) {
+		this(ssl, compression, new NettyWebSocketServerMetrics(0));
+	}
+
+	/**
+	 * @param compression whether to accept the permessage-deflate extension if a client offers it
+	 * @param metrics the metrics of the server, counting connections and handshakes
+	 */
+	public NettyWebSocketServerHandler(boolean ssl, boolean compression, NettyWebSocketServerMetrics metrics) {
 		this.ssl = ssl;
+		this.compression = compression;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the max size in bytes of frames sent by clients.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Sets the limiter of the handshakes and frames per client address, null for no limits.
+	 */
+	public void setRateLimiter(NettyWebSocketClientRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the admission control consulted before every handshake, null to accept all.
+	 */
+	public void setAdmission(NettyWebSocketAdmission admission) {
+		this.admission = admission;
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		metrics.connections.incrementAndGet();
+		super.channelActive(ctx);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		metrics.connections.decrementAndGet();
+		super.channelInactive(ctx);
 	}
 
 	@Override
@@ -82,6 +152,7 @@ public class NettyWebSocketServerHandler extends SimpleChannelInboundHandler<Obj
 		// Handle a bad request.
 		if (!req.getDecoderResult().isSuccess()) {
 			log.warn("Bad request: {}", req.getUri());
+			metrics.handshakeFailures.incrementAndGet();
 			sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST));
 			return;
 		}
@@ -89,29 +160,65 @@ public class NettyWebSocketServerHandler extends SimpleChannelInboundHandler<Obj
 		// Allow only GET methods.
 		if (req.getMethod() != GET) {
 			log.warn("Unsupported HTTP method: {}", req.getMethod());
+			metrics.handshakeFailures.incrementAndGet();
 			sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HTTP_1_1, FORBIDDEN));
 			return;
 		}
 
+		if (req.getUri().equals(metrics.httpPath)) {
+			ByteBuf content = Unpooled.copiedBuffer(NettyWebSocketJmx.dump(), CharsetUtil.UTF_8);
+			FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, OK, content);
+			res.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
+			HttpHeaders.setContentLength(res, content.readableBytes());
+			sendHttpResponse(ctx, req, res);
+			return;
+		}
+
 		if (!additionalHttpRequestHandler(ctx, req)) {
 			return;
 		}
 
-		// Handshake
-		WebSocketServerHandshakerFactory wsFactory
-				= new WebSocketServerHandshakerFactory(getWebSocketLocation(req), null, true);
+		if (rateLimiter != null && !rateLimiter.tryHandshake(ctx.channel().remoteAddress())) {
+			log.debug("Refusing handshake of {}, too many handshakes", ctx.channel().remoteAddress());
+			metrics.rateLimitedHandshakes.incrementAndGet();
+			sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HTTP_1_1, TOO_MANY_REQUESTS));
+			return;
+		}
+
+		QueryStringDecoder uri = new QueryStringDecoder(req.getUri());
+		String refusal = admission == null ? null : admission.refusal(uri.path(), metrics.connections.get());
+		if (refusal != null) {
+			log.debug("Refusing handshake of {} to path {}: {}", ctx.channel().remoteAddress(), uri.path(), refusal);
+			metrics.refusedHandshakes.incrementAndGet();
+			sendHttpResponse(ctx, req, admission.refuse(req));
+			return;
+		}
 
-		handshaker = wsFactory.newHandshaker(req);
+		// Handshake
+		handshaker = handshakerFactory(getWebSocketLocation(req), compression, maxMessageSize).newHandshaker(req);
 		if (handshaker == null) {
+			metrics.handshakeFailures.incrementAndGet();
 			WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
 		} else {
-			handshaker.handshake(ctx.channel(), req);
-			Map<String,List<Channel>> pathsToChannels = NettyWebSocketServer.getPathsToChannels();
-			List<Channel> existing = pathsToChannels.get(req.getUri());
-			if(existing == null) {
+			String extensions = compression
+					? PerMessageDeflate.negotiate(req.headers().get(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS))
+					: null;
+			if (extensions == null) {
+				handshaker.handshake(ctx.channel(), req);
+			} else {
+				HttpHeaders responseHeaders = new DefaultHttpHeaders();
+				responseHeaders.add(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS, extensions);
+				handshaker.handshake(ctx.channel(), req, responseHeaders, ctx.channel().newPromise());
+				ctx.pipeline().addBefore(ctx.name(), PerMessageDeflate.DECODER_NAME, new PerMessageDeflateDecoder());
+			}
+			if (!NettyWebSocketSubscriptionRegistry.subscribe(uri.path(), ctx.channel())) {
+				metrics.handshakeFailures.incrementAndGet();
 				sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND));
 			} else {
-				existing.add(ctx.channel());
+				metrics.handshakes.incrementAndGet();
+				// lets the heartbeat know the connection is a websocket, and the subscriber
+				// of the path pick its filter from the query parameters
+				ctx.pipeline().fireUserEventTriggered(uri);
 			}
 		}
 	}
@@ -124,27 +231,55 @@ public class NettyWebSocketServerHandler extends SimpleChannelInboundHandler<Obj
 			handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
 			return;
 		}
+		if (frame instanceof PongWebSocketFrame) {
+			// answer to a heartbeat ping
+			return;
+		}
+		if (rateLimiter != null && !rateLimiter.tryFrame(ctx.channel().remoteAddress())) {
+			metrics.rateLimitedFrames.incrementAndGet();
+			return;
+		}
 		if (frame instanceof PingWebSocketFrame) {
 			ctx.channel().write(new PongWebSocketFrame(frame.content().retain()));
 			return;
 		}
 		if (!(frame instanceof TextWebSocketFrame)) {
-			throw new UnsupportedOperationException(String.format("%s frame types not supported", frame.getClass()
-					.getName()));
+			// binary messages, published by paths with an inbound
+			ctx.fireChannelRead(frame.retain());
+			return;
 		}
 
 		handleTextWebSocketFrameInternal((TextWebSocketFrame) frame, ctx);
 	}
 
+	/**
+	 * Returns the cached handshaker factory of the given location, creating it on first use. The factories
+	 * are immutable, so all connections share them.
+	 */
+	static WebSocketServerHandshakerFactory handshakerFactory(String location, boolean compression, int maxFrameSize) {
+		String key = (compression ? "+" : "") + maxFrameSize + location;
+		WebSocketServerHandshakerFactory factory = handshakerFactories.get(key);
+		if (factory == null) {
+			factory = new WebSocketServerHandshakerFactory(location, null, compression, maxFrameSize);
+			if (handshakerFactories.size() < MAX_HANDSHAKER_FACTORIES) {
+				handshakerFactories.putIfAbsent(key, factory);
+			}
+		}
+		return factory;
+	}
+
 	protected boolean additionalHttpRequestHandler(ChannelHandlerContext ctx, FullHttpRequest req) {
 		// implement other HTTP request logic
 		return true; // continue processing
 	}
 
-	// simple echo implementation
+	// hands text frames on to the subscriber of the path, which reads them as subscription updates
 	protected void handleTextWebSocketFrameInternal(TextWebSocketFrame frame, ChannelHandlerContext ctx) {
-		log.debug("%s received %s%n", ctx.channel(), frame.text());
-		ctx.channel().write(new TextWebSocketFrame("You said: " + frame.text()));
+		if (log.isDebugEnabled()) {
+			// decoding the text is only worth it when it is logged
+			log.debug("{} received {}", ctx.channel(), frame.text());
+		}
+		ctx.fireChannelRead(frame.retain());
 	}
 
 	void sendHttpResponse(ChannelHandlerContext ctx, FullHttpRequest req, FullHttpResponse res) {
@@ -15,40 +15,135 @@
  */
 package io.riox.springxd.sinks.websocket;
 
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.util.concurrent.TimeUnit;
 
 public class NettyWebSocketServerInitializer extends
 		ChannelInitializer<SocketChannel> {
 
 	private final SslContext sslCtx;
-	private static final String HANDLER_CLASS = NettyWebSocketServerHandler.class
-			.getName();
+
+	private final boolean compression;
+
+	private final NettyWebSocketServerMetrics metrics;
+
+	private long heartbeatInterval;
+
+	private long heartbeatTimeout;
+
+	private String[] sslProtocols;
+
+	private int maxMessageSize = NettyWebSocketServer.DEFAULT_MAX_MESSAGE_SIZE;
+
+	private NettyWebSocketClientRateLimiter rateLimiter;
+
+	private NettyWebSocketAdmission admission;
+
+	private ChannelGroup connections;
 
 	public NettyWebSocketServerInitializer(SslContext sslCtx) {
+		this(sslCtx, false);
+	}
+
+	public NettyWebSocketServerInitializer(SslContext sslCtx, boolean compression) {
+		this(sslCtx, compression, new NettyWebSocketServerMetrics(0));
+	}
+
+	public NettyWebSocketServerInitializer(SslContext sslCtx, boolean compression, NettyWebSocketServerMetrics metrics) {
 		this.sslCtx = sslCtx;
+		this.compression = compression;
+		this.metrics = metrics;
 	}
 
 	public NettyWebSocketServerInitializer() {
-		sslCtx = null;
+		this(null, false);
+	}
+
+	/**
+	 * Sets the heartbeat of the connections, in milliseconds; an interval of 0 disables it.
+	 *
+	 * @see NettyWebSocketHeartbeatHandler
+	 */
+	public void setHeartbeat(long interval, long timeout) {
+		this.heartbeatInterval = interval;
+		this.heartbeatTimeout = timeout;
+	}
+
+	/**
+	 * Sets the TLS protocols to enable on every connection, null to keep the defaults of the engine.
+	 */
+	public void setSslProtocols(String[] sslProtocols) {
+		this.sslProtocols = sslProtocols;
+	}
+
+	/**
+	 * Sets the max size in bytes of messages clients send; fragmented messages are aggregated up to this size.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Sets the limiter of the handshakes and frames per client address shared by all connections,
+	 * null for no limits.
+	 */
+	public void setRateLimiter(NettyWebSocketClientRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the admission control deciding whether handshakes are accepted, null to accept all.
+	 */
+	public void setAdmission(NettyWebSocketAdmission admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Sets the group the accepted connections are added to, null to not track them.
+	 */
+	public void setConnections(ChannelGroup connections) {
+		this.connections = connections;
 	}
 
 	@Override
 	public void initChannel(SocketChannel ch) throws Exception {
+		if (connections != null) {
+			connections.add(ch);
+		}
 		ChannelPipeline pipeline = ch.pipeline();
 		if (sslCtx != null) {
-			pipeline.addLast(sslCtx.newHandler(ch.alloc()));
+			SslHandler sslHandler = sslCtx.newHandler(ch.alloc());
+			if (sslProtocols != null) {
+				sslHandler.engine().setEnabledProtocols(sslProtocols);
+			}
+			pipeline.addLast(sslHandler);
 		}
 		pipeline.addLast(new HttpServerCodec());
 		pipeline.addLast(new HttpObjectAggregator(65536));
-		/* need to use reflection here, due to Spring XD classloader isolation */
-		Object handler = Class.forName(HANDLER_CLASS)
-				.getConstructor(boolean.class).newInstance(sslCtx != null);
-		pipeline.addLast((ChannelHandler)handler);
+		if (heartbeatInterval > 0) {
+			pipeline.addLast(new IdleStateHandler(NettyWebSocketHeartbeatHandler.checkPeriod(heartbeatInterval, heartbeatTimeout),
+					0, 0, TimeUnit.MILLISECONDS));
+			pipeline.addLast(new NettyWebSocketHeartbeatHandler(heartbeatInterval, heartbeatTimeout,
+					TimeUnit.MILLISECONDS, metrics));
+		}
+		// compressed fragments are aggregated before they are inflated, which permessage-deflate allows
+		pipeline.addLast(new WebSocketFrameAggregator(maxMessageSize));
+		// the handler class is resolved by the class loader of the initializer, as Class.forName
+		// did, so it is the class of the module that started the server
+		NettyWebSocketServerHandler handler = new NettyWebSocketServerHandler(sslCtx != null, compression, metrics);
+		handler.setMaxMessageSize(maxMessageSize);
+		handler.setRateLimiter(rateLimiter);
+		handler.setAdmission(admission);
+		pipeline.addLast(handler);
 	}
 }
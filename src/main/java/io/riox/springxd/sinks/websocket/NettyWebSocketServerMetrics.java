@@ -0,0 +1,118 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection and handshake counters of a {@link NettyWebSocketServer}, updated by its
+ * {@link NettyWebSocketServerHandler}s.
+ */
+public class NettyWebSocketServerMetrics implements NettyWebSocketServerMetricsMBean {
+
+	final int port;
+
+	final AtomicInteger connections = new AtomicInteger();
+
+	final AtomicLong handshakes = new AtomicLong();
+
+	final AtomicLong handshakeFailures = new AtomicLong();
+
+	final AtomicLong reaped = new AtomicLong();
+
+	final AtomicLong rateLimitedHandshakes = new AtomicLong();
+
+	final AtomicLong rateLimitedFrames = new AtomicLong();
+
+	final AtomicLong refusedHandshakes = new AtomicLong();
+
+	volatile EventLoopGroup workerGroup;
+
+	/** the HTTP path serving {@link NettyWebSocketJmx#dump()}, or null */
+	volatile String httpPath;
+
+	/** measures the lag of the event loops, or null */
+	volatile NettyWebSocketAdmission admission;
+
+	public NettyWebSocketServerMetrics(int port) {
+		this.port = port;
+	}
+
+	@Override
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return connections.get();
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	@Override
+	public long getHandshakeFailures() {
+		return handshakeFailures.get();
+	}
+
+	@Override
+	public long getReapedConnections() {
+		return reaped.get();
+	}
+
+	@Override
+	public long getRateLimitedHandshakes() {
+		return rateLimitedHandshakes.get();
+	}
+
+	@Override
+	public long getRateLimitedFrames() {
+		return rateLimitedFrames.get();
+	}
+
+	@Override
+	public long getRefusedHandshakes() {
+		return refusedHandshakes.get();
+	}
+
+	@Override
+	public long getEventLoopLagMicros() {
+		NettyWebSocketAdmission admission = this.admission;
+		return admission == null ? 0 : TimeUnit.NANOSECONDS.toMicros(admission.getEventLoopLagNanos());
+	}
+
+	@Override
+	public int getEventLoopPendingTasks() {
+		int pending = 0;
+		EventLoopGroup group = workerGroup;
+		if (group != null) {
+			for (EventExecutor executor : group) {
+				pending += pendingTasks(executor);
+			}
+		}
+		return pending;
+	}
+
+	@Override
+	public int getMaxEventLoopPendingTasks() {
+		int max = 0;
+		EventLoopGroup group = workerGroup;
+		if (group != null) {
+			for (EventExecutor executor : group) {
+				max = Math.max(max, pendingTasks(executor));
+			}
+		}
+		return max;
+	}
+
+	static int pendingTasks(EventExecutor executor) {
+		return executor instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor) executor).pendingTasks() : 0;
+	}
+}
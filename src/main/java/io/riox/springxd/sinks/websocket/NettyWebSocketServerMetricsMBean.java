@@ -0,0 +1,56 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * JMX view of the connections and event loops of a websocket server.
+ */
+public interface NettyWebSocketServerMetricsMBean {
+
+	int getPort();
+
+	int getActiveConnections();
+
+	/**
+	 * @return the number of completed handshakes subscribing a channel to a path
+	 */
+	long getHandshakes();
+
+	/**
+	 * @return the number of rejected or failed handshakes
+	 */
+	long getHandshakeFailures();
+
+	/**
+	 * @return the number of connections closed for not answering a ping
+	 */
+	long getReapedConnections();
+
+	/**
+	 * @return the number of handshakes refused as the client address exceeded its handshake rate
+	 */
+	long getRateLimitedHandshakes();
+
+	/**
+	 * @return the number of frames discarded as the client address exceeded its frame rate
+	 */
+	long getRateLimitedFrames();
+
+	/**
+	 * @return the number of handshakes refused or redirected by the admission control
+	 */
+	long getRefusedHandshakes();
+
+	/**
+	 * @return the largest delay of the I/O threads in running due tasks, if admission control measures it
+	 */
+	long getEventLoopLagMicros();
+
+	/**
+	 * @return the tasks waiting in the queues of all I/O threads
+	 */
+	int getEventLoopPendingTasks();
+
+	/**
+	 * @return the tasks waiting in the queue of the busiest I/O thread
+	 */
+	int getMaxEventLoopPendingTasks();
+}
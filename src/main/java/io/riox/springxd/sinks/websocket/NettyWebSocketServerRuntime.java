@@ -0,0 +1,258 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The container wide netty runtime of the websocket servers: a single pair of boss and worker event
+ * loop groups serving the listen ports of all sinks, the listen channels bound per port, and the
+ * sinks using each port.
+ * <p>
+ * Like the {@link NettyWebSocketSubscriptionRegistry}, the runtime lives in the system properties and
+ * only holds JDK and netty types, as the sinks of different streams are loaded by different XD module
+ * class loaders. The event loops are created with the settings of the first server started, and shut
+ * down once the last port is unbound.
+ * <p>
+ * The server of a port is started by its first sink, with the options and the classes of that sink.
+ * When that sink releases the port while other sinks still use it, the server is closed, along with
+ * the connections it serves, and the next sink starts its own server on the port.
+ */
+public final class NettyWebSocketServerRuntime {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketServerRuntime.class);
+
+	static final String KEY_EVENT_LOOPS = "__NETTY_WEBSOCKET_EVENT_LOOPS__";
+
+	static final String KEY_PORTS = "__NETTY_WEBSOCKET_PORTS__";
+
+	static final String KEY_PORT_USERS = "__NETTY_WEBSOCKET_PORT_USERS__";
+
+	static final String KEY_PORT_CLOSERS = "__NETTY_WEBSOCKET_PORT_CLOSERS__";
+
+	static final String KEY_PORT_OPTIONS = "__NETTY_WEBSOCKET_PORT_OPTIONS__";
+
+	static final String KEY_PENDING_BYTES = "__NETTY_WEBSOCKET_PENDING_BYTES__";
+
+	private NettyWebSocketServerRuntime() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> Map<Integer,V> map(String key) {
+		Map<Integer,V> map = (Map<Integer,V>) System.getProperties().get(key);
+		if (map == null) {
+			map = new HashMap<Integer,V>();
+			System.getProperties().put(key, map);
+		}
+		return map;
+	}
+
+	/**
+	 * Registers the listen channels of a server about to bind the given port, and returns the boss and
+	 * worker event loop groups to bind it with, creating them if this is the first port.
+	 *
+	 * @param listenChannels the group the server adds its listen channels to, closed when the port is unbound
+	 * @param closer run when the port is unbound, to close what else the server holds
+	 * @throws IllegalStateException if another server of the container is bound to the port
+	 */
+	static EventLoopGroup[] acquire(int port, ChannelGroup listenChannels, Runnable closer,
+			NettyWebSocketServer.Transport transport, int acceptorThreads, int workerThreads) {
+		synchronized (System.class) {
+			Map<Integer,ChannelGroup> ports = map(KEY_PORTS);
+			if (ports.containsKey(port)) {
+				throw new IllegalStateException("port " + port + " is already bound by a websocket server");
+			}
+			EventLoopGroup[] eventLoops = (EventLoopGroup[]) System.getProperties().get(KEY_EVENT_LOOPS);
+			if (eventLoops == null) {
+				eventLoops = transport == NettyWebSocketServer.Transport.EPOLL
+						? createEpollEventLoops(acceptorThreads, workerThreads)
+						: null;
+				if (eventLoops == null) {
+					eventLoops = new EventLoopGroup[] {
+							new NioEventLoopGroup(NettyWebSocketServer.BOSS_GROUP_THREADS),
+							new NioEventLoopGroup(workerThreads) };
+				}
+				System.getProperties().put(KEY_EVENT_LOOPS, eventLoops);
+			}
+			ports.put(port, listenChannels);
+			NettyWebSocketServerRuntime.<Runnable>map(KEY_PORT_CLOSERS).put(port, closer);
+			return eventLoops;
+		}
+	}
+
+	/**
+	 * Creates the event loops of the epoll transport.
+	 *
+	 * @return null if the native transport is not available on this platform
+	 */
+	static EventLoopGroup[] createEpollEventLoops(int acceptorThreads, int workerThreads) {
+		EventLoopGroup bossGroup = null;
+		try {
+			bossGroup = new EpollEventLoopGroup(acceptorThreads);
+			return new EventLoopGroup[] { bossGroup, new EpollEventLoopGroup(workerThreads) };
+		} catch (Throwable e) {
+			log.warn("Native epoll transport not available, falling back to NIO: {}", e.toString());
+			if (bossGroup != null) {
+				bossGroup.shutdownGracefully();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return the running count of the bytes queued for the subscribers of all paths of the container,
+	 * kept by the subscribers as they queue and write frames
+	 */
+	public static AtomicLong pendingBytes() {
+		synchronized (System.class) {
+			AtomicLong pendingBytes = (AtomicLong) System.getProperties().get(KEY_PENDING_BYTES);
+			if (pendingBytes == null) {
+				pendingBytes = new AtomicLong();
+				System.getProperties().put(KEY_PENDING_BYTES, pendingBytes);
+			}
+			return pendingBytes;
+		}
+	}
+
+	/**
+	 * Adds a sink to the users of the given port.
+	 *
+	 * @param starter starts a server on the port with the options of the sink, if the sink has to take
+	 * the port over from a sink releasing it
+	 * @return true if the port is not in use yet, in which case the caller has to start a server on it
+	 */
+	public static boolean retain(int port, Runnable starter) {
+		synchronized (System.class) {
+			Map<Integer,List<Runnable>> users = map(KEY_PORT_USERS);
+			List<Runnable> starters = users.get(port);
+			if (starters == null) {
+				starters = new ArrayList<Runnable>();
+				users.put(port, starters);
+			}
+			starters.add(starter);
+			return starters.size() == 1;
+		}
+	}
+
+	/**
+	 * Removes a sink from the users of the given port. If the sink started the server of the port, the
+	 * port is unbound, and the next user, if any, starts its own server on it.
+	 */
+	public static void release(int port, Runnable starter) {
+		Runnable next;
+		synchronized (System.class) {
+			Map<Integer,List<Runnable>> users = map(KEY_PORT_USERS);
+			List<Runnable> starters = users.get(port);
+			if (starters == null || starters.isEmpty() || !starters.contains(starter)) {
+				return;
+			}
+			boolean owner = starters.get(0) == starter;
+			starters.remove(starter);
+			if (!owner) {
+				return;
+			}
+			if (starters.isEmpty()) {
+				users.remove(port);
+				next = null;
+			} else {
+				next = starters.get(0);
+			}
+		}
+		unbind(port);
+		if (next == null) {
+			return;
+		}
+		// the server of the next user is started with its own class loader
+		log.info("Handing port {} over to the next sink using it", port);
+		next.run();
+	}
+
+	/**
+	 * Sets the options the server of the given port was started with, compared with those of the
+	 * other sinks using the port. The options are removed when the port is unbound.
+	 */
+	public static void setOptions(int port, Map<String,String> options) {
+		synchronized (System.class) {
+			map(KEY_PORT_OPTIONS).put(port, Collections.unmodifiableMap(new LinkedHashMap<String,String>(options)));
+		}
+	}
+
+	/**
+	 * @return the options the server of the given port was started with, or null if unknown
+	 */
+	public static Map<String,String> options(int port) {
+		synchronized (System.class) {
+			return NettyWebSocketServerRuntime.<Map<String,String>>map(KEY_PORT_OPTIONS).get(port);
+		}
+	}
+
+	/**
+	 * Closes the listen channels of the given port, runs the closer of its server and unregisters its
+	 * metrics. The event loops are shut down if no other port is bound. The sinks using the port are
+	 * left to {@link #release(int, Runnable)}.
+	 * <p>
+	 * The port is only removed from the runtime while holding the container wide lock; the channels are
+	 * closed afterwards, so that sinks of other streams are not held up while they close.
+	 */
+	public static void unbind(int port) {
+		ChannelGroup listenChannels;
+		Runnable closer;
+		EventLoopGroup[] eventLoops = null;
+		synchronized (System.class) {
+			map(KEY_PORT_OPTIONS).remove(port);
+			Map<Integer,ChannelGroup> ports = map(KEY_PORTS);
+			listenChannels = ports.remove(port);
+			closer = NettyWebSocketServerRuntime.<Runnable>map(KEY_PORT_CLOSERS).remove(port);
+			if (ports.isEmpty()) {
+				eventLoops = (EventLoopGroup[]) System.getProperties().remove(KEY_EVENT_LOOPS);
+			}
+		}
+		if (closer != null) {
+			closer.run();
+		}
+		if (listenChannels != null) {
+			listenChannels.close().awaitUninterruptibly();
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.serverName(port));
+			log.info("Unbound netty websocket server from port {}", port);
+		}
+		if (eventLoops != null) {
+			for (EventLoopGroup group : eventLoops) {
+				// the listen channels are closed, and the sinks closed their subscribers
+				group.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+			}
+			log.info("Shut down netty websocket event loops");
+		}
+	}
+
+	/**
+	 * @return the number of sinks using the given port
+	 */
+	public static int references(int port) {
+		synchronized (System.class) {
+			List<Runnable> starters = NettyWebSocketServerRuntime.<List<Runnable>>map(KEY_PORT_USERS).get(port);
+			return starters == null ? 0 : starters.size();
+		}
+	}
+
+	/**
+	 * @return whether a server of the container is bound to the given port
+	 */
+	public static boolean isBound(int port) {
+		synchronized (System.class) {
+			return map(KEY_PORTS).containsKey(port);
+		}
+	}
+}
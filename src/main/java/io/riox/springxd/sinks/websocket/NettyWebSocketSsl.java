@@ -0,0 +1,345 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.EncryptedPrivateKeyInfo;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The TLS settings of a {@link NettyWebSocketServer}: where the key and certificate chain come from,
+ * which engine to use, the protocols and cipher suites to enable, and the session cache allowing
+ * clients to resume sessions with an abbreviated handshake.
+ * <p>
+ * The key may be given as PEM files or as an entry of a key store; netty only reads PEM files, so key
+ * store entries are written to temporary PEM files, which are deleted once the context is created. The
+ * files are created readable by the owner only where the file system supports it, and the private key
+ * is encrypted with a random password used for that context only, so it is never on disk in plain text. Without either, a self signed certificate is generated, which is only fit
+ * for testing.
+ */
+public class NettyWebSocketSsl {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketSsl.class);
+
+	/**
+	 * The TLS engine.
+	 */
+	public enum Provider {
+
+		/** OpenSSL if netty-tcnative is available, the JDK otherwise */
+		AUTO,
+
+		/** OpenSSL through netty-tcnative, which handshakes considerably faster */
+		OPENSSL,
+
+		/** the JDK engine */
+		JDK
+	}
+
+	Provider provider = Provider.AUTO;
+
+	File certificateChain;
+
+	File privateKey;
+
+	String privateKeyPassword;
+
+	File keyStore;
+
+	String keyStoreType = KeyStore.getDefaultType();
+
+	String keyStorePassword;
+
+	String keyAlias;
+
+	/** the PBE scheme the private key of a key store is encrypted with in its temporary PEM file */
+	static final String KEY_ENCRYPTION = "PBEWithSHA1AndDESede";
+
+	static final SecureRandom random = new SecureRandom();
+
+	List<String> protocols = Collections.emptyList();
+
+	List<String> ciphers = Collections.emptyList();
+
+	long sessionCacheSize;
+
+	long sessionTimeout;
+
+	public void setProvider(Provider provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Sets the PEM files of the certificate chain and the PKCS#8 private key.
+	 *
+	 * @param password the password of the key, null if it is not encrypted
+	 */
+	public void setPem(File certificateChain, File privateKey, String password) {
+		this.certificateChain = certificateChain;
+		this.privateKey = privateKey;
+		this.privateKeyPassword = password;
+	}
+
+	/**
+	 * Sets the key store holding the key and certificate chain; the key password has to be the
+	 * password of the key store.
+	 *
+	 * @param alias the alias of the key entry, null for the first key entry
+	 */
+	public void setKeyStore(File keyStore, String type, String password, String alias) {
+		this.keyStore = keyStore;
+		this.keyStoreType = type;
+		this.keyStorePassword = password;
+		this.keyAlias = alias;
+	}
+
+	/**
+	 * Sets the protocols to enable, e.g. <code>TLSv1.2</code>, none for the defaults of the provider.
+	 */
+	public void setProtocols(String... protocols) {
+		this.protocols = Arrays.asList(protocols);
+	}
+
+	/**
+	 * Sets the cipher suites to enable, in order of preference, none for the defaults of the provider.
+	 */
+	public void setCiphers(String... ciphers) {
+		this.ciphers = Arrays.asList(ciphers);
+	}
+
+	/**
+	 * Sets the number of sessions cached for resumption, and how long, in seconds, they may be resumed;
+	 * 0 for the defaults of the provider.
+	 */
+	public void setSessionCache(long size, long timeout) {
+		this.sessionCacheSize = size;
+		this.sessionTimeout = timeout;
+	}
+
+	/**
+	 * @return the provider to create the context with, OpenSSL if it is asked for or available
+	 * @throws SSLException if OpenSSL is asked for but not available
+	 */
+	SslProvider resolveProvider() throws SSLException {
+		switch (provider) {
+		case OPENSSL:
+			if (!OpenSsl.isAvailable()) {
+				throw new SSLException("OpenSSL is not available", OpenSsl.unavailabilityCause());
+			}
+			return SslProvider.OPENSSL;
+		case JDK:
+			return SslProvider.JDK;
+		default:
+			return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+		}
+	}
+
+	public SslContext newContext() throws SSLException, CertificateException {
+		SslProvider sslProvider = resolveProvider();
+		Iterable<String> cipherSuites = ciphers.isEmpty() ? null : ciphers;
+		if (certificateChain != null) {
+			log.info("Using {} TLS with certificate chain {}", sslProvider, certificateChain);
+			return SslContext.newServerContext(sslProvider, certificateChain, privateKey, privateKeyPassword,
+					cipherSuites, null, sessionCacheSize, sessionTimeout);
+		}
+		if (keyStore != null) {
+			String keyPassword = temporaryPassword();
+			File[] pem = toPem(keyPassword);
+			try {
+				log.info("Using {} TLS with key store {}", sslProvider, keyStore);
+				return SslContext.newServerContext(sslProvider, pem[0], pem[1], keyPassword,
+						cipherSuites, null, sessionCacheSize, sessionTimeout);
+			} finally {
+				for (File file : pem) {
+					if (!file.delete()) {
+						log.warn("Cannot delete temporary PEM file {}", file);
+					}
+				}
+			}
+		}
+		log.warn("No TLS certificate configured, using a self signed certificate");
+		SelfSignedCertificate certificate = new SelfSignedCertificate();
+		return SslContext.newServerContext(sslProvider, certificate.certificate(), certificate.privateKey(), null,
+				cipherSuites, null, sessionCacheSize, sessionTimeout);
+	}
+
+	/**
+	 * Checks the protocols to enable against an engine of the given context.
+	 *
+	 * @return the protocols to enable on the engine of every connection, null to keep the defaults
+	 * @throws IllegalArgumentException if the engine does not support one of the protocols
+	 */
+	String[] enabledProtocols(SslContext context) {
+		if (protocols.isEmpty()) {
+			return null;
+		}
+		String[] enabled = protocols.toArray(new String[protocols.size()]);
+		SSLEngine engine = context.newEngine(UnpooledByteBufAllocator.DEFAULT);
+		try {
+			engine.setEnabledProtocols(enabled);
+			return enabled;
+		} catch (UnsupportedOperationException e) {
+			log.warn("{} does not support choosing protocols, using its defaults", engine.getClass().getSimpleName());
+			return null;
+		} finally {
+			engine.closeOutbound();
+		}
+	}
+
+	/**
+	 * Writes the key entry of the key store to temporary PEM files.
+	 *
+	 * @param keyPassword the password the private key is encrypted with
+	 * @return the certificate chain file and the encrypted PKCS#8 private key file
+	 */
+	File[] toPem(String keyPassword) throws SSLException {
+		char[] password = keyStorePassword == null ? null : keyStorePassword.toCharArray();
+		try {
+			KeyStore store = KeyStore.getInstance(keyStoreType);
+			try (InputStream in = new FileInputStream(keyStore)) {
+				store.load(in, password);
+			}
+			String alias = keyAlias;
+			if (alias == null) {
+				for (Enumeration<String> aliases = store.aliases(); aliases.hasMoreElements();) {
+					String candidate = aliases.nextElement();
+					if (store.isKeyEntry(candidate)) {
+						alias = candidate;
+						break;
+					}
+				}
+			}
+			if (alias == null || !store.isKeyEntry(alias)) {
+				throw new SSLException("No key entry " + (alias == null ? "" : alias + " ") + "in key store " + keyStore);
+			}
+			PrivateKey key = (PrivateKey) store.getKey(alias, password);
+			StringBuilder chain = new StringBuilder();
+			for (Certificate certificate : store.getCertificateChain(alias)) {
+				pem(chain, "CERTIFICATE", certificate.getEncoded());
+			}
+			File certificateFile = temporaryFile(".crt", chain);
+			File keyFile;
+			try {
+				keyFile = temporaryFile(".key", pem(new StringBuilder(), "ENCRYPTED PRIVATE KEY",
+						encrypt(key, keyPassword.toCharArray())));
+			} catch (GeneralSecurityException | IOException e) {
+				if (!certificateFile.delete()) {
+					log.warn("Cannot delete temporary PEM file {}", certificateFile);
+				}
+				throw e;
+			}
+			return new File[] { certificateFile, keyFile };
+		} catch (SSLException e) {
+			throw e;
+		} catch (GeneralSecurityException | IOException e) {
+			throw new SSLException("Cannot read key store " + keyStore, e);
+		}
+	}
+
+	static StringBuilder pem(StringBuilder sb, String type, byte[] der) {
+		ByteBuf encoded = Base64.encode(Unpooled.wrappedBuffer(der), false);
+		String base64;
+		try {
+			base64 = encoded.toString(CharsetUtil.US_ASCII);
+		} finally {
+			encoded.release();
+		}
+		sb.append("-----BEGIN ").append(type).append("-----\n");
+		for (int i = 0; i < base64.length(); i += 64) {
+			sb.append(base64, i, Math.min(i + 64, base64.length())).append('\n');
+		}
+		return sb.append("-----END ").append(type).append("-----\n");
+	}
+
+	/**
+	 * @return a random password for the temporary key file of a single context
+	 */
+	static String temporaryPassword() {
+		byte[] bytes = new byte[24];
+		random.nextBytes(bytes);
+		ByteBuf encoded = Base64.encode(Unpooled.wrappedBuffer(bytes), false);
+		try {
+			return encoded.toString(CharsetUtil.US_ASCII);
+		} finally {
+			encoded.release();
+		}
+	}
+
+	/**
+	 * @return the DER encoded PKCS#8 <code>EncryptedPrivateKeyInfo</code> of the key
+	 */
+	static byte[] encrypt(PrivateKey key, char[] password) throws GeneralSecurityException, IOException {
+		byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		Cipher cipher = Cipher.getInstance(KEY_ENCRYPTION);
+		cipher.init(Cipher.ENCRYPT_MODE,
+				SecretKeyFactory.getInstance(KEY_ENCRYPTION).generateSecret(new PBEKeySpec(password)),
+				new PBEParameterSpec(salt, 2048));
+		byte[] encrypted = cipher.doFinal(key.getEncoded());
+		return new EncryptedPrivateKeyInfo(cipher.getParameters(), encrypted).getEncoded();
+	}
+
+	/**
+	 * Creates a temporary file holding the content, readable and writable by the owner only from the
+	 * start where the file system has POSIX permissions.
+	 */
+	static File temporaryFile(String suffix, CharSequence content) throws IOException {
+		Path path;
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			path = Files.createTempFile("websocket-sink", suffix,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			path = Files.createTempFile("websocket-sink", suffix);
+			File file = path.toFile();
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		File file = path.toFile();
+		file.deleteOnExit();
+		try {
+			Files.write(path, content.toString().getBytes(CharsetUtil.US_ASCII));
+		} catch (IOException e) {
+			if (!file.delete()) {
+				log.warn("Cannot delete temporary PEM file {}", file);
+			}
+			throw e;
+		}
+		return file;
+	}
+}
@@ -0,0 +1,353 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A payload sent as fragmented message to the subscribers of a path, without any thread waiting for them.
+ * <p>
+ * Each chunk of the payload is read once on the given executor, as reading may block, and handed to
+ * all receivers as a fragment. The next chunk is read once every receiver has at most a chunk queued,
+ * which their drains report, so the payload is read at the pace of the slowest receiver. Receivers still
+ * taking part in an earlier streamed message start this one when they are done with it, and the first
+ * chunk is only read once all of them did.
+ * <p>
+ * Receivers that fall behind for longer than the stream timeout are disconnected once they got part of
+ * the message, and otherwise miss it. If the payload cannot be read, receivers that got part of the
+ * message are closed with status 1011, the others just miss it.
+ */
+public class NettyWebSocketStream {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketStream.class);
+
+	final NettyWebSocketPayloadStream payload;
+
+	final NettyWebSocketPathGroup group;
+
+	final boolean binary;
+
+	final Executor executor;
+
+	/** the subscribers the message is sent to, guarded by this */
+	final List<NettyWebSocketSubscriber> receivers = new ArrayList<NettyWebSocketSubscriber>();
+
+	/** the receivers that did not start the message yet, or are not ready for the next chunk, guarded by this */
+	final Set<NettyWebSocketSubscriber> waiting = new HashSet<NettyWebSocketSubscriber>();
+
+	/** the chunk read after the last one sent, to tell whether that one is the last, guarded by this */
+	ByteBuf ahead;
+
+	/** whether subscribers are still joining, guarded by this */
+	boolean starting;
+
+	/** whether fragments were sent, guarded by this */
+	boolean started;
+
+	/** whether a chunk is being read and sent, guarded by this */
+	boolean reading;
+
+	/** whether the message was sent or given up, guarded by this */
+	boolean done;
+
+	/** whether the payload was closed, guarded by this */
+	boolean closed;
+
+	ScheduledFuture<?> timeout;
+
+	final Runnable reader = new Runnable() {
+		public void run() {
+			readNext();
+		}
+	};
+
+	final Runnable timeoutTask = new Runnable() {
+		public void run() {
+			timedOut();
+		}
+	};
+
+	public NettyWebSocketStream(NettyWebSocketPayloadStream payload, NettyWebSocketPathGroup group, boolean binary,
+			Executor executor) {
+		this.payload = payload;
+		this.group = group;
+		this.binary = binary;
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts sending the message to those of the given subscribers that accept it, and returns right away.
+	 *
+	 * @return the number of subscribers the message is sent to
+	 */
+	public int start(Collection<NettyWebSocketSubscriber> subscribers) {
+		synchronized (this) {
+			// subscribers joining first must not get fragments before the others joined
+			starting = true;
+			for (NettyWebSocketSubscriber subscriber : subscribers) {
+				receivers.add(subscriber);
+				waiting.add(subscriber);
+				if (!subscriber.join(this)) {
+					receivers.remove(subscriber);
+					waiting.remove(subscriber);
+				}
+			}
+			starting = false;
+			int count = receivers.size();
+			if (count == 0) {
+				finish();
+			} else if (!waiting.isEmpty()) {
+				// receivers finishing an earlier message are waited for no longer than laggards
+				scheduleTimeout();
+			} else {
+				proceed();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Called once the subscriber is done with earlier streamed messages and starts this one.
+	 */
+	void arrive(NettyWebSocketSubscriber subscriber) {
+		synchronized (this) {
+			if (!done && receivers.contains(subscriber)) {
+				waiting.remove(subscriber);
+				proceed();
+				return;
+			}
+		}
+		// given up, or timed out for this subscriber, while it finished the earlier message
+		subscriber.endStream(this);
+	}
+
+	/**
+	 * Called when the subscriber has at most a chunk queued.
+	 */
+	void ready(NettyWebSocketSubscriber subscriber) {
+		synchronized (this) {
+			if (started && waiting.remove(subscriber)) {
+				proceed();
+			}
+		}
+	}
+
+	/**
+	 * Called when the channel of the subscriber is closed.
+	 */
+	void remove(NettyWebSocketSubscriber subscriber) {
+		synchronized (this) {
+			if (!receivers.remove(subscriber)) {
+				return;
+			}
+			waiting.remove(subscriber);
+			if (done || starting) {
+				return;
+			}
+			if (receivers.isEmpty()) {
+				finish();
+			} else {
+				proceed();
+			}
+		}
+	}
+
+	/**
+	 * Reads the next chunk once every receiver is ready for it. Called holding the lock.
+	 */
+	void proceed() {
+		if (done || reading || starting || !waiting.isEmpty()) {
+			return;
+		}
+		cancelTimeout();
+		reading = true;
+		try {
+			executor.execute(reader);
+		} catch (RuntimeException e) {
+			reading = false;
+			abort(e);
+		}
+	}
+
+	void readNext() {
+		ByteBuf chunk;
+		ByteBuf next;
+		try {
+			synchronized (this) {
+				chunk = ahead;
+				ahead = null;
+			}
+			if (chunk == null) {
+				chunk = payload.read(group.streamChunkSize);
+				if (chunk == null) {
+					chunk = Unpooled.EMPTY_BUFFER;
+				}
+			}
+			try {
+				next = payload.read(group.streamChunkSize);
+			} catch (Exception e) {
+				chunk.release();
+				throw e;
+			}
+		} catch (Exception e) {
+			abort(e);
+			return;
+		}
+		boolean last = next == null;
+		WebSocketFrame frame;
+		List<NettyWebSocketSubscriber> targets;
+		synchronized (this) {
+			if (done) {
+				// all receivers are gone
+				reading = false;
+				chunk.release();
+				if (next != null) {
+					next.release();
+				}
+				closePayload();
+				return;
+			}
+			if (started) {
+				frame = new ContinuationWebSocketFrame(last, 0, chunk);
+			} else if (binary) {
+				frame = new BinaryWebSocketFrame(last, 0, chunk);
+			} else {
+				frame = new TextWebSocketFrame(last, 0, chunk);
+			}
+			started = true;
+			ahead = next;
+			done = last;
+			targets = new ArrayList<NettyWebSocketSubscriber>(receivers);
+			if (!last) {
+				waiting.addAll(receivers);
+				scheduleTimeout();
+			}
+		}
+		try {
+			for (NettyWebSocketSubscriber subscriber : targets) {
+				subscriber.sendFragment(frame.duplicate().retain());
+			}
+		} finally {
+			frame.release();
+		}
+		if (last) {
+			closePayload();
+			for (NettyWebSocketSubscriber subscriber : targets) {
+				subscriber.endStream(this);
+			}
+			return;
+		}
+		synchronized (this) {
+			// the next chunk is not read before all receivers got this one, which keeps them in order
+			reading = false;
+			if (done) {
+				closePayload();
+			} else {
+				proceed();
+			}
+		}
+	}
+
+	/**
+	 * Gives up the message as the payload cannot be read.
+	 */
+	void abort(Exception e) {
+		List<NettyWebSocketSubscriber> targets;
+		boolean partial;
+		synchronized (this) {
+			reading = false;
+			if (done) {
+				return;
+			}
+			targets = new ArrayList<NettyWebSocketSubscriber>(receivers);
+			partial = started;
+			finish();
+		}
+		log.error("Failed to stream message to path " + group.name(), e);
+		for (NettyWebSocketSubscriber subscriber : targets) {
+			if (partial) {
+				subscriber.abortStream();
+			} else {
+				subscriber.endStream(this);
+			}
+		}
+	}
+
+	/**
+	 * Disconnects the receivers that did not keep up within the stream timeout, or lets those that did
+	 * not start the message yet miss it.
+	 */
+	void timedOut() {
+		List<NettyWebSocketSubscriber> late;
+		boolean partial;
+		synchronized (this) {
+			timeout = null;
+			if (done || waiting.isEmpty()) {
+				return;
+			}
+			late = new ArrayList<NettyWebSocketSubscriber>(waiting);
+			partial = started;
+		}
+		for (NettyWebSocketSubscriber subscriber : late) {
+			if (partial) {
+				subscriber.disconnect();
+			} else {
+				group.dropped.incrementAndGet();
+				subscriber.endStream(this);
+			}
+			remove(subscriber);
+		}
+	}
+
+	/**
+	 * Marks the message as done and releases the payload unless a chunk is being read. Called holding the lock.
+	 */
+	void finish() {
+		done = true;
+		cancelTimeout();
+		if (ahead != null) {
+			ahead.release();
+			ahead = null;
+		}
+		if (!reading) {
+			closePayload();
+		}
+	}
+
+	synchronized void closePayload() {
+		if (!closed) {
+			closed = true;
+			payload.close();
+		}
+	}
+
+	void scheduleTimeout() {
+		cancelTimeout();
+		if (group.streamTimeoutNanos > 0) {
+			timeout = GlobalEventExecutor.INSTANCE.schedule(timeoutTask, group.streamTimeoutNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void cancelTimeout() {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+	}
+}
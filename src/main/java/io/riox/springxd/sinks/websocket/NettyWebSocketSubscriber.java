@@ -0,0 +1,553 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outbound state of a single channel subscribed to a sink path.
+ * <p>
+ * Frames are queued and handed to the event loop of the channel in batches: a batch is written
+ * and flushed once, either right away, or after the flush delay of the path unless the queued bytes
+ * reach the flush threshold first. Once the outbound buffer of the channel exceeds its high water mark,
+ * or more bytes than that are queued besides the batch, frames are handled according to the {@link SlowConsumerPolicy} of
+ * the path; queued frames are written as soon as the channel becomes writable again.
+ * <p>
+ * While the subscriber takes part in a {@link NettyWebSocketStream}, frames and further streamed messages
+ * sent to it are held, within the slow consumer policy, and queued once the last fragment is, so that
+ * messages never interleave with the fragments of a streamed message.
+ * <p>
+ * The subscriber also receives the subscription of the channel: the {@link QueryStringDecoder} of the
+ * handshake request, fired as user event by the server handler, and text frames sent by the client,
+ * whose content is read as query string. Both set the filter of the subscriber.
+ * <p>
+ * If the path publishes inbound messages, only text frames starting with <code>?</code> are subscription
+ * updates; the other messages of the client are handed to the {@link NettyWebSocketInbound} of the path,
+ * within the rate limit of the connection.
+ */
+public class NettyWebSocketSubscriber extends ChannelInboundHandlerAdapter {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketSubscriber.class);
+
+	final Channel channel;
+
+	final NettyWebSocketPathGroup group;
+
+	/** whether the subscriber negotiated the permessage-deflate extension */
+	final boolean compression;
+
+	/** identifies the connection in the headers of its inbound messages, null if the path has no inbound */
+	final String connectionId;
+
+	/** the rate limit of inbound messages, only used on the event loop, null for no limit */
+	final NettyWebSocketTokenBucket inboundRateLimit;
+
+	/** accepted values by header, null to receive all messages */
+	volatile Map<String,Set<String>> filter;
+
+	final Queue<WebSocketFrame> backlog = new ArrayDeque<WebSocketFrame>();
+
+	final AtomicLong queuedBytes = new AtomicLong();
+
+	/** the bytes queued for the subscribers of all paths of the container, read by the admission control */
+	final AtomicLong pendingBytes = NettyWebSocketServerRuntime.pendingBytes();
+
+	final AtomicBoolean drainPending = new AtomicBoolean();
+
+	final AtomicBoolean delayedDrainPending = new AtomicBoolean();
+
+	final Runnable drainTask = new Runnable() {
+		public void run() {
+			drainPending.set(false);
+			drain();
+		}
+	};
+
+	final Runnable delayedDrainTask = new Runnable() {
+		public void run() {
+			delayedDrainPending.set(false);
+			drain();
+		}
+	};
+
+	/** the streamed message the subscriber takes part in, guarded by the backlog */
+	volatile NettyWebSocketStream streaming;
+
+	/** frames and streamed messages sent while streaming, in order, guarded by the backlog */
+	final Queue<Object> held = new ArrayDeque<Object>();
+
+	/** the frames among those held, guarded by the backlog */
+	int heldFrames;
+
+	/** when the oldest frame in the backlog was queued, guarded by the backlog */
+	long oldestQueued;
+
+	/** whether the write latency of a batch is being measured, only accessed on the event loop */
+	boolean measuring;
+
+	long measuredQueued;
+
+	/**
+	 * Records the write latency of a batch. At most one batch per subscriber is measured at a time,
+	 * so that a single listener can be reused and measuring does not allocate.
+	 */
+	final ChannelFutureListener writeLatencyListener = new ChannelFutureListener() {
+		public void operationComplete(ChannelFuture future) {
+			measuring = false;
+			if (future.isSuccess()) {
+				group.writeLatency.record(System.nanoTime() - measuredQueued);
+			}
+		}
+	};
+
+	public NettyWebSocketSubscriber(Channel channel, NettyWebSocketPathGroup group) {
+		this.channel = channel;
+		this.group = group;
+		this.compression = channel.pipeline().get(PerMessageDeflate.DECODER_NAME) != null;
+		this.connectionId = group.inbound != null ? group.inbound.nextConnectionId() : null;
+		this.inboundRateLimit = group.inbound != null ? group.inbound.newRateLimit() : null;
+	}
+
+	/**
+	 * Sends the frame to this subscriber, taking over ownership of it.
+	 */
+	public void send(WebSocketFrame frame) {
+		if (streaming != null && hold(frame)) {
+			return;
+		}
+		if (!isSlow()) {
+			// not bounded by the queue size, which only applies to slow subscribers
+			enqueue(frame, Integer.MAX_VALUE);
+			scheduleDrain();
+			return;
+		}
+		switch (group.slowConsumerPolicy) {
+		case DROP_NEWEST:
+			frame.release();
+			group.dropped.incrementAndGet();
+			break;
+		case DISCONNECT:
+			frame.release();
+			disconnect();
+			break;
+		case CONFLATE:
+			enqueue(frame, 1);
+			break;
+		default:
+			enqueue(frame, group.slowConsumerQueueSize);
+		}
+		if (channel.isWritable()) {
+			// writability may have been restored since the check above
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * @return whether the channel is not writable, or more bytes are queued for it than a batch and its
+	 * outbound buffer hold before it turns unwritable
+	 */
+	boolean isSlow() {
+		return !channel.isWritable()
+				|| queuedBytes.get() > group.flushMaxBytes + channel.config().getWriteBufferHighWaterMark();
+	}
+
+	void disconnect() {
+		if (channel.isOpen()) {
+			log.info("Disconnecting slow subscriber {} on path {}", channel.remoteAddress(), group.name());
+			group.disconnected.incrementAndGet();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Holds the frame until the streamed message in progress was queued, applying the slow consumer policy
+	 * to the frames held.
+	 *
+	 * @return false if no message is streamed to this subscriber, so the frame is to be sent right away
+	 */
+	boolean hold(WebSocketFrame frame) {
+		boolean disconnect = false;
+		synchronized (backlog) {
+			if (streaming == null) {
+				return false;
+			}
+			int limit = group.slowConsumerPolicy == SlowConsumerPolicy.CONFLATE ? 1 : group.slowConsumerQueueSize;
+			if (heldFrames >= limit) {
+				switch (group.slowConsumerPolicy) {
+				case DROP_NEWEST:
+					frame.release();
+					group.dropped.incrementAndGet();
+					return true;
+				case DISCONNECT:
+					frame.release();
+					disconnect = true;
+					break;
+				default:
+					// the oldest frames held, never the streamed messages
+					for (Iterator<Object> it = held.iterator(); it.hasNext() && heldFrames >= limit;) {
+						Object evicted = it.next();
+						if (evicted instanceof WebSocketFrame) {
+							it.remove();
+							heldFrames--;
+							((WebSocketFrame) evicted).release();
+							group.dropped.incrementAndGet();
+						}
+					}
+				}
+			}
+			if (!disconnect) {
+				held.add(frame);
+				heldFrames++;
+			}
+		}
+		if (disconnect) {
+			disconnect();
+		}
+		return true;
+	}
+
+	/**
+	 * Decides whether this subscriber receives a streamed message. Once it got the first fragment, it has
+	 * to get all of them, so the slow consumer policy applies to the message as a whole: a subscriber
+	 * that is not writable gets the message queued with the DROP_OLDEST policy, is disconnected with
+	 * the DISCONNECT policy, and misses the message otherwise. A subscriber still taking part in an earlier
+	 * streamed message starts this one when it is done with that one.
+	 *
+	 * @return false if the subscriber does not receive the message
+	 */
+	boolean join(NettyWebSocketStream stream) {
+		synchronized (backlog) {
+			if (streaming != null) {
+				held.add(stream);
+				return true;
+			}
+		}
+		if (isSlow()) {
+			switch (group.slowConsumerPolicy) {
+			case DROP_OLDEST:
+				break;
+			case DISCONNECT:
+				disconnect();
+				return false;
+			default:
+				group.dropped.incrementAndGet();
+				return false;
+			}
+		}
+		synchronized (backlog) {
+			if (streaming != null) {
+				held.add(stream);
+				return true;
+			}
+			streaming = stream;
+		}
+		stream.arrive(this);
+		return true;
+	}
+
+	/**
+	 * Sends a fragment of a streamed message, taking over ownership of it. Fragments are never discarded.
+	 */
+	void sendFragment(WebSocketFrame frame) {
+		enqueue(frame, Integer.MAX_VALUE);
+		scheduleDrain();
+		readyForStream();
+	}
+
+	/**
+	 * Tells the streamed message in progress that the next chunk may be read, once at most a chunk is queued.
+	 */
+	void readyForStream() {
+		NettyWebSocketStream stream = streaming;
+		if (stream != null && queuedBytes.get() <= group.streamChunkSize) {
+			stream.ready(this);
+		}
+	}
+
+	/**
+	 * Ends the given streamed message for this subscriber, or drops it if it did not start yet: queues the
+	 * frames held since, up to the next streamed message held, which the subscriber starts.
+	 */
+	void endStream(NettyWebSocketStream stream) {
+		NettyWebSocketStream next = null;
+		synchronized (backlog) {
+			if (streaming != stream) {
+				held.remove(stream);
+				return;
+			}
+			streaming = null;
+			Object o;
+			while ((o = held.poll()) != null) {
+				if (o instanceof NettyWebSocketStream) {
+					streaming = next = (NettyWebSocketStream) o;
+					break;
+				}
+				heldFrames--;
+				WebSocketFrame frame = (WebSocketFrame) o;
+				if (backlog.isEmpty()) {
+					oldestQueued = System.nanoTime();
+				}
+				backlog.add(frame);
+				addQueuedBytes(frame.content().readableBytes());
+			}
+		}
+		if (!channel.isOpen()) {
+			releaseBacklog();
+			return;
+		}
+		scheduleDrain();
+		if (next != null) {
+			next.arrive(this);
+		}
+	}
+
+	/**
+	 * Closes the channel in the middle of a streamed message whose payload cannot be read.
+	 */
+	void abortStream() {
+		// a close frame may be sent in the middle of a fragmented message
+		channel.writeAndFlush(new CloseWebSocketFrame(1011, "message not available"))
+				.addListener(ChannelFutureListener.CLOSE);
+	}
+
+	static boolean isFragment(WebSocketFrame frame) {
+		return !frame.isFinalFragment() || frame instanceof ContinuationWebSocketFrame;
+	}
+
+	/**
+	 * @return whether a message with the given headers passes the filter of this subscriber
+	 */
+	public boolean matches(Map<String,?> headers) {
+		Map<String,Set<String>> filter = this.filter;
+		if (filter == null) {
+			return true;
+		}
+		if (headers == null) {
+			return false;
+		}
+		for (Map.Entry<String,Set<String>> predicate : filter.entrySet()) {
+			Object value = headers.get(predicate.getKey());
+			if (value == null || !predicate.getValue().contains(value.toString())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt instanceof QueryStringDecoder) {
+			group.subscribe(this, ((QueryStringDecoder) evt).parameters());
+		}
+		ctx.fireUserEventTriggered(evt);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof TextWebSocketFrame && (group.inbound == null || isSubscription((TextWebSocketFrame) msg))) {
+			TextWebSocketFrame frame = (TextWebSocketFrame) msg;
+			try {
+				String query = frame.text();
+				group.subscribe(this, new QueryStringDecoder(query.startsWith("?") ? query : "?" + query).parameters());
+			} finally {
+				frame.release();
+			}
+		} else if (group.inbound != null && (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame)) {
+			receive((WebSocketFrame) msg);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	static boolean isSubscription(TextWebSocketFrame frame) {
+		ByteBuf content = frame.content();
+		return content.isReadable() && content.getByte(content.readerIndex()) == '?';
+	}
+
+	/**
+	 * Hands a message of the client to the inbound of the path, copying its content once, unless the
+	 * connection exceeds its rate limit. Runs on the event loop of the channel.
+	 */
+	void receive(WebSocketFrame frame) {
+		try {
+			NettyWebSocketInbound inbound = group.inbound;
+			if (inboundRateLimit != null && !inboundRateLimit.tryAcquire()) {
+				inbound.rateLimited.incrementAndGet();
+				return;
+			}
+			ByteBuf content = frame.content();
+			Object payload;
+			if (frame instanceof TextWebSocketFrame) {
+				payload = content.toString(CharsetUtil.UTF_8);
+			} else {
+				byte[] bytes = new byte[content.readableBytes()];
+				content.getBytes(content.readerIndex(), bytes);
+				payload = bytes;
+			}
+			inbound.offer(payload, connectionId);
+		} finally {
+			frame.release();
+		}
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (ctx.channel().isWritable()) {
+			drain();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		releaseBacklog();
+		ctx.fireChannelInactive();
+	}
+
+	/**
+	 * Queues the frame, discarding the oldest queued frames while the queue holds <code>limit</code> frames,
+	 * unless they are fragments of a streamed message.
+	 */
+	void enqueue(WebSocketFrame frame, int limit) {
+		int size = frame.content().readableBytes();
+		synchronized (backlog) {
+			while (!backlog.isEmpty() && backlog.size() >= limit && !isFragment(backlog.peek())) {
+				WebSocketFrame evicted = backlog.poll();
+				addQueuedBytes(-evicted.content().readableBytes());
+				evicted.release();
+				group.dropped.incrementAndGet();
+			}
+			if (backlog.isEmpty()) {
+				oldestQueued = System.nanoTime();
+			}
+			backlog.add(frame);
+			addQueuedBytes(size);
+		}
+		if (!channel.isOpen()) {
+			releaseBacklog();
+		}
+	}
+
+	void addQueuedBytes(long delta) {
+		queuedBytes.addAndGet(delta);
+		pendingBytes.addAndGet(delta);
+	}
+
+	void scheduleDrain() {
+		if (group.flushMaxDelayNanos <= 0 || queuedBytes.get() >= group.flushMaxBytes) {
+			if (channel.eventLoop().inEventLoop()) {
+				drain();
+			} else if (drainPending.compareAndSet(false, true)) {
+				channel.eventLoop().execute(drainTask);
+			}
+		} else if (delayedDrainPending.compareAndSet(false, true)) {
+			channel.eventLoop().schedule(delayedDrainTask, group.flushMaxDelayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Writes queued frames while the channel is writable, flushing once per batch or whenever
+	 * the flush threshold is reached. Runs on the event loop of the channel.
+	 */
+	void drain() {
+		ChannelFuture written = null;
+		long unflushedBytes = 0;
+		long queued = 0;
+		int frames = 0;
+		long bytes = 0;
+		while (channel.isWritable()) {
+			WebSocketFrame frame;
+			synchronized (backlog) {
+				if (frames == 0) {
+					queued = oldestQueued;
+				}
+				frame = backlog.poll();
+			}
+			if (frame == null) {
+				break;
+			}
+			int size = frame.content().readableBytes();
+			addQueuedBytes(-size);
+			written = channel.write(frame);
+			if (frame instanceof NettyWebSocketTracer.Traced) {
+				written.addListener(((NettyWebSocketTracer.Traced) frame).trace());
+			}
+			frames++;
+			bytes += size;
+			unflushedBytes += size;
+			if (unflushedBytes >= group.flushMaxBytes) {
+				flush(written, queued);
+				written = null;
+				unflushedBytes = 0;
+			}
+		}
+		if (written != null) {
+			flush(written, queued);
+		}
+		if (frames > 0) {
+			group.framesSent.addAndGet(frames);
+			group.bytesSent.addAndGet(bytes);
+			readyForStream();
+		}
+	}
+
+	void flush(ChannelFuture lastWrite, long queued) {
+		if (!measuring) {
+			measuring = true;
+			measuredQueued = queued;
+			lastWrite.addListener(writeLatencyListener);
+		}
+		channel.flush();
+	}
+
+	void releaseBacklog() {
+		List<NettyWebSocketStream> streams = new ArrayList<NettyWebSocketStream>();
+		synchronized (backlog) {
+			WebSocketFrame frame;
+			while ((frame = backlog.poll()) != null) {
+				addQueuedBytes(-frame.content().readableBytes());
+				frame.release();
+			}
+			if (streaming != null) {
+				streams.add(streaming);
+				streaming = null;
+			}
+			Object o;
+			while ((o = held.poll()) != null) {
+				if (o instanceof NettyWebSocketStream) {
+					streams.add((NettyWebSocketStream) o);
+				} else {
+					((WebSocketFrame) o).release();
+				}
+			}
+			heldFrames = 0;
+		}
+		for (NettyWebSocketStream stream : streams) {
+			stream.remove(this);
+		}
+	}
+}
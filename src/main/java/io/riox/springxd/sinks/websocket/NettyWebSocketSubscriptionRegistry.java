@@ -0,0 +1,224 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.messaging.MessageHandler;
+
+/**
+ * Container wide index of the websocket channels subscribed to each sink path.
+ * <p>
+ * Every path maps to a {@link ChannelGroup}, which can be iterated without locking while
+ * channels are added concurrently, and which drops channels automatically once they are closed.
+ * The index lives in the system properties and only holds JDK, netty and Spring messaging types, which
+ * the container loads for all modules, as the sinks of different streams are loaded by different XD module
+ * class loaders. A sink using a path bound by the sink of another class loader cannot use the group of the
+ * path beyond {@link ChannelGroup}, so it hands its messages to the {@link MessageHandler} of that sink.
+ */
+public final class NettyWebSocketSubscriptionRegistry {
+
+	static final String KEY_PATHS_TO_CHANNELS = "__NETTY_WEBSOCKET_SUBSCRIPTIONS__";
+
+	static final String KEY_MAX_SUBSCRIBERS = "__NETTY_WEBSOCKET_MAX_SUBSCRIBERS__";
+
+	static final String KEY_PATH_OPTIONS = "__NETTY_WEBSOCKET_PATH_OPTIONS__";
+
+	static final String KEY_PATH_HANDLERS = "__NETTY_WEBSOCKET_PATH_HANDLERS__";
+
+	private NettyWebSocketSubscriptionRegistry() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static ConcurrentMap<String,ChannelGroup> getPathsToChannels() {
+		synchronized (System.class) {
+			ConcurrentMap<String,ChannelGroup> map =
+					(ConcurrentMap<String,ChannelGroup>) System.getProperties().get(KEY_PATHS_TO_CHANNELS);
+			if (map == null) {
+				map = new ConcurrentHashMap<String,ChannelGroup>();
+				System.getProperties().put(KEY_PATHS_TO_CHANNELS, map);
+			}
+			return map;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static ConcurrentMap<String,Integer> getMaxSubscribers() {
+		synchronized (System.class) {
+			ConcurrentMap<String,Integer> map =
+					(ConcurrentMap<String,Integer>) System.getProperties().get(KEY_MAX_SUBSCRIBERS);
+			if (map == null) {
+				map = new ConcurrentHashMap<String,Integer>();
+				System.getProperties().put(KEY_MAX_SUBSCRIBERS, map);
+			}
+			return map;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static ConcurrentMap<String,Map<String,String>> getPathOptions() {
+		synchronized (System.class) {
+			ConcurrentMap<String,Map<String,String>> map =
+					(ConcurrentMap<String,Map<String,String>>) System.getProperties().get(KEY_PATH_OPTIONS);
+			if (map == null) {
+				map = new ConcurrentHashMap<String,Map<String,String>>();
+				System.getProperties().put(KEY_PATH_OPTIONS, map);
+			}
+			return map;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static ConcurrentMap<String,MessageHandler> getPathHandlers() {
+		synchronized (System.class) {
+			ConcurrentMap<String,MessageHandler> map =
+					(ConcurrentMap<String,MessageHandler>) System.getProperties().get(KEY_PATH_HANDLERS);
+			if (map == null) {
+				map = new ConcurrentHashMap<String,MessageHandler>();
+				System.getProperties().put(KEY_PATH_HANDLERS, map);
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Makes the given path available for subscriptions.
+	 *
+	 * @return the group of channels subscribed to the path
+	 */
+	public static ChannelGroup bind(String path) {
+		ChannelGroup group = lookup(path);
+		if (group == null) {
+			group = bind(new DefaultChannelGroup(path, GlobalEventExecutor.INSTANCE));
+		}
+		return group;
+	}
+
+	/**
+	 * Makes the path named by the given group available for subscriptions, unless another group
+	 * is already bound to it.
+	 *
+	 * @return the group bound to the path
+	 */
+	public static ChannelGroup bind(ChannelGroup group) {
+		ChannelGroup existing = getPathsToChannels().putIfAbsent(group.name(), group);
+		return existing == null ? group : existing;
+	}
+
+	/**
+	 * Removes the path named by the given group, if the group is still bound to it. Channels
+	 * already subscribed are not closed.
+	 *
+	 * @return false if another group or none is bound to the path
+	 */
+	public static boolean unbind(ChannelGroup group) {
+		if (!getPathsToChannels().remove(group.name(), group)) {
+			return false;
+		}
+		getMaxSubscribers().remove(group.name());
+		getPathOptions().remove(group.name());
+		getPathHandlers().remove(group.name());
+		return true;
+	}
+
+	/**
+	 * Sets the handler sending messages to the subscribers of the given path, with the options of the
+	 * sink bound to the path. The handler is removed when the path is unbound.
+	 */
+	public static void setPathHandler(String path, MessageHandler handler) {
+		getPathHandlers().put(path, handler);
+	}
+
+	/**
+	 * @return the handler sending messages to the subscribers of the given path, or null if none is set
+	 */
+	public static MessageHandler pathHandler(String path) {
+		return getPathHandlers().get(path);
+	}
+
+	/**
+	 * Records the options of the sink bound to the given path, for sinks of other streams using the path
+	 * to compare theirs with. The options are removed when the path is unbound.
+	 */
+	public static void setPathOptions(String path, Map<String,String> options) {
+		getPathOptions().put(path, Collections.unmodifiableMap(new LinkedHashMap<String,String>(options)));
+	}
+
+	/**
+	 * @return the options of the sink bound to the given path, or null if unknown
+	 */
+	public static Map<String,String> pathOptions(String path) {
+		return getPathOptions().get(path);
+	}
+
+	/**
+	 * Limits the channels subscribed to the given path, which servers check before accepting a handshake.
+	 * The limit is removed when the path is unbound.
+	 *
+	 * @param maxSubscribers the max number of channels, 0 for no limit
+	 */
+	public static void setMaxSubscribers(String path, int maxSubscribers) {
+		if (maxSubscribers > 0) {
+			getMaxSubscribers().put(path, maxSubscribers);
+		} else {
+			getMaxSubscribers().remove(path);
+		}
+	}
+
+	/**
+	 * @return the max number of channels subscribed to the given path, 0 for no limit
+	 */
+	public static int maxSubscribers(String path) {
+		Integer max = getMaxSubscribers().get(path);
+		return max == null ? 0 : max;
+	}
+
+	/**
+	 * @return the group of channels subscribed to the given path, or <code>null</code> if no sink
+	 * is bound to it
+	 */
+	public static ChannelGroup lookup(String path) {
+		return getPathsToChannels().get(path);
+	}
+
+	/**
+	 * Subscribes the channel to the given path. The subscription ends when the channel is closed.
+	 *
+	 * @return false if no sink is bound to the path
+	 */
+	public static boolean subscribe(String path, Channel channel) {
+		ChannelGroup group = lookup(path);
+		if (group == null) {
+			return false;
+		}
+		group.add(channel);
+		return true;
+	}
+
+	/**
+	 * @return the number of open channels subscribed to the given path
+	 */
+	public static int subscriberCount(String path) {
+		ChannelGroup group = lookup(path);
+		return group == null ? 0 : group.size();
+	}
+
+	/**
+	 * @return a snapshot of the number of open channels per bound path
+	 */
+	public static Map<String,Integer> subscriberCounts() {
+		Map<String,Integer> counts = new HashMap<String,Integer>();
+		for (Map.Entry<String,ChannelGroup> entry : getPathsToChannels().entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().size());
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,482 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays messages over TCP between the instances of a sink, which connect to each other as a full mesh.
+ * <p>
+ * Every instance listens on the relay port and connects to all peers, reconnecting if a connection is
+ * lost; all instances may share the same peer list, including themselves. Published messages are
+ * collected into batches, which are written to all connected peers once they reach the maximum batch
+ * size or the maximum delay elapsed. Peers that cannot keep up miss batches instead of holding up the
+ * sink.
+ * <p>
+ * Messages are numbered per instance, and every instance drops messages it already received, for
+ * example over a second connection to the same peer, as well as its own messages. Messages are not
+ * forwarded, so an instance only receives the messages of the peers connected to it.
+ * <p>
+ * Each relay needs a port of its own: a sink starting a relay on a port another sink of the container
+ * relays on fails to deploy.
+ */
+public class NettyWebSocketTcpRelay implements NettyWebSocketRelay, NettyWebSocketRelayMBean {
+
+	static final Logger log = LoggerFactory.getLogger(NettyWebSocketTcpRelay.class);
+
+	public static final int DEFAULT_BATCH_MAX_BYTES = 64 * 1024;
+
+	static final int MAX_BATCH_LENGTH = 16 * 1024 * 1024;
+
+	static final long RECONNECT_DELAY_MILLIS = 1000;
+
+	static final String KEY_RELAY_PORTS = "__NETTY_WEBSOCKET_RELAY_PORTS__";
+
+	/** origins remembered for deduplication, a new origin is added each time an instance starts */
+	static final int MAX_ORIGINS = 1024;
+
+	final int port;
+
+	final List<InetSocketAddress> peers;
+
+	final int batchMaxBytes;
+
+	final long batchMaxDelayNanos;
+
+	/** identifies the messages of this instance, random so that a restarted instance starts afresh */
+	final long origin = UUID.randomUUID().getLeastSignificantBits();
+
+	EventLoopGroup group;
+
+	ChannelGroup channels;
+
+	/** the connections to the peers, which batches are written to */
+	ChannelGroup peerChannels;
+
+	Listener listener;
+
+	volatile boolean running;
+
+	/** messages published since the last batch was written, guarded by this */
+	ByteBuf pending;
+
+	int pendingMessages;
+
+	boolean flushScheduled;
+
+	long sequence;
+
+	/** the windows of message numbers received per origin, only accessed from the single event loop */
+	final Map<Long,DeduplicationWindow> windows = new LinkedHashMap<Long,DeduplicationWindow>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,DeduplicationWindow> eldest) {
+			return size() > MAX_ORIGINS;
+		}
+	};
+
+	final AtomicLong published = new AtomicLong();
+
+	final AtomicLong relayed = new AtomicLong();
+
+	final AtomicLong duplicates = new AtomicLong();
+
+	final AtomicLong batchesSent = new AtomicLong();
+
+	final AtomicLong batchesDropped = new AtomicLong();
+
+	final Runnable flusher = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param port the port to accept the connections of the peers on
+	 * @param peers the relay addresses of all instances, may include this one
+	 * @param batchMaxBytes the size a batch is written at regardless of the delay
+	 * @param batchMaxDelay how long messages may wait for a batch to fill up, 0 to write each message
+	 * as soon as the event loop gets to it
+	 */
+	public NettyWebSocketTcpRelay(int port, List<InetSocketAddress> peers, int batchMaxBytes, long batchMaxDelay,
+			TimeUnit unit) {
+		this.port = port;
+		this.peers = peers;
+		this.batchMaxBytes = batchMaxBytes;
+		this.batchMaxDelayNanos = unit.toNanos(batchMaxDelay);
+	}
+
+	/**
+	 * Parses a comma separated list of <code>host:port</code> addresses.
+	 */
+	public static List<InetSocketAddress> parsePeers(String peers) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty()) {
+				continue;
+			}
+			int colon = peer.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Relay peer " + peer + " is not of the form host:port");
+			}
+			addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the relay ports used by the sinks of the container, kept in the system properties as the
+	 * sinks of different streams are loaded by different XD module class loaders
+	 */
+	@SuppressWarnings("unchecked")
+	static Set<Integer> relayPorts() {
+		synchronized (System.class) {
+			Set<Integer> ports = (Set<Integer>) System.getProperties().get(KEY_RELAY_PORTS);
+			if (ports == null) {
+				ports = new HashSet<Integer>();
+				System.getProperties().put(KEY_RELAY_PORTS, ports);
+			}
+			return ports;
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if another sink of the container relays on the port
+	 */
+	@Override
+	public void start(Listener listener) throws InterruptedException {
+		synchronized (System.class) {
+			if (!relayPorts().add(port)) {
+				throw new IllegalStateException("Relay port " + port + " is used by another sink of this container, "
+						+ "each sink needs its own relayPort");
+			}
+		}
+		this.listener = listener;
+		// a single thread, which keeps the deduplication windows consistent without locking
+		group = new NioEventLoopGroup(1);
+		channels = new DefaultChannelGroup("relay-" + port, GlobalEventExecutor.INSTANCE);
+		peerChannels = new DefaultChannelGroup("relay-peers-" + port, GlobalEventExecutor.INSTANCE);
+		running = true;
+		boolean started = false;
+		try {
+			bind();
+			started = true;
+		} finally {
+			if (!started) {
+				stop();
+			}
+		}
+	}
+
+	void bind() throws InterruptedException {
+		final BatchDecoder decoder = new BatchDecoder();
+		Channel listenChannel = new ServerBootstrap().group(group)
+				.channel(NioServerSocketChannel.class)
+				.childOption(ChannelOption.TCP_NODELAY, true)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						channels.add(ch);
+						ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_BATCH_LENGTH, 0, 4, 0, 4), decoder);
+					}
+				})
+				.bind(port).sync().channel();
+		channels.add(listenChannel);
+		Bootstrap bootstrap = new Bootstrap().group(group)
+				.channel(NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY, true)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(new LengthFieldPrepender(4));
+					}
+				});
+		for (InetSocketAddress peer : peers) {
+			connect(bootstrap, peer);
+		}
+		log.info("Relaying messages on port {} to peers {}", port, peers);
+	}
+
+	void connect(final Bootstrap bootstrap, final InetSocketAddress peer) {
+		if (!running) {
+			return;
+		}
+		bootstrap.connect(peer).addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				if (future.isSuccess()) {
+					log.debug("Connected to relay peer {}", peer);
+					channels.add(future.channel());
+					peerChannels.add(future.channel());
+					future.channel().closeFuture().addListener(new ChannelFutureListener() {
+						public void operationComplete(ChannelFuture future) {
+							reconnect(bootstrap, peer);
+						}
+					});
+				} else {
+					reconnect(bootstrap, peer);
+				}
+			}
+		});
+	}
+
+	void reconnect(final Bootstrap bootstrap, final InetSocketAddress peer) {
+		if (!running) {
+			return;
+		}
+		log.debug("Reconnecting to relay peer {} in {} ms", peer, RECONNECT_DELAY_MILLIS);
+		group.schedule(new Runnable() {
+			public void run() {
+				connect(bootstrap, peer);
+			}
+		}, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends the message to the pending batch: its number, the path, the frame type, the headers and
+	 * the content of the frame.
+	 */
+	@Override
+	public void publish(String path, WebSocketFrame frame, Map<String,String> headers) {
+		if (!running) {
+			return;
+		}
+		published.incrementAndGet();
+		ByteBuf content = frame.content();
+		synchronized (this) {
+			if (pending == null) {
+				pending = Unpooled.buffer(Math.min(batchMaxBytes, 1024 + content.readableBytes()));
+			}
+			pending.writeLong(++sequence);
+			writeString(pending, path);
+			pending.writeBoolean(frame instanceof BinaryWebSocketFrame);
+			pending.writeShort(headers.size());
+			for (Map.Entry<String,String> header : headers.entrySet()) {
+				writeString(pending, header.getKey());
+				writeString(pending, header.getValue());
+			}
+			pending.writeInt(content.readableBytes());
+			pending.writeBytes(content, content.readerIndex(), content.readableBytes());
+			pendingMessages++;
+			if (pending.readableBytes() >= batchMaxBytes) {
+				flush();
+			} else if (!flushScheduled) {
+				flushScheduled = true;
+				group.schedule(flusher, batchMaxDelayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	static void writeString(ByteBuf buf, String s) {
+		byte[] bytes = s.getBytes(CharsetUtil.UTF_8);
+		buf.writeInt(bytes.length);
+		buf.writeBytes(bytes);
+	}
+
+	static String readString(ByteBuf buf) {
+		int length = buf.readInt();
+		String s = buf.toString(buf.readerIndex(), length, CharsetUtil.UTF_8);
+		buf.skipBytes(length);
+		return s;
+	}
+
+	/**
+	 * Writes the pending batch, prefixed by the origin of this instance and the number of messages,
+	 * to all peers able to take it. The batch is written while holding the lock, so that batches
+	 * reach the peers in the order of their messages.
+	 */
+	synchronized void flush() {
+		flushScheduled = false;
+		if (pending == null) {
+			return;
+		}
+		ByteBuf batch = Unpooled.wrappedBuffer(Unpooled.buffer(12).writeLong(origin).writeInt(pendingMessages), pending);
+		pending = null;
+		pendingMessages = 0;
+		try {
+			for (Channel peer : peerChannels) {
+				if (peer.isWritable()) {
+					peer.writeAndFlush(batch.duplicate().retain());
+					batchesSent.incrementAndGet();
+				} else {
+					batchesDropped.incrementAndGet();
+					log.debug("Relay peer {} is not keeping up, dropping batch", peer.remoteAddress());
+				}
+			}
+		} finally {
+			batch.release();
+		}
+	}
+
+	/**
+	 * Hands the messages of a received batch to the listener, unless they are duplicates.
+	 */
+	void received(ByteBuf batch) {
+		long batchOrigin = batch.readLong();
+		int count = batch.readInt();
+		DeduplicationWindow window = null;
+		if (batchOrigin != origin) {
+			window = windows.get(batchOrigin);
+			if (window == null) {
+				window = new DeduplicationWindow();
+				windows.put(batchOrigin, window);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			long number = batch.readLong();
+			String path = readString(batch);
+			boolean binary = batch.readBoolean();
+			int headerCount = batch.readUnsignedShort();
+			Map<String,String> headers = headerCount == 0
+					? Collections.<String,String>emptyMap()
+					: new HashMap<String,String>(headerCount * 2);
+			for (int h = 0; h < headerCount; h++) {
+				headers.put(readString(batch), readString(batch));
+			}
+			int length = batch.readInt();
+			if (window == null || !window.accept(number)) {
+				duplicates.incrementAndGet();
+				batch.skipBytes(length);
+				continue;
+			}
+			// copied to the heap, so that a message dropped by the dispatcher of the sink needs no release
+			ByteBuf content = Unpooled.copiedBuffer(batch.readSlice(length));
+			relayed.incrementAndGet();
+			try {
+				listener.relayed(path, binary ? new BinaryWebSocketFrame(content) : new TextWebSocketFrame(content), headers);
+			} catch (RuntimeException e) {
+				log.error("Failed to broadcast relayed message to path " + path, e);
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (!running) {
+			return;
+		}
+		flush();
+		running = false;
+		channels.close().awaitUninterruptibly();
+		group.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+		synchronized (System.class) {
+			relayPorts().remove(port);
+		}
+		log.info("Stopped relaying messages on port {}", port);
+	}
+
+	@Override
+	public long getPublishedMessages() {
+		return published.get();
+	}
+
+	@Override
+	public long getRelayedMessages() {
+		return relayed.get();
+	}
+
+	@Override
+	public long getDuplicateMessages() {
+		return duplicates.get();
+	}
+
+	@Override
+	public long getBatchesSent() {
+		return batchesSent.get();
+	}
+
+	@Override
+	public long getBatchesDropped() {
+		return batchesDropped.get();
+	}
+
+	@Override
+	public int getConnectedPeers() {
+		return peerChannels == null ? 0 : peerChannels.size();
+	}
+
+	@Sharable
+	class BatchDecoder extends SimpleChannelInboundHandler<ByteBuf> {
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf batch) {
+			received(batch);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			log.warn("Closing relay connection from {}: {}", ctx.channel().remoteAddress(), cause.toString());
+			ctx.close();
+		}
+	}
+
+	/**
+	 * The message numbers received from one origin: the highest, and which of the 63 before it.
+	 */
+	static final class DeduplicationWindow {
+
+		long highest;
+
+		long received;
+
+		/**
+		 * @return false if the message was received before, or is too old to tell
+		 */
+		boolean accept(long number) {
+			if (number > highest) {
+				long shift = number - highest;
+				received = shift >= 64 ? 1 : (received << shift) | 1;
+				highest = number;
+				return true;
+			}
+			long offset = highest - number;
+			if (offset >= 64) {
+				return false;
+			}
+			long bit = 1L << offset;
+			if ((received & bit) != 0) {
+				return false;
+			}
+			received |= bit;
+			return true;
+		}
+	}
+}
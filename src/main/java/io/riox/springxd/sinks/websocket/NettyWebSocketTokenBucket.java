@@ -0,0 +1,97 @@
+package io.riox.springxd.sinks.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the rate of events: tokens are added at the configured rate up to the burst
+ * size, and every event takes tokens, or is over the limit if there are not enough.
+ * <p>
+ * Not thread safe, the bucket of a connection is only used on the event loop of its channel. Buckets
+ * used by several threads are {@link Shared}.
+ */
+public class NettyWebSocketTokenBucket {
+
+	final double tokensPerNano;
+
+	final double burst;
+
+	double tokens;
+
+	long refilled;
+
+	/**
+	 * @param rate the tokens added per second
+	 * @param burst the max tokens the bucket holds, which is how many events may pass at once
+	 */
+	public NettyWebSocketTokenBucket(double rate, double burst) {
+		this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilled = System.nanoTime();
+	}
+
+	/**
+	 * Takes the given number of tokens if the bucket holds them.
+	 *
+	 * @return false if the event is over the limit
+	 */
+	public boolean tryAcquire(double n, long now) {
+		long elapsed = now - refilled;
+		if (elapsed > 0) {
+			tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+			refilled = now;
+		}
+		if (tokens < n) {
+			return false;
+		}
+		tokens -= n;
+		return true;
+	}
+
+	public boolean tryAcquire() {
+		return tryAcquire(1, System.nanoTime());
+	}
+
+	/**
+	 * A token bucket used by several threads without locking. Rather than the tokens, it keeps the time at
+	 * which the bucket will be full again, which an event pushes ahead by the time its tokens take to be
+	 * added; events that would push it more than the burst ahead of now are over the limit.
+	 */
+	public static final class Shared {
+
+		final double nanosPerToken;
+
+		final long burstNanos;
+
+		/** when the bucket is full again */
+		final AtomicLong full;
+
+		public Shared(double rate, double burst) {
+			this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+			this.burstNanos = (long) (burst * nanosPerToken);
+			this.full = new AtomicLong(System.nanoTime());
+		}
+
+		public boolean tryAcquire(double n, long now) {
+			long cost = (long) (n * nanosPerToken);
+			while (true) {
+				long current = full.get();
+				long next = (current - now > 0 ? current : now) + cost;
+				if (next - now > burstNanos) {
+					return false;
+				}
+				if (full.compareAndSet(current, next)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return whether the bucket is full, so that it can be replaced with a new one
+		 */
+		public boolean isFull(long now) {
+			return full.get() - now <= 0;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+
+/**
+ * Traces the latency of sampled messages through the stages of a sink path.
+ * <p>
+ * A sampled message is stamped with the time it entered the input channel of the sink, which is
+ * carried in the {@link #INGRESS_HEADER}. The outbound handler then records
+ * <ul>
+ * <li><b>dispatch</b>: from the input channel to the outbound handler, the time spent in the dispatch queue,</li>
+ * <li><b>encode</b>: encoding the payload into a frame,</li>
+ * <li><b>write</b>: from the encoded frame until it is written to the socket of a subscriber,
+ * the time spent in the subscriber backlog and the netty outbound buffer,</li>
+ * <li><b>total</b>: from the input channel until the frame is written to the socket.</li>
+ * </ul>
+ * Messages that are not sampled are neither copied nor timed.
+ */
+public class NettyWebSocketTracer {
+
+	public static final String INGRESS_HEADER = "websocket_ingressNanos";
+
+	public static final String[] STAGES = { "dispatch", "encode", "write", "total" };
+
+	final long sampleInterval;
+
+	final AtomicLong messages = new AtomicLong();
+
+	final LatencyHistogram dispatch = new LatencyHistogram();
+
+	final LatencyHistogram encode = new LatencyHistogram();
+
+	final LatencyHistogram write = new LatencyHistogram();
+
+	final LatencyHistogram total = new LatencyHistogram();
+
+	/**
+	 * @param sampleRate the fraction of messages to trace, between 0 (exclusive) and 1
+	 */
+	public NettyWebSocketTracer(double sampleRate) {
+		if (sampleRate <= 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sample rate must be in (0, 1]: " + sampleRate);
+		}
+		this.sampleInterval = Math.max(1, Math.round(1 / sampleRate));
+	}
+
+	/**
+	 * @return the histogram of the given stage, one of {@link #STAGES}
+	 */
+	public LatencyHistogram stage(String stage) {
+		switch (stage) {
+		case "dispatch":
+			return dispatch;
+		case "encode":
+			return encode;
+		case "write":
+			return write;
+		case "total":
+			return total;
+		default:
+			throw new IllegalArgumentException("unknown stage " + stage);
+		}
+	}
+
+	/**
+	 * @return an interceptor for the input channel of the sink stamping sampled messages
+	 */
+	public ChannelInterceptorAdapter ingressInterceptor() {
+		return new ChannelInterceptorAdapter() {
+			@Override
+			public Message<?> preSend(Message<?> message, MessageChannel channel) {
+				if (messages.getAndIncrement() % sampleInterval != 0) {
+					return message;
+				}
+				return MessageBuilder.fromMessage(message).setHeader(INGRESS_HEADER, System.nanoTime()).build();
+			}
+		};
+	}
+
+	/**
+	 * Records the dispatch and encode stages of a sampled message, and returns a frame whose writes
+	 * record the write stage. The returned frame takes over the content of the given one.
+	 */
+	public WebSocketFrame traced(WebSocketFrame frame, long ingress, long dispatched, long encoded) {
+		dispatch.record(dispatched - ingress);
+		encode.record(encoded - dispatched);
+		Trace trace = new Trace(ingress, encoded);
+		if (frame instanceof BinaryWebSocketFrame) {
+			return new TracedBinaryFrame(frame.isFinalFragment(), frame.rsv(), frame.content(), trace);
+		}
+		return new TracedTextFrame(frame.isFinalFragment(), frame.rsv(), frame.content(), trace);
+	}
+
+	/**
+	 * Implemented by frames of sampled messages.
+	 */
+	interface Traced {
+
+		/**
+		 * @return the listener to add to the write of the frame
+		 */
+		ChannelFutureListener trace();
+	}
+
+	/**
+	 * The timestamps of a sampled message, shared by the frames written to all subscribers.
+	 */
+	final class Trace implements ChannelFutureListener {
+
+		final long ingress;
+
+		final long encoded;
+
+		Trace(long ingress, long encoded) {
+			this.ingress = ingress;
+			this.encoded = encoded;
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) {
+			if (future.isSuccess()) {
+				long now = System.nanoTime();
+				write.record(now - encoded);
+				total.record(now - ingress);
+			}
+		}
+	}
+
+	static final class TracedTextFrame extends TextWebSocketFrame implements Traced {
+
+		final Trace trace;
+
+		TracedTextFrame(boolean finalFragment, int rsv, ByteBuf content, Trace trace) {
+			super(finalFragment, rsv, content);
+			this.trace = trace;
+		}
+
+		@Override
+		public ChannelFutureListener trace() {
+			return trace;
+		}
+
+		@Override
+		public TextWebSocketFrame copy() {
+			return new TracedTextFrame(isFinalFragment(), rsv(), content().copy(), trace);
+		}
+
+		@Override
+		public TextWebSocketFrame duplicate() {
+			return new TracedTextFrame(isFinalFragment(), rsv(), content().duplicate(), trace);
+		}
+	}
+
+	static final class TracedBinaryFrame extends BinaryWebSocketFrame implements Traced {
+
+		final Trace trace;
+
+		TracedBinaryFrame(boolean finalFragment, int rsv, ByteBuf content, Trace trace) {
+			super(finalFragment, rsv, content);
+			this.trace = trace;
+		}
+
+		@Override
+		public ChannelFutureListener trace() {
+			return trace;
+		}
+
+		@Override
+		public BinaryWebSocketFrame copy() {
+			return new TracedBinaryFrame(isFinalFragment(), rsv(), content().copy(), trace);
+		}
+
+		@Override
+		public BinaryWebSocketFrame duplicate() {
+			return new TracedBinaryFrame(isFinalFragment(), rsv(), content().duplicate(), trace);
+		}
+	}
+}
@@ -11,6 +11,75 @@ public class NettyWebsocketSinkOptions {
 
 	public static final int DEFAULT_PORT = 9292;
 	public static final String DEFAULT_PATH = "/";
+	public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = NettyWebSocketServer.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+	public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = NettyWebSocketServer.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+	public static final String DEFAULT_SLOW_CONSUMER_POLICY = "DROP_OLDEST";
+	public static final int DEFAULT_SLOW_CONSUMER_QUEUE_SIZE = 1024;
+	public static final long DEFAULT_FLUSH_MAX_DELAY = 0;
+	public static final int DEFAULT_FLUSH_MAX_BYTES = NettyWebSocketPathGroup.DEFAULT_FLUSH_MAX_BYTES;
+	public static final String DEFAULT_DISPATCH_MODE = "POOL";
+	public static final int DEFAULT_DISPATCH_THREADS = 0;
+	public static final int DEFAULT_DISPATCH_QUEUE_SIZE = 10000;
+	public static final String DEFAULT_DISPATCH_REJECTION_POLICY = "BLOCK";
+	public static final long DEFAULT_DISPATCH_TIMEOUT = 1000;
+	public static final String DEFAULT_TRANSPORT = "NIO";
+	public static final int DEFAULT_ACCEPTOR_THREADS = NettyWebSocketServer.BOSS_GROUP_THREADS;
+	public static final int DEFAULT_WORKER_THREADS = 0;
+	public static final boolean DEFAULT_TCP_NO_DELAY = true;
+	public static final int DEFAULT_SEND_BUFFER_SIZE = 0;
+	public static final int DEFAULT_BACKLOG = NettyWebSocketServer.DEFAULT_BACKLOG;
+	public static final boolean DEFAULT_POOLED_ALLOCATOR = true;
+	public static final boolean DEFAULT_COMPRESSION = false;
+	public static final int DEFAULT_COMPRESSION_LEVEL = NettyWebSocketPathGroup.DEFAULT_COMPRESSION_LEVEL;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = NettyWebSocketPathGroup.DEFAULT_COMPRESSION_THRESHOLD;
+	public static final String DEFAULT_PAYLOAD_MODE = "AUTO";
+	public static final String DEFAULT_PAYLOAD_SERIALIZER = "";
+	public static final double DEFAULT_TRACING_SAMPLE_RATE = 0;
+	public static final String DEFAULT_METRICS_PATH = "";
+	public static final int DEFAULT_REPLAY_SIZE = 0;
+	public static final long DEFAULT_REPLAY_MAX_AGE = 0;
+	public static final String DEFAULT_CONFLATION_KEY = "";
+	public static final String DEFAULT_CONFLATION_EXPRESSION = "";
+	public static final long DEFAULT_CONFLATION_TICK = 50;
+	public static final String DEFAULT_FILTER_HEADERS = "";
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+	public static final long DEFAULT_HEARTBEAT_INTERVAL = 0;
+	public static final long DEFAULT_HEARTBEAT_TIMEOUT = 10000;
+	public static final String DEFAULT_SSL_PROVIDER = "AUTO";
+	public static final String DEFAULT_SSL_CERTIFICATE = "";
+	public static final String DEFAULT_SSL_PRIVATE_KEY = "";
+	public static final String DEFAULT_SSL_PRIVATE_KEY_PASSWORD = "";
+	public static final String DEFAULT_SSL_KEY_STORE = "";
+	public static final String DEFAULT_SSL_KEY_STORE_TYPE = "JKS";
+	public static final String DEFAULT_SSL_KEY_STORE_PASSWORD = "";
+	public static final String DEFAULT_SSL_KEY_ALIAS = "";
+	public static final String DEFAULT_SSL_PROTOCOLS = "";
+	public static final String DEFAULT_SSL_CIPHERS = "";
+	public static final long DEFAULT_SSL_SESSION_CACHE_SIZE = 0;
+	public static final long DEFAULT_SSL_SESSION_TIMEOUT = 0;
+	public static final String DEFAULT_RELAY = "";
+	public static final int DEFAULT_RELAY_PORT = 9400;
+	public static final String DEFAULT_RELAY_PEERS = "";
+	public static final int DEFAULT_RELAY_BATCH_MAX_BYTES = NettyWebSocketTcpRelay.DEFAULT_BATCH_MAX_BYTES;
+	public static final long DEFAULT_RELAY_BATCH_MAX_DELAY = 1;
+	public static final int DEFAULT_STREAM_THRESHOLD = 0;
+	public static final int DEFAULT_STREAM_CHUNK_SIZE = NettyWebSocketPathGroup.DEFAULT_STREAM_CHUNK_SIZE;
+	public static final long DEFAULT_STREAM_TIMEOUT = 10000;
+	public static final boolean DEFAULT_INBOUND = false;
+	public static final int DEFAULT_INBOUND_QUEUE_SIZE = 10000;
+	public static final int DEFAULT_INBOUND_BATCH_SIZE = NettyWebSocketInbound.DEFAULT_BATCH_SIZE;
+	public static final double DEFAULT_INBOUND_RATE_LIMIT = 1000;
+	public static final int DEFAULT_MAX_INBOUND_MESSAGE_SIZE = NettyWebSocketServer.DEFAULT_MAX_MESSAGE_SIZE;
+	public static final double DEFAULT_RATE_LIMIT_MESSAGES = 0;
+	public static final double DEFAULT_RATE_LIMIT_BYTES = 0;
+	public static final double DEFAULT_CLIENT_HANDSHAKE_RATE_LIMIT = 0;
+	public static final double DEFAULT_CLIENT_FRAME_RATE_LIMIT = 0;
+	public static final int DEFAULT_MAX_CONNECTIONS = 0;
+	public static final int DEFAULT_MAX_PATH_CONNECTIONS = 0;
+	public static final long DEFAULT_ADMISSION_MAX_EVENT_LOOP_LAG = 0;
+	public static final long DEFAULT_ADMISSION_MAX_PENDING_BYTES = 0;
+	public static final int DEFAULT_ADMISSION_RETRY_AFTER = NettyWebSocketAdmission.DEFAULT_RETRY_AFTER;
+	public static final String DEFAULT_ADMISSION_REDIRECT_PEERS = "";
 
 	private int port = DEFAULT_PORT;
 
@@ -18,6 +87,145 @@ public class NettyWebsocketSinkOptions {
 
 	private boolean ssl;
 
+	private int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+
+	private int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.valueOf(DEFAULT_SLOW_CONSUMER_POLICY);
+
+	private int slowConsumerQueueSize = DEFAULT_SLOW_CONSUMER_QUEUE_SIZE;
+
+	private long flushMaxDelay = DEFAULT_FLUSH_MAX_DELAY;
+
+	private int flushMaxBytes = DEFAULT_FLUSH_MAX_BYTES;
+
+	private NettyWebSocketDispatcher.Mode dispatchMode = NettyWebSocketDispatcher.Mode.valueOf(DEFAULT_DISPATCH_MODE);
+
+	private int dispatchThreads = DEFAULT_DISPATCH_THREADS;
+
+	private int dispatchQueueSize = DEFAULT_DISPATCH_QUEUE_SIZE;
+
+	private NettyWebSocketDispatcher.RejectionPolicy dispatchRejectionPolicy =
+			NettyWebSocketDispatcher.RejectionPolicy.valueOf(DEFAULT_DISPATCH_REJECTION_POLICY);
+
+	private long dispatchTimeout = DEFAULT_DISPATCH_TIMEOUT;
+
+	private NettyWebSocketServer.Transport transport = NettyWebSocketServer.Transport.valueOf(DEFAULT_TRANSPORT);
+
+	private int acceptorThreads = DEFAULT_ACCEPTOR_THREADS;
+
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+
+	private boolean tcpNoDelay = DEFAULT_TCP_NO_DELAY;
+
+	private int sendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+
+	private int backlog = DEFAULT_BACKLOG;
+
+	private boolean pooledAllocator = DEFAULT_POOLED_ALLOCATOR;
+
+	private boolean compression = DEFAULT_COMPRESSION;
+
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	private NettyWebSocketBroadcaster.PayloadMode payloadMode = NettyWebSocketBroadcaster.PayloadMode.valueOf(DEFAULT_PAYLOAD_MODE);
+
+	private String payloadSerializer = DEFAULT_PAYLOAD_SERIALIZER;
+
+	private double tracingSampleRate = DEFAULT_TRACING_SAMPLE_RATE;
+
+	private String metricsPath = DEFAULT_METRICS_PATH;
+
+	private int replaySize = DEFAULT_REPLAY_SIZE;
+
+	private long replayMaxAge = DEFAULT_REPLAY_MAX_AGE;
+
+	private String conflationKey = DEFAULT_CONFLATION_KEY;
+
+	private String conflationExpression = DEFAULT_CONFLATION_EXPRESSION;
+
+	private long conflationTick = DEFAULT_CONFLATION_TICK;
+
+	private String filterHeaders = DEFAULT_FILTER_HEADERS;
+
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+	private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+	private long heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT;
+
+	private String sslProvider = DEFAULT_SSL_PROVIDER;
+
+	private String sslCertificate = DEFAULT_SSL_CERTIFICATE;
+
+	private String sslPrivateKey = DEFAULT_SSL_PRIVATE_KEY;
+
+	private String sslPrivateKeyPassword = DEFAULT_SSL_PRIVATE_KEY_PASSWORD;
+
+	private String sslKeyStore = DEFAULT_SSL_KEY_STORE;
+
+	private String sslKeyStoreType = DEFAULT_SSL_KEY_STORE_TYPE;
+
+	private String sslKeyStorePassword = DEFAULT_SSL_KEY_STORE_PASSWORD;
+
+	private String sslKeyAlias = DEFAULT_SSL_KEY_ALIAS;
+
+	private String sslProtocols = DEFAULT_SSL_PROTOCOLS;
+
+	private String sslCiphers = DEFAULT_SSL_CIPHERS;
+
+	private long sslSessionCacheSize = DEFAULT_SSL_SESSION_CACHE_SIZE;
+
+	private long sslSessionTimeout = DEFAULT_SSL_SESSION_TIMEOUT;
+
+	private String relay = DEFAULT_RELAY;
+
+	private int relayPort = DEFAULT_RELAY_PORT;
+
+	private String relayPeers = DEFAULT_RELAY_PEERS;
+
+	private int relayBatchMaxBytes = DEFAULT_RELAY_BATCH_MAX_BYTES;
+
+	private long relayBatchMaxDelay = DEFAULT_RELAY_BATCH_MAX_DELAY;
+
+	private int streamThreshold = DEFAULT_STREAM_THRESHOLD;
+
+	private int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+
+	private long streamTimeout = DEFAULT_STREAM_TIMEOUT;
+
+	private boolean inbound = DEFAULT_INBOUND;
+
+	private int inboundQueueSize = DEFAULT_INBOUND_QUEUE_SIZE;
+
+	private int inboundBatchSize = DEFAULT_INBOUND_BATCH_SIZE;
+
+	private double inboundRateLimit = DEFAULT_INBOUND_RATE_LIMIT;
+
+	private int maxInboundMessageSize = DEFAULT_MAX_INBOUND_MESSAGE_SIZE;
+
+	private double rateLimitMessages = DEFAULT_RATE_LIMIT_MESSAGES;
+
+	private double rateLimitBytes = DEFAULT_RATE_LIMIT_BYTES;
+
+	private double clientHandshakeRateLimit = DEFAULT_CLIENT_HANDSHAKE_RATE_LIMIT;
+
+	private double clientFrameRateLimit = DEFAULT_CLIENT_FRAME_RATE_LIMIT;
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	private int maxPathConnections = DEFAULT_MAX_PATH_CONNECTIONS;
+
+	private long admissionMaxEventLoopLag = DEFAULT_ADMISSION_MAX_EVENT_LOOP_LAG;
+
+	private long admissionMaxPendingBytes = DEFAULT_ADMISSION_MAX_PENDING_BYTES;
+
+	private int admissionRetryAfter = DEFAULT_ADMISSION_RETRY_AFTER;
+
+	private String admissionRedirectPeers = DEFAULT_ADMISSION_REDIRECT_PEERS;
+
 	public int getPort() {
 		return port;
 	}
@@ -45,4 +253,625 @@ public class NettyWebsocketSinkOptions {
 		this.ssl = ssl;
 	}
 
+	public int getWriteBufferHighWaterMark() {
+		return writeBufferHighWaterMark;
+	}
+
+	@ModuleOption("outbound bytes buffered per connection before it is considered a slow consumer")
+	public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+		this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+	}
+
+	public int getWriteBufferLowWaterMark() {
+		return writeBufferLowWaterMark;
+	}
+
+	@ModuleOption("outbound bytes buffered per connection below which a slow consumer is written to again")
+	public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+		this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	@ModuleOption("how to treat slow consumers: DROP_NEWEST, DROP_OLDEST, CONFLATE or DISCONNECT")
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	public int getSlowConsumerQueueSize() {
+		return slowConsumerQueueSize;
+	}
+
+	@ModuleOption("max messages queued per subscriber, the oldest are dropped beyond that")
+	public void setSlowConsumerQueueSize(int slowConsumerQueueSize) {
+		this.slowConsumerQueueSize = slowConsumerQueueSize;
+	}
+
+	public long getFlushMaxDelay() {
+		return flushMaxDelay;
+	}
+
+	@ModuleOption("max milliseconds a write may wait to be flushed together with later writes (0 flushes every batch right away)")
+	public void setFlushMaxDelay(long flushMaxDelay) {
+		this.flushMaxDelay = flushMaxDelay;
+	}
+
+	public int getFlushMaxBytes() {
+		return flushMaxBytes;
+	}
+
+	@ModuleOption("queued bytes per connection that trigger a flush before the flush delay elapsed")
+	public void setFlushMaxBytes(int flushMaxBytes) {
+		this.flushMaxBytes = flushMaxBytes;
+	}
+
+	public NettyWebSocketDispatcher.Mode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	@ModuleOption("POOL to write from the shared dispatch pool, DIRECT to write from the sending thread")
+	public void setDispatchMode(NettyWebSocketDispatcher.Mode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+	}
+
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+
+	@ModuleOption("threads of the dispatch pool shared by all sinks of the container (0 for one per core)")
+	public void setDispatchThreads(int dispatchThreads) {
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	public int getDispatchQueueSize() {
+		return dispatchQueueSize;
+	}
+
+	@ModuleOption("max messages waiting to be dispatched to the path")
+	public void setDispatchQueueSize(int dispatchQueueSize) {
+		this.dispatchQueueSize = dispatchQueueSize;
+	}
+
+	public NettyWebSocketDispatcher.RejectionPolicy getDispatchRejectionPolicy() {
+		return dispatchRejectionPolicy;
+	}
+
+	@ModuleOption("what to do when the dispatch queue is full: BLOCK, DROP or FAIL")
+	public void setDispatchRejectionPolicy(NettyWebSocketDispatcher.RejectionPolicy dispatchRejectionPolicy) {
+		this.dispatchRejectionPolicy = dispatchRejectionPolicy;
+	}
+
+	public long getDispatchTimeout() {
+		return dispatchTimeout;
+	}
+
+	@ModuleOption("max milliseconds to block for room in the dispatch queue with the BLOCK policy")
+	public void setDispatchTimeout(long dispatchTimeout) {
+		this.dispatchTimeout = dispatchTimeout;
+	}
+
+	public NettyWebSocketServer.Transport getTransport() {
+		return transport;
+	}
+
+	@ModuleOption("NIO or EPOLL (linux only, falls back to NIO if the native library is missing)")
+	public void setTransport(NettyWebSocketServer.Transport transport) {
+		this.transport = transport;
+	}
+
+	public int getAcceptorThreads() {
+		return acceptorThreads;
+	}
+
+	@ModuleOption("number of acceptors bound to the port with SO_REUSEPORT (EPOLL transport only)")
+	public void setAcceptorThreads(int acceptorThreads) {
+		this.acceptorThreads = acceptorThreads;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	@ModuleOption("number of I/O threads (0 for twice the number of cores)")
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	@ModuleOption("whether to disable Nagle's algorithm on client connections")
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	@ModuleOption("SO_SNDBUF of client connections in bytes (0 for the OS default)")
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	@ModuleOption("max pending connections in the accept queue")
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	public boolean isPooledAllocator() {
+		return pooledAllocator;
+	}
+
+	@ModuleOption("whether to use netty's pooled buffer allocator for connections")
+	public void setPooledAllocator(boolean pooledAllocator) {
+		this.pooledAllocator = pooledAllocator;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	@ModuleOption("whether to compress messages for clients supporting the permessage-deflate extension")
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	@ModuleOption("deflate compression level, from 0 (none) to 9 (best)")
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	@ModuleOption("min payload size in bytes of messages to compress")
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public NettyWebSocketBroadcaster.PayloadMode getPayloadMode() {
+		return payloadMode;
+	}
+
+	@ModuleOption("AUTO to send binary payloads as binary frames and others as text frames, or TEXT or BINARY for all")
+	public void setPayloadMode(NettyWebSocketBroadcaster.PayloadMode payloadMode) {
+		this.payloadMode = payloadMode;
+	}
+
+	public String getPayloadSerializer() {
+		return payloadSerializer;
+	}
+
+	@ModuleOption("class name of a NettyWebSocketPayloadSerializer for payloads that are neither binary nor text (default: toString())")
+	public void setPayloadSerializer(String payloadSerializer) {
+		this.payloadSerializer = payloadSerializer;
+	}
+
+	public double getTracingSampleRate() {
+		return tracingSampleRate;
+	}
+
+	@ModuleOption("fraction of messages to trace through the stages of the sink, 0 to disable tracing")
+	public void setTracingSampleRate(double tracingSampleRate) {
+		this.tracingSampleRate = tracingSampleRate;
+	}
+
+	public String getMetricsPath() {
+		return metricsPath;
+	}
+
+	@ModuleOption("HTTP path on the server port serving the websocket metrics as plain text, empty to disable")
+	public void setMetricsPath(String metricsPath) {
+		this.metricsPath = metricsPath;
+	}
+
+	public int getReplaySize() {
+		return replaySize;
+	}
+
+	@ModuleOption("number of most recent messages replayed to new subscribers, 0 to disable replay")
+	public void setReplaySize(int replaySize) {
+		this.replaySize = replaySize;
+	}
+
+	public long getReplayMaxAge() {
+		return replayMaxAge;
+	}
+
+	@ModuleOption("max age in milliseconds of messages replayed to new subscribers, 0 for no limit")
+	public void setReplayMaxAge(long replayMaxAge) {
+		this.replayMaxAge = replayMaxAge;
+	}
+
+	public String getConflationKey() {
+		return conflationKey;
+	}
+
+	@ModuleOption("header holding the key to conflate messages by, only the latest message per key is sent per tick")
+	public void setConflationKey(String conflationKey) {
+		this.conflationKey = conflationKey;
+	}
+
+	public String getConflationExpression() {
+		return conflationExpression;
+	}
+
+	@ModuleOption("SpEL expression evaluated against a message to get the key to conflate it by")
+	public void setConflationExpression(String conflationExpression) {
+		this.conflationExpression = conflationExpression;
+	}
+
+	public long getConflationTick() {
+		return conflationTick;
+	}
+
+	@ModuleOption("interval in milliseconds at which conflated messages are sent, at least 1")
+	public void setConflationTick(long conflationTick) {
+		this.conflationTick = conflationTick;
+	}
+
+	public String getFilterHeaders() {
+		return filterHeaders;
+	}
+
+	@ModuleOption("comma separated message headers subscribers may filter on with query parameters, e.g. ?device=a&device=b")
+	public void setFilterHeaders(String filterHeaders) {
+		this.filterHeaders = filterHeaders;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	@ModuleOption("max time in milliseconds to write pending messages to subscribers when the sink is undeployed")
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	@ModuleOption("time in milliseconds a connection may be silent before it is pinged, and a connection may take to complete its handshake before it is closed; 0 to disable the heartbeat")
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	public long getHeartbeatTimeout() {
+		return heartbeatTimeout;
+	}
+
+	@ModuleOption("time in milliseconds a pinged connection has to answer before it is closed")
+	public void setHeartbeatTimeout(long heartbeatTimeout) {
+		this.heartbeatTimeout = heartbeatTimeout;
+	}
+
+	public String getSslProvider() {
+		return sslProvider;
+	}
+
+	@ModuleOption("TLS engine: AUTO (OpenSSL if netty-tcnative is available, else JDK), OPENSSL or JDK")
+	public void setSslProvider(String sslProvider) {
+		this.sslProvider = sslProvider;
+	}
+
+	public String getSslCertificate() {
+		return sslCertificate;
+	}
+
+	@ModuleOption("PEM file of the TLS certificate chain, a self signed certificate is used if neither this nor a key store is set")
+	public void setSslCertificate(String sslCertificate) {
+		this.sslCertificate = sslCertificate;
+	}
+
+	public String getSslPrivateKey() {
+		return sslPrivateKey;
+	}
+
+	@ModuleOption("PEM file of the PKCS#8 private key of the TLS certificate")
+	public void setSslPrivateKey(String sslPrivateKey) {
+		this.sslPrivateKey = sslPrivateKey;
+	}
+
+	public String getSslPrivateKeyPassword() {
+		return sslPrivateKeyPassword;
+	}
+
+	@ModuleOption("password of the TLS private key, empty if it is not encrypted")
+	public void setSslPrivateKeyPassword(String sslPrivateKeyPassword) {
+		this.sslPrivateKeyPassword = sslPrivateKeyPassword;
+	}
+
+	public String getSslKeyStore() {
+		return sslKeyStore;
+	}
+
+	@ModuleOption("key store holding the TLS private key and certificate chain")
+	public void setSslKeyStore(String sslKeyStore) {
+		this.sslKeyStore = sslKeyStore;
+	}
+
+	public String getSslKeyStoreType() {
+		return sslKeyStoreType;
+	}
+
+	@ModuleOption("type of the TLS key store, e.g. JKS or PKCS12")
+	public void setSslKeyStoreType(String sslKeyStoreType) {
+		this.sslKeyStoreType = sslKeyStoreType;
+	}
+
+	public String getSslKeyStorePassword() {
+		return sslKeyStorePassword;
+	}
+
+	@ModuleOption("password of the TLS key store and its key entry")
+	public void setSslKeyStorePassword(String sslKeyStorePassword) {
+		this.sslKeyStorePassword = sslKeyStorePassword;
+	}
+
+	public String getSslKeyAlias() {
+		return sslKeyAlias;
+	}
+
+	@ModuleOption("alias of the key entry in the TLS key store, empty for the first key entry")
+	public void setSslKeyAlias(String sslKeyAlias) {
+		this.sslKeyAlias = sslKeyAlias;
+	}
+
+	public String getSslProtocols() {
+		return sslProtocols;
+	}
+
+	@ModuleOption("comma separated TLS protocols to enable, e.g. TLSv1.2, empty for the defaults of the engine")
+	public void setSslProtocols(String sslProtocols) {
+		this.sslProtocols = sslProtocols;
+	}
+
+	public String getSslCiphers() {
+		return sslCiphers;
+	}
+
+	@ModuleOption("comma separated TLS cipher suites to enable in order of preference, empty for the defaults of the engine")
+	public void setSslCiphers(String sslCiphers) {
+		this.sslCiphers = sslCiphers;
+	}
+
+	public long getSslSessionCacheSize() {
+		return sslSessionCacheSize;
+	}
+
+	@ModuleOption("number of TLS sessions cached for resumption, 0 for the default of the engine")
+	public void setSslSessionCacheSize(long sslSessionCacheSize) {
+		this.sslSessionCacheSize = sslSessionCacheSize;
+	}
+
+	public long getSslSessionTimeout() {
+		return sslSessionTimeout;
+	}
+
+	@ModuleOption("time in seconds a TLS session may be resumed, 0 for the default of the engine")
+	public void setSslSessionTimeout(long sslSessionTimeout) {
+		this.sslSessionTimeout = sslSessionTimeout;
+	}
+
+	public String getRelay() {
+		return relay;
+	}
+
+	@ModuleOption("relay to broadcast messages across the instances of the sink: tcp, the class name of a NettyWebSocketRelay, or empty for none")
+	public void setRelay(String relay) {
+		this.relay = relay;
+	}
+
+	public int getRelayPort() {
+		return relayPort;
+	}
+
+	@ModuleOption("port the tcp relay accepts the connections of its peers on")
+	public void setRelayPort(int relayPort) {
+		this.relayPort = relayPort;
+	}
+
+	public String getRelayPeers() {
+		return relayPeers;
+	}
+
+	@ModuleOption("comma separated host:port relay addresses of all instances of the sink, may include this instance")
+	public void setRelayPeers(String relayPeers) {
+		this.relayPeers = relayPeers;
+	}
+
+	public int getRelayBatchMaxBytes() {
+		return relayBatchMaxBytes;
+	}
+
+	@ModuleOption("size in bytes at which a batch of relayed messages is sent regardless of the delay")
+	public void setRelayBatchMaxBytes(int relayBatchMaxBytes) {
+		this.relayBatchMaxBytes = relayBatchMaxBytes;
+	}
+
+	public long getRelayBatchMaxDelay() {
+		return relayBatchMaxDelay;
+	}
+
+	@ModuleOption("max time in ms relayed messages wait for their batch to fill up")
+	public void setRelayBatchMaxDelay(long relayBatchMaxDelay) {
+		this.relayBatchMaxDelay = relayBatchMaxDelay;
+	}
+
+	public int getStreamThreshold() {
+		return streamThreshold;
+	}
+
+	@ModuleOption("payload size in bytes above which payloads, as well as streams and resources, are sent as fragmented messages read while they are written, which are neither compressed, replayed nor relayed; 0 to send every payload as single frame")
+	public void setStreamThreshold(int streamThreshold) {
+		this.streamThreshold = streamThreshold;
+	}
+
+	public int getStreamChunkSize() {
+		return streamChunkSize;
+	}
+
+	@ModuleOption("size in bytes of the fragments of streamed messages")
+	public void setStreamChunkSize(int streamChunkSize) {
+		this.streamChunkSize = streamChunkSize;
+	}
+
+	public long getStreamTimeout() {
+		return streamTimeout;
+	}
+
+	@ModuleOption("max time in ms a subscriber may take to write a fragment of a streamed message before it is disconnected")
+	public void setStreamTimeout(long streamTimeout) {
+		this.streamTimeout = streamTimeout;
+	}
+
+	public boolean isInbound() {
+		return inbound;
+	}
+
+	@ModuleOption("whether to publish the messages clients send, other than subscription updates starting with ?, to the output channel")
+	public void setInbound(boolean inbound) {
+		this.inbound = inbound;
+	}
+
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	@ModuleOption("max client messages waiting to be published, further messages are discarded")
+	public void setInboundQueueSize(int inboundQueueSize) {
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	public int getInboundBatchSize() {
+		return inboundBatchSize;
+	}
+
+	@ModuleOption("max client messages published by a single task of the dispatch pool")
+	public void setInboundBatchSize(int inboundBatchSize) {
+		this.inboundBatchSize = inboundBatchSize;
+	}
+
+	public double getInboundRateLimit() {
+		return inboundRateLimit;
+	}
+
+	@ModuleOption("max messages per second a single connection may send, applied after clientFrameRateLimit of its IP address, 0 for no limit")
+	public void setInboundRateLimit(double inboundRateLimit) {
+		this.inboundRateLimit = inboundRateLimit;
+	}
+
+	public int getMaxInboundMessageSize() {
+		return maxInboundMessageSize;
+	}
+
+	@ModuleOption("max size in bytes of a message sent by a client, fragmented messages are aggregated up to this size")
+	public void setMaxInboundMessageSize(int maxInboundMessageSize) {
+		this.maxInboundMessageSize = maxInboundMessageSize;
+	}
+
+	public double getRateLimitMessages() {
+		return rateLimitMessages;
+	}
+
+	@ModuleOption("max messages per second broadcast to the path, further messages are discarded, 0 for no limit")
+	public void setRateLimitMessages(double rateLimitMessages) {
+		this.rateLimitMessages = rateLimitMessages;
+	}
+
+	public double getRateLimitBytes() {
+		return rateLimitBytes;
+	}
+
+	@ModuleOption("max bytes per second broadcast to the path, further messages are discarded, 0 for no limit")
+	public void setRateLimitBytes(double rateLimitBytes) {
+		this.rateLimitBytes = rateLimitBytes;
+	}
+
+	public double getClientHandshakeRateLimit() {
+		return clientHandshakeRateLimit;
+	}
+
+	@ModuleOption("max handshakes per second of a client IP address, further handshakes are refused with 429, 0 for no limit")
+	public void setClientHandshakeRateLimit(double clientHandshakeRateLimit) {
+		this.clientHandshakeRateLimit = clientHandshakeRateLimit;
+	}
+
+	public double getClientFrameRateLimit() {
+		return clientFrameRateLimit;
+	}
+
+	@ModuleOption("max messages per second sent from a client IP address over all its connections, further messages are discarded, applied before inboundRateLimit of each connection, 0 for no limit")
+	public void setClientFrameRateLimit(double clientFrameRateLimit) {
+		this.clientFrameRateLimit = clientFrameRateLimit;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	@ModuleOption("max connections of the server, further handshakes are refused, 0 for no limit")
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxPathConnections() {
+		return maxPathConnections;
+	}
+
+	@ModuleOption("max subscribers of the path, further handshakes are refused, 0 for no limit")
+	public void setMaxPathConnections(int maxPathConnections) {
+		this.maxPathConnections = maxPathConnections;
+	}
+
+	public long getAdmissionMaxEventLoopLag() {
+		return admissionMaxEventLoopLag;
+	}
+
+	@ModuleOption("event loop lag in ms above which handshakes are refused, 0 to not measure it")
+	public void setAdmissionMaxEventLoopLag(long admissionMaxEventLoopLag) {
+		this.admissionMaxEventLoopLag = admissionMaxEventLoopLag;
+	}
+
+	public long getAdmissionMaxPendingBytes() {
+		return admissionMaxPendingBytes;
+	}
+
+	@ModuleOption("bytes pending for the subscribers of all paths above which handshakes are refused, 0 for no limit")
+	public void setAdmissionMaxPendingBytes(long admissionMaxPendingBytes) {
+		this.admissionMaxPendingBytes = admissionMaxPendingBytes;
+	}
+
+	public int getAdmissionRetryAfter() {
+		return admissionRetryAfter;
+	}
+
+	@ModuleOption("seconds refused clients are asked to wait in the Retry-After header of the 503 response")
+	public void setAdmissionRetryAfter(int admissionRetryAfter) {
+		this.admissionRetryAfter = admissionRetryAfter;
+	}
+
+	public String getAdmissionRedirectPeers() {
+		return admissionRedirectPeers;
+	}
+
+	@ModuleOption("comma separated base URLs refused clients are redirected to in turn instead of 503, e.g. ws://node2:9292")
+	public void setAdmissionRedirectPeers(String admissionRedirectPeers) {
+		this.admissionRedirectPeers = admissionRedirectPeers;
+	}
+
 }
@@ -0,0 +1,144 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.zip.Deflater;
+
+/**
+ * Support for the permessage-deflate WebSocket extension (RFC 7692).
+ * <p>
+ * The server always negotiates <code>server_no_context_takeover</code>: every message is compressed
+ * on its own, so a compressed frame can be shared by all subscribers of a path and no compression
+ * state has to be kept per connection.
+ */
+public final class PerMessageDeflate {
+
+	public static final String EXTENSION = "permessage-deflate";
+
+	public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+
+	/** name of the inflating decoder in the pipeline of connections that negotiated the extension */
+	public static final String DECODER_NAME = "wsdeflate";
+
+	/** the RSV1 bit of a frame, marking compressed messages */
+	public static final int RSV1 = 0x4;
+
+	/** the empty stored block a sync flush ends with, which is stripped from compressed messages */
+	static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+	static final int WINDOW_BITS = 15;
+
+	static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[Deflater.BEST_COMPRESSION + 1];
+		}
+	};
+
+	private PerMessageDeflate() {
+	}
+
+	/**
+	 * Picks the first acceptable permessage-deflate offer of a handshake request.
+	 *
+	 * @param offers the value of the <code>Sec-WebSocket-Extensions</code> request header, may be null
+	 * @return the value of the <code>Sec-WebSocket-Extensions</code> response header, or null if no
+	 * offer can be accepted
+	 */
+	public static String negotiate(String offers) {
+		if (offers == null) {
+			return null;
+		}
+		for (String offer : offers.split(",")) {
+			String[] params = offer.split(";");
+			if (!EXTENSION.equalsIgnoreCase(params[0].trim())) {
+				continue;
+			}
+			boolean acceptable = true;
+			boolean clientNoContextTakeover = false;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				String name = param;
+				String value = null;
+				int eq = param.indexOf('=');
+				if (eq >= 0) {
+					name = param.substring(0, eq).trim();
+					value = param.substring(eq + 1).trim().replace("\"", "");
+				}
+				if ("client_no_context_takeover".equalsIgnoreCase(name)) {
+					clientNoContextTakeover = true;
+				} else if ("server_max_window_bits".equalsIgnoreCase(name)) {
+					// java.util.zip always compresses with a 32k window
+					acceptable &= String.valueOf(WINDOW_BITS).equals(value);
+				} else if (!"server_no_context_takeover".equalsIgnoreCase(name)
+						&& !"client_max_window_bits".equalsIgnoreCase(name)) {
+					acceptable = false;
+				}
+			}
+			if (acceptable) {
+				return EXTENSION + "; server_no_context_takeover"
+						+ (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compresses the content of a (non fragmented) text or binary frame into a new frame with the
+	 * RSV1 bit set. The given frame is not released.
+	 */
+	public static WebSocketFrame compress(WebSocketFrame frame, int level, ByteBufAllocator allocator) {
+		ByteBuf content = frame.content();
+		byte[] input;
+		int offset;
+		int length = content.readableBytes();
+		if (content.hasArray()) {
+			input = content.array();
+			offset = content.arrayOffset() + content.readerIndex();
+		} else {
+			input = new byte[length];
+			offset = 0;
+			content.getBytes(content.readerIndex(), input);
+		}
+
+		Deflater deflater = deflater(level);
+		ByteBuf compressed = allocator.buffer(length / 2 + 64);
+		try {
+			deflater.setInput(input, offset, length);
+			byte[] chunk = new byte[Math.min(Math.max(length, 64), 8192)];
+			int n;
+			do {
+				n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+				compressed.writeBytes(chunk, 0, n);
+			} while (n == chunk.length);
+		} catch (RuntimeException e) {
+			compressed.release();
+			throw e;
+		} finally {
+			deflater.reset();
+		}
+		// strip the trailing empty block, the receiver appends it again before inflating
+		if (compressed.readableBytes() >= TAIL.length) {
+			compressed.writerIndex(compressed.writerIndex() - TAIL.length);
+		}
+		int rsv = frame.rsv() | RSV1;
+		if (frame instanceof BinaryWebSocketFrame) {
+			return new BinaryWebSocketFrame(true, rsv, compressed);
+		}
+		return new TextWebSocketFrame(true, rsv, compressed);
+	}
+
+	static Deflater deflater(int level) {
+		Deflater[] cache = deflaters.get();
+		Deflater deflater = cache[level];
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+			cache[level] = deflater;
+		}
+		return deflater;
+	}
+}
@@ -0,0 +1,96 @@
+package io.riox.springxd.sinks.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the messages a client compressed with the permessage-deflate extension.
+ * <p>
+ * The inflater keeps its window across messages, which is correct whether or not the client
+ * resets its compression context after each message.
+ */
+public class PerMessageDeflateDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+
+	/** upper bound for a single inflated frame, protecting against compression bombs */
+	static final int MAX_INFLATED_FRAME_SIZE = 1024 * 1024;
+
+	final Inflater inflater = new Inflater(true);
+
+	final byte[] chunk = new byte[8192];
+
+	boolean compressedMessage;
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+		if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+			compressedMessage = (frame.rsv() & PerMessageDeflate.RSV1) != 0;
+		} else if (!(frame instanceof ContinuationWebSocketFrame)) {
+			// control frames are never compressed
+			out.add(frame.retain());
+			return;
+		}
+		if (!compressedMessage) {
+			out.add(frame.retain());
+			return;
+		}
+
+		ByteBuf inflated = ctx.alloc().buffer(frame.content().readableBytes() * 2);
+		try {
+			inflate(frame.content(), inflated);
+			if (frame.isFinalFragment()) {
+				inflate(PerMessageDeflate.TAIL, 0, PerMessageDeflate.TAIL.length, inflated);
+				compressedMessage = false;
+			}
+		} catch (Exception e) {
+			inflated.release();
+			throw e;
+		}
+
+		int rsv = frame.rsv() & ~PerMessageDeflate.RSV1;
+		if (frame instanceof TextWebSocketFrame) {
+			out.add(new TextWebSocketFrame(frame.isFinalFragment(), rsv, inflated));
+		} else if (frame instanceof BinaryWebSocketFrame) {
+			out.add(new BinaryWebSocketFrame(frame.isFinalFragment(), rsv, inflated));
+		} else {
+			out.add(new ContinuationWebSocketFrame(frame.isFinalFragment(), rsv, inflated));
+		}
+	}
+
+	void inflate(ByteBuf content, ByteBuf out) throws DataFormatException {
+		int length = content.readableBytes();
+		if (content.hasArray()) {
+			inflate(content.array(), content.arrayOffset() + content.readerIndex(), length, out);
+		} else {
+			byte[] input = new byte[length];
+			content.getBytes(content.readerIndex(), input);
+			inflate(input, 0, length, out);
+		}
+	}
+
+	void inflate(byte[] input, int offset, int length, ByteBuf out) throws DataFormatException {
+		inflater.setInput(input, offset, length);
+		int n;
+		while ((n = inflater.inflate(chunk)) > 0) {
+			out.writeBytes(chunk, 0, n);
+			if (out.readableBytes() > MAX_INFLATED_FRAME_SIZE) {
+				throw new CorruptedFrameException("inflated frame exceeds " + MAX_INFLATED_FRAME_SIZE + " bytes");
+			}
+		}
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		inflater.end();
+		super.handlerRemoved(ctx);
+	}
+}
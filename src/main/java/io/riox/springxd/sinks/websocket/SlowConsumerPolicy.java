@@ -0,0 +1,20 @@
+package io.riox.springxd.sinks.websocket;
+
+/**
+ * What to do with messages for a subscriber whose channel is not writable, i.e. whose
+ * outbound buffer exceeds the configured write buffer high water mark.
+ */
+public enum SlowConsumerPolicy {
+
+	/** discard the message that could not be written */
+	DROP_NEWEST,
+
+	/** queue the message, discarding the oldest queued message once the per-channel queue is full */
+	DROP_OLDEST,
+
+	/** keep only the latest message, replacing any message still queued */
+	CONFLATE,
+
+	/** close the connection of the slow subscriber */
+	DISCONNECT
+}
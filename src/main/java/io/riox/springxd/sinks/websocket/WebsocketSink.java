@@ -1,23 +1,29 @@
 package io.riox.springxd.sinks.websocket;
 
-import io.netty.channel.Channel;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
-import java.security.cert.CertificateException;
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
-import javax.net.ssl.SSLException;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.integration.channel.DirectChannel;
 import org.springframework.integration.config.EnableIntegration;
 import org.springframework.integration.dsl.Channels;
@@ -25,11 +31,10 @@ import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlows;
 import org.springframework.integration.dsl.channel.MessageChannelSpec;
 import org.springframework.integration.dsl.support.Function;
-import org.springframework.integration.support.MessageBuilder;
-import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
-import org.springframework.messaging.MessagingException;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
 
 @Configuration
 @EnableIntegration
@@ -47,63 +52,599 @@ public class WebsocketSink {
 	@Value("${ssl}")
 	boolean ssl;
 
+	@Value("${writeBufferHighWaterMark:" + NettyWebsocketSinkOptions.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK + "}")
+	int writeBufferHighWaterMark;
+
+	@Value("${writeBufferLowWaterMark:" + NettyWebsocketSinkOptions.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK + "}")
+	int writeBufferLowWaterMark;
+
+	@Value("${slowConsumerPolicy:" + NettyWebsocketSinkOptions.DEFAULT_SLOW_CONSUMER_POLICY + "}")
+	SlowConsumerPolicy slowConsumerPolicy;
+
+	@Value("${slowConsumerQueueSize:" + NettyWebsocketSinkOptions.DEFAULT_SLOW_CONSUMER_QUEUE_SIZE + "}")
+	int slowConsumerQueueSize;
+
+	@Value("${flushMaxDelay:" + NettyWebsocketSinkOptions.DEFAULT_FLUSH_MAX_DELAY + "}")
+	long flushMaxDelay;
+
+	@Value("${flushMaxBytes:" + NettyWebsocketSinkOptions.DEFAULT_FLUSH_MAX_BYTES + "}")
+	int flushMaxBytes;
+
+	@Value("${dispatchMode:" + NettyWebsocketSinkOptions.DEFAULT_DISPATCH_MODE + "}")
+	NettyWebSocketDispatcher.Mode dispatchMode;
+
+	@Value("${dispatchThreads:" + NettyWebsocketSinkOptions.DEFAULT_DISPATCH_THREADS + "}")
+	int dispatchThreads;
+
+	@Value("${dispatchQueueSize:" + NettyWebsocketSinkOptions.DEFAULT_DISPATCH_QUEUE_SIZE + "}")
+	int dispatchQueueSize;
+
+	@Value("${dispatchRejectionPolicy:" + NettyWebsocketSinkOptions.DEFAULT_DISPATCH_REJECTION_POLICY + "}")
+	NettyWebSocketDispatcher.RejectionPolicy dispatchRejectionPolicy;
+
+	@Value("${dispatchTimeout:" + NettyWebsocketSinkOptions.DEFAULT_DISPATCH_TIMEOUT + "}")
+	long dispatchTimeout;
+
+	@Value("${transport:" + NettyWebsocketSinkOptions.DEFAULT_TRANSPORT + "}")
+	NettyWebSocketServer.Transport transport;
+
+	@Value("${acceptorThreads:" + NettyWebsocketSinkOptions.DEFAULT_ACCEPTOR_THREADS + "}")
+	int acceptorThreads;
+
+	@Value("${workerThreads:" + NettyWebsocketSinkOptions.DEFAULT_WORKER_THREADS + "}")
+	int workerThreads;
+
+	@Value("${tcpNoDelay:" + NettyWebsocketSinkOptions.DEFAULT_TCP_NO_DELAY + "}")
+	boolean tcpNoDelay;
+
+	@Value("${sendBufferSize:" + NettyWebsocketSinkOptions.DEFAULT_SEND_BUFFER_SIZE + "}")
+	int sendBufferSize;
+
+	@Value("${backlog:" + NettyWebsocketSinkOptions.DEFAULT_BACKLOG + "}")
+	int backlog;
+
+	@Value("${pooledAllocator:" + NettyWebsocketSinkOptions.DEFAULT_POOLED_ALLOCATOR + "}")
+	boolean pooledAllocator;
+
+	@Value("${compression:" + NettyWebsocketSinkOptions.DEFAULT_COMPRESSION + "}")
+	boolean compression;
+
+	@Value("${compressionLevel:" + NettyWebsocketSinkOptions.DEFAULT_COMPRESSION_LEVEL + "}")
+	int compressionLevel;
+
+	@Value("${compressionThreshold:" + NettyWebsocketSinkOptions.DEFAULT_COMPRESSION_THRESHOLD + "}")
+	int compressionThreshold;
+
+	@Value("${payloadMode:" + NettyWebsocketSinkOptions.DEFAULT_PAYLOAD_MODE + "}")
+	NettyWebSocketBroadcaster.PayloadMode payloadMode;
+
+	@Value("${payloadSerializer:" + NettyWebsocketSinkOptions.DEFAULT_PAYLOAD_SERIALIZER + "}")
+	String payloadSerializer;
+
+	@Value("${tracingSampleRate:" + NettyWebsocketSinkOptions.DEFAULT_TRACING_SAMPLE_RATE + "}")
+	double tracingSampleRate;
+
+	@Value("${metricsPath:" + NettyWebsocketSinkOptions.DEFAULT_METRICS_PATH + "}")
+	String metricsPath;
+
+	@Value("${replaySize:" + NettyWebsocketSinkOptions.DEFAULT_REPLAY_SIZE + "}")
+	int replaySize;
+
+	@Value("${replayMaxAge:" + NettyWebsocketSinkOptions.DEFAULT_REPLAY_MAX_AGE + "}")
+	long replayMaxAge;
+
+	@Value("${conflationKey:" + NettyWebsocketSinkOptions.DEFAULT_CONFLATION_KEY + "}")
+	String conflationKey;
+
+	@Value("${conflationExpression:" + NettyWebsocketSinkOptions.DEFAULT_CONFLATION_EXPRESSION + "}")
+	String conflationExpression;
+
+	@Value("${conflationTick:" + NettyWebsocketSinkOptions.DEFAULT_CONFLATION_TICK + "}")
+	long conflationTick;
+
+	@Value("${filterHeaders:" + NettyWebsocketSinkOptions.DEFAULT_FILTER_HEADERS + "}")
+	String filterHeaders;
+
+	@Value("${shutdownTimeout:" + NettyWebsocketSinkOptions.DEFAULT_SHUTDOWN_TIMEOUT + "}")
+	long shutdownTimeout;
+
+	@Value("${heartbeatInterval:" + NettyWebsocketSinkOptions.DEFAULT_HEARTBEAT_INTERVAL + "}")
+	long heartbeatInterval;
+
+	@Value("${heartbeatTimeout:" + NettyWebsocketSinkOptions.DEFAULT_HEARTBEAT_TIMEOUT + "}")
+	long heartbeatTimeout;
+
+	@Value("${sslProvider:" + NettyWebsocketSinkOptions.DEFAULT_SSL_PROVIDER + "}")
+	NettyWebSocketSsl.Provider sslProvider;
+
+	@Value("${sslCertificate:" + NettyWebsocketSinkOptions.DEFAULT_SSL_CERTIFICATE + "}")
+	String sslCertificate;
+
+	@Value("${sslPrivateKey:" + NettyWebsocketSinkOptions.DEFAULT_SSL_PRIVATE_KEY + "}")
+	String sslPrivateKey;
+
+	@Value("${sslPrivateKeyPassword:" + NettyWebsocketSinkOptions.DEFAULT_SSL_PRIVATE_KEY_PASSWORD + "}")
+	String sslPrivateKeyPassword;
+
+	@Value("${sslKeyStore:" + NettyWebsocketSinkOptions.DEFAULT_SSL_KEY_STORE + "}")
+	String sslKeyStore;
+
+	@Value("${sslKeyStoreType:" + NettyWebsocketSinkOptions.DEFAULT_SSL_KEY_STORE_TYPE + "}")
+	String sslKeyStoreType;
+
+	@Value("${sslKeyStorePassword:" + NettyWebsocketSinkOptions.DEFAULT_SSL_KEY_STORE_PASSWORD + "}")
+	String sslKeyStorePassword;
+
+	@Value("${sslKeyAlias:" + NettyWebsocketSinkOptions.DEFAULT_SSL_KEY_ALIAS + "}")
+	String sslKeyAlias;
+
+	@Value("${sslProtocols:" + NettyWebsocketSinkOptions.DEFAULT_SSL_PROTOCOLS + "}")
+	String sslProtocols;
+
+	@Value("${sslCiphers:" + NettyWebsocketSinkOptions.DEFAULT_SSL_CIPHERS + "}")
+	String sslCiphers;
+
+	@Value("${sslSessionCacheSize:" + NettyWebsocketSinkOptions.DEFAULT_SSL_SESSION_CACHE_SIZE + "}")
+	long sslSessionCacheSize;
+
+	@Value("${sslSessionTimeout:" + NettyWebsocketSinkOptions.DEFAULT_SSL_SESSION_TIMEOUT + "}")
+	long sslSessionTimeout;
+
+	@Value("${relay:" + NettyWebsocketSinkOptions.DEFAULT_RELAY + "}")
+	String relay;
+
+	@Value("${relayPort:" + NettyWebsocketSinkOptions.DEFAULT_RELAY_PORT + "}")
+	int relayPort;
+
+	@Value("${relayPeers:" + NettyWebsocketSinkOptions.DEFAULT_RELAY_PEERS + "}")
+	String relayPeers;
+
+	@Value("${relayBatchMaxBytes:" + NettyWebsocketSinkOptions.DEFAULT_RELAY_BATCH_MAX_BYTES + "}")
+	int relayBatchMaxBytes;
+
+	@Value("${relayBatchMaxDelay:" + NettyWebsocketSinkOptions.DEFAULT_RELAY_BATCH_MAX_DELAY + "}")
+	long relayBatchMaxDelay;
+
+	@Value("${streamThreshold:" + NettyWebsocketSinkOptions.DEFAULT_STREAM_THRESHOLD + "}")
+	int streamThreshold;
+
+	@Value("${streamChunkSize:" + NettyWebsocketSinkOptions.DEFAULT_STREAM_CHUNK_SIZE + "}")
+	int streamChunkSize;
+
+	@Value("${streamTimeout:" + NettyWebsocketSinkOptions.DEFAULT_STREAM_TIMEOUT + "}")
+	long streamTimeout;
+
+	@Value("${inbound:" + NettyWebsocketSinkOptions.DEFAULT_INBOUND + "}")
+	boolean inbound;
+
+	@Value("${inboundQueueSize:" + NettyWebsocketSinkOptions.DEFAULT_INBOUND_QUEUE_SIZE + "}")
+	int inboundQueueSize;
+
+	@Value("${inboundBatchSize:" + NettyWebsocketSinkOptions.DEFAULT_INBOUND_BATCH_SIZE + "}")
+	int inboundBatchSize;
+
+	@Value("${inboundRateLimit:" + NettyWebsocketSinkOptions.DEFAULT_INBOUND_RATE_LIMIT + "}")
+	double inboundRateLimit;
+
+	@Value("${maxInboundMessageSize:" + NettyWebsocketSinkOptions.DEFAULT_MAX_INBOUND_MESSAGE_SIZE + "}")
+	int maxInboundMessageSize;
+
+	@Value("${rateLimitMessages:" + NettyWebsocketSinkOptions.DEFAULT_RATE_LIMIT_MESSAGES + "}")
+	double rateLimitMessages;
+
+	@Value("${rateLimitBytes:" + NettyWebsocketSinkOptions.DEFAULT_RATE_LIMIT_BYTES + "}")
+	double rateLimitBytes;
+
+	@Value("${clientHandshakeRateLimit:" + NettyWebsocketSinkOptions.DEFAULT_CLIENT_HANDSHAKE_RATE_LIMIT + "}")
+	double clientHandshakeRateLimit;
+
+	@Value("${clientFrameRateLimit:" + NettyWebsocketSinkOptions.DEFAULT_CLIENT_FRAME_RATE_LIMIT + "}")
+	double clientFrameRateLimit;
+
+	@Value("${maxConnections:" + NettyWebsocketSinkOptions.DEFAULT_MAX_CONNECTIONS + "}")
+	int maxConnections;
+
+	@Value("${maxPathConnections:" + NettyWebsocketSinkOptions.DEFAULT_MAX_PATH_CONNECTIONS + "}")
+	int maxPathConnections;
+
+	@Value("${admissionMaxEventLoopLag:" + NettyWebsocketSinkOptions.DEFAULT_ADMISSION_MAX_EVENT_LOOP_LAG + "}")
+	long admissionMaxEventLoopLag;
+
+	@Value("${admissionMaxPendingBytes:" + NettyWebsocketSinkOptions.DEFAULT_ADMISSION_MAX_PENDING_BYTES + "}")
+	long admissionMaxPendingBytes;
+
+	@Value("${admissionRetryAfter:" + NettyWebsocketSinkOptions.DEFAULT_ADMISSION_RETRY_AFTER + "}")
+	int admissionRetryAfter;
+
+	@Value("${admissionRedirectPeers:" + NettyWebsocketSinkOptions.DEFAULT_ADMISSION_REDIRECT_PEERS + "}")
+	String admissionRedirectPeers;
+
 	private MessageHandler handler;
 	private DirectChannel channel;
-
-	protected static final String MSG_HEADER_PATH = "__path";
-	static final String KEY_WEBSOCKET_SERVERS = "__NETTY_WEBSOCKET_SERVERS__";
+	private DirectChannel outputChannel;
+	private ChannelGroup subscribers;
+	private NettyWebSocketTracer tracer;
+	private NettyWebSocketConflator conflator;
+	private NettyWebSocketDispatcher dispatcher;
+	private NettyWebSocketRelay messageRelay;
+	private NettyWebSocketInbound messageInbound;
+	/** tells the MBeans of this sink apart from those of other sinks of the same path */
+	private final int instance = NettyWebSocketJmx.nextInstance();
+	private boolean portRetained;
+	private final Runnable serverStarter = new Runnable() {
+		public void run() {
+			startServer();
+		}
+	};
+	private boolean pathBound;
 
 	@PostConstruct
-	public void init() throws InterruptedException, CertificateException, SSLException {
+	public void init() throws Exception {
 		log.info("Starting netty websocket server...");
 		startWebsocketServerNetty();
 		log.info("Started netty server on port {}", port);
+		if (tracingSampleRate > 0) {
+			tracer = new NettyWebSocketTracer(tracingSampleRate);
+			for (String stage : NettyWebSocketTracer.STAGES) {
+				NettyWebSocketJmx.register(tracer.stage(stage), NettyWebSocketJmx.latencyName(path, instance, stage));
+			}
+		}
+		if (streamThreshold > 0 && (compression || replaySize > 0 || StringUtils.hasText(relay))) {
+			log.warn("Messages of path {} larger than {} bytes, as well as streams and resources, are streamed and "
+					+ "neither compressed, replayed nor relayed to the other instances", path, streamThreshold);
+		}
+		if (StringUtils.hasText(relay)) {
+			messageRelay = createRelay();
+			messageRelay.start(relayListener());
+			if (messageRelay instanceof NettyWebSocketRelayMBean) {
+				NettyWebSocketJmx.register(messageRelay, NettyWebSocketJmx.relayName(path, instance));
+			}
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private Map<Integer,NettyWebSocketServer> getServers() {
-		synchronized (System.class) {
-			if(!System.getProperties().containsKey(KEY_WEBSOCKET_SERVERS)) {
-				System.getProperties().put(KEY_WEBSOCKET_SERVERS, 
-						new ConcurrentHashMap<Integer,NettyWebSocketServer>());
-			}
-			return (Map<Integer, NettyWebSocketServer>) System.getProperties().get(KEY_WEBSOCKET_SERVERS);
+	NettyWebSocketRelay createRelay() {
+		if ("tcp".equalsIgnoreCase(relay)) {
+			return new NettyWebSocketTcpRelay(relayPort, NettyWebSocketTcpRelay.parsePeers(relayPeers),
+					relayBatchMaxBytes, relayBatchMaxDelay, TimeUnit.MILLISECONDS);
 		}
+		return BeanUtils.instantiateClass(ClassUtils.resolveClassName(relay, getClass().getClassLoader()),
+				NettyWebSocketRelay.class);
 	}
 
-//	@Bean
-	synchronized Object startWebsocketServerNetty() throws 
-			InterruptedException, CertificateException, SSLException {
-		Map<Integer, NettyWebSocketServer> servers = getServers();
-		synchronized (servers) {
-			if(!servers.containsKey(port)) {
-				NettyWebSocketServer server = new NettyWebSocketServer(port);
-				servers.put(port, server);
+	/**
+	 * @return the listener broadcasting the messages relayed from the other instances of the sink to the
+	 * local subscribers, through the dispatcher of the path so that they are not interleaved with
+	 * the writes of local messages. The listener runs on the event loop of the relay, so it never waits
+	 * for the dispatcher: relayed messages are dropped while its queue is full, whatever its rejection
+	 * policy.
+	 */
+	NettyWebSocketRelay.Listener relayListener() {
+		return new NettyWebSocketRelay.Listener() {
+			public void relayed(String relayedPath, final WebSocketFrame frame, final Map<String,String> headers) {
+				if (!path.equals(relayedPath)) {
+					log.warn("Dropping message relayed for path {} to the sink of path {}", relayedPath, path);
+					frame.release();
+					return;
+				}
+				Runnable broadcast = new Runnable() {
+					public void run() {
+						broadcaster().broadcast(frame, subscribers, headers);
+					}
+				};
+				if (dispatchMode == NettyWebSocketDispatcher.Mode.DIRECT) {
+					broadcast.run();
+					return;
+				}
+				boolean queued;
 				try {
-					server.run();
-				} catch (Exception e) {
-					log.error("Cannot run Websocket server. Probably already running?", e);
+					queued = dispatcher().tryExecute(broadcast);
+				} catch (RejectedExecutionException e) {
+					queued = false;
+				}
+				if (!queued) {
+					log.debug("Dispatch queue of path {} is full, dropping relayed message", path);
+					frame.release();
 				}
 			}
-			Map<String,List<Channel>> pathsToChannels = NettyWebSocketServer.getPathsToChannels();
-			if(!pathsToChannels.containsKey(path)) {
-				pathsToChannels.put(path, new LinkedList<Channel>());
+		};
+	}
+
+	/**
+	 * Undeploys the sink: hands on the messages still conflated or queued for dispatch, writes the
+	 * backlogs of the subscribers and closes them with a close frame, all within the shutdown timeout,
+	 * then unbinds the path and unregisters its MBeans. The port is unbound if no other sink uses it.
+	 */
+	@PreDestroy
+	public void destroy() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+		if (conflator != null) {
+			conflator.stop();
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.conflationName(path, instance));
+		}
+		if (dispatcher != null) {
+			if (!dispatcher.awaitIdle(remaining(deadline), TimeUnit.NANOSECONDS)) {
+				log.warn("Undeploying path {} with {} messages not dispatched", path, dispatcher.getQueueDepth());
+			}
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.dispatcherName(path, instance));
+		}
+		if (messageInbound != null) {
+			messageInbound.stop();
+			if (!messageInbound.awaitIdle(remaining(deadline), TimeUnit.NANOSECONDS)) {
+				log.warn("Undeploying path {} with {} received messages not published", path,
+						messageInbound.getQueueDepth());
+			}
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.inboundName(path));
+			messageInbound = null;
+		}
+		if (messageRelay != null) {
+			messageRelay.stop();
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.relayName(path, instance));
+			messageRelay = null;
+		}
+		if (pathBound) {
+			pathBound = false;
+			NettyWebSocketPathGroup group = (NettyWebSocketPathGroup) subscribers;
+			NettyWebSocketSubscriptionRegistry.unbind(group);
+			if (!group.closeGracefully(remaining(deadline), TimeUnit.NANOSECONDS)) {
+				log.warn("Closed subscribers of path {} before their pending messages were written", path);
+			}
+			group.setReplay(0, 0, TimeUnit.MILLISECONDS);
+			NettyWebSocketJmx.unregister(NettyWebSocketJmx.pathName(path));
+		}
+		if (tracer != null) {
+			for (String stage : NettyWebSocketTracer.STAGES) {
+				NettyWebSocketJmx.unregister(NettyWebSocketJmx.latencyName(path, instance, stage));
+			}
+		}
+		if (portRetained) {
+			portRetained = false;
+			NettyWebSocketServerRuntime.release(port, serverStarter);
+		}
+		log.info("Undeployed netty websocket sink of path {}", path);
+	}
+
+	static long remaining(long deadline) {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+	/**
+	 * Starts a server on the port of this sink unless another sink of the container already did,
+	 * and binds the path of this sink.
+	 */
+	synchronized void startWebsocketServerNetty() {
+		portRetained = true;
+		if (NettyWebSocketServerRuntime.retain(port, serverStarter)) {
+			startServer();
+		} else {
+			List<String> conflicts = conflicts(serverOptions(), NettyWebSocketServerRuntime.options(port));
+			if (!conflicts.isEmpty()) {
+				log.warn("Port {} is served by another sink, whose options apply instead of {}", port, conflicts);
+			}
+		}
+		Map<String,String> pathOptions = pathOptions();
+		NettyWebSocketPathGroup group = null;
+		subscribers = NettyWebSocketSubscriptionRegistry.lookup(path);
+		if (subscribers == null) {
+			group = pathGroup();
+			subscribers = NettyWebSocketSubscriptionRegistry.bind(group);
+		}
+		if (subscribers == group) {
+			pathBound = true;
+			NettyWebSocketSubscriptionRegistry.setPathOptions(path, pathOptions);
+			NettyWebSocketSubscriptionRegistry.setMaxSubscribers(path, maxPathConnections);
+			NettyWebSocketJmx.register(group, NettyWebSocketJmx.pathName(path));
+			if (messageInbound != null) {
+				NettyWebSocketJmx.register(messageInbound, NettyWebSocketJmx.inboundName(path));
+			}
+		} else {
+			// the sink binding the path sends the messages and publishes those of the clients
+			messageInbound = null;
+			List<String> conflicts = conflicts(pathOptions, NettyWebSocketSubscriptionRegistry.pathOptions(path));
+			if (!conflicts.isEmpty()) {
+				log.warn("Path {} is bound by another sink, whose options apply instead of {}", path, conflicts);
+			}
+		}
+	}
+
+	/**
+	 * Starts a server on the port of this sink with its options, when the sink is the first to use the
+	 * port or takes it over from a sink releasing it. If the server cannot be started, the sink stops
+	 * using the port.
+	 */
+	void startServer() {
+		NettyWebSocketServer server = new NettyWebSocketServer(port);
+		server.setWriteBufferWaterMarks(writeBufferLowWaterMark, writeBufferHighWaterMark);
+		server.setTransport(transport);
+		server.setAcceptorThreads(acceptorThreads);
+		server.setWorkerThreads(workerThreads);
+		server.setTcpNoDelay(tcpNoDelay);
+		server.setSendBufferSize(sendBufferSize);
+		server.setBacklog(backlog);
+		server.setPooledAllocator(pooledAllocator);
+		server.setCompression(compression);
+		server.setMetricsPath(metricsPath);
+		server.setHeartbeat(heartbeatInterval, heartbeatTimeout);
+		server.setMaxMessageSize(maxInboundMessageSize);
+		server.setClientRateLimits(clientHandshakeRateLimit, clientFrameRateLimit);
+		server.setAdmission(admission());
+		try {
+			if (ssl) {
+				server.setSsl(sslSettings());
+			}
+			server.run();
+			NettyWebSocketServerRuntime.setOptions(port, serverOptions());
+		} catch (Exception e) {
+			log.error("Cannot run Websocket server. Probably already running?", e);
+			portRetained = false;
+			// only this sink stops using the port, the next one gets to start its server
+			NettyWebSocketServerRuntime.release(port, serverStarter);
+		}
+	}
+
+	/**
+	 * @return the options of this sink that only apply if it starts the server of the port, as other
+	 * sinks using the port are served by that server
+	 */
+	Map<String,String> serverOptions() {
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		options.put("ssl", String.valueOf(ssl));
+		if (ssl) {
+			options.put("sslProvider", String.valueOf(sslProvider));
+			options.put("sslCertificate", String.valueOf(sslCertificate));
+			options.put("sslKeyStore", String.valueOf(sslKeyStore));
+			options.put("sslProtocols", String.valueOf(sslProtocols));
+			options.put("sslCiphers", String.valueOf(sslCiphers));
+		}
+		options.put("transport", String.valueOf(transport));
+		options.put("acceptorThreads", String.valueOf(acceptorThreads));
+		options.put("workerThreads", String.valueOf(workerThreads));
+		options.put("writeBufferHighWaterMark", String.valueOf(writeBufferHighWaterMark));
+		options.put("writeBufferLowWaterMark", String.valueOf(writeBufferLowWaterMark));
+		options.put("tcpNoDelay", String.valueOf(tcpNoDelay));
+		options.put("sendBufferSize", String.valueOf(sendBufferSize));
+		options.put("backlog", String.valueOf(backlog));
+		options.put("pooledAllocator", String.valueOf(pooledAllocator));
+		options.put("compression", String.valueOf(compression));
+		options.put("metricsPath", String.valueOf(metricsPath));
+		options.put("heartbeatInterval", String.valueOf(heartbeatInterval));
+		options.put("heartbeatTimeout", String.valueOf(heartbeatTimeout));
+		options.put("maxInboundMessageSize", String.valueOf(maxInboundMessageSize));
+		options.put("clientHandshakeRateLimit", String.valueOf(clientHandshakeRateLimit));
+		options.put("clientFrameRateLimit", String.valueOf(clientFrameRateLimit));
+		options.put("maxConnections", String.valueOf(maxConnections));
+		options.put("admissionMaxEventLoopLag", String.valueOf(admissionMaxEventLoopLag));
+		options.put("admissionMaxPendingBytes", String.valueOf(admissionMaxPendingBytes));
+		options.put("admissionRetryAfter", String.valueOf(admissionRetryAfter));
+		options.put("admissionRedirectPeers", String.valueOf(admissionRedirectPeers));
+		return options;
+	}
+
+	/**
+	 * @return the group of subscribers to bind the path of this sink with, configured with its options
+	 */
+	NettyWebSocketPathGroup pathGroup() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup(path, slowConsumerPolicy, slowConsumerQueueSize);
+		group.setFlushPolicy(flushMaxDelay, TimeUnit.MILLISECONDS, flushMaxBytes);
+		group.setCompression(compression, compressionLevel, compressionThreshold);
+		group.setReplay(replaySize, replayMaxAge, TimeUnit.MILLISECONDS);
+		group.setStreaming(streamThreshold, streamChunkSize, streamTimeout, TimeUnit.MILLISECONDS);
+		group.setRateLimit(rateLimitMessages, rateLimitBytes);
+		if (StringUtils.hasText(filterHeaders)) {
+			group.setFilterHeaders(StringUtils.tokenizeToStringArray(filterHeaders, ","));
+		}
+		if (inbound) {
+			messageInbound = new NettyWebSocketInbound(path, output(), NettyWebSocketDispatcher.blockingPool(),
+					inboundQueueSize, inboundBatchSize, inboundRateLimit);
+			group.setInbound(messageInbound);
+		}
+		return group;
+	}
+
+	/**
+	 * @return the options of this sink that only apply if it binds the path, as other sinks using the
+	 * path send their messages to its subscribers
+	 */
+	Map<String,String> pathOptions() {
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		options.put("slowConsumerPolicy", String.valueOf(slowConsumerPolicy));
+		options.put("slowConsumerQueueSize", String.valueOf(slowConsumerQueueSize));
+		options.put("flushMaxDelay", String.valueOf(flushMaxDelay));
+		options.put("flushMaxBytes", String.valueOf(flushMaxBytes));
+		options.put("compression", String.valueOf(compression));
+		options.put("compressionLevel", String.valueOf(compressionLevel));
+		options.put("compressionThreshold", String.valueOf(compressionThreshold));
+		options.put("replaySize", String.valueOf(replaySize));
+		options.put("replayMaxAge", String.valueOf(replayMaxAge));
+		options.put("streamThreshold", String.valueOf(streamThreshold));
+		options.put("streamChunkSize", String.valueOf(streamChunkSize));
+		options.put("streamTimeout", String.valueOf(streamTimeout));
+		options.put("rateLimitMessages", String.valueOf(rateLimitMessages));
+		options.put("rateLimitBytes", String.valueOf(rateLimitBytes));
+		options.put("filterHeaders", String.valueOf(filterHeaders));
+		options.put("inbound", String.valueOf(inbound));
+		options.put("inboundQueueSize", String.valueOf(inboundQueueSize));
+		options.put("inboundBatchSize", String.valueOf(inboundBatchSize));
+		options.put("inboundRateLimit", String.valueOf(inboundRateLimit));
+		options.put("maxPathConnections", String.valueOf(maxPathConnections));
+		return options;
+	}
+
+	/**
+	 * @param bound the options in effect, null if unknown
+	 * @return the given options that differ from those in effect, as <code>name=value (in effect: value)</code>
+	 */
+	static List<String> conflicts(Map<String,String> options, Map<String,String> bound) {
+		List<String> conflicts = new ArrayList<String>();
+		if (bound == null) {
+			return conflicts;
+		}
+		for (Map.Entry<String,String> option : options.entrySet()) {
+			String value = bound.get(option.getKey());
+			if (value != null && !value.equals(option.getValue())) {
+				conflicts.add(option.getKey() + "=" + option.getValue() + " (in effect: " + value + ")");
 			}
-			return servers.get(port);
 		}
+		return conflicts;
+	}
+
+	NettyWebSocketAdmission admission() {
+		NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+		admission.setMaxConnections(maxConnections);
+		admission.setMaxEventLoopLag(admissionMaxEventLoopLag, TimeUnit.MILLISECONDS);
+		admission.setMaxPendingBytes(admissionMaxPendingBytes);
+		admission.setRetryAfter(admissionRetryAfter);
+		if (StringUtils.hasText(admissionRedirectPeers)) {
+			admission.setRedirectPeers(StringUtils.tokenizeToStringArray(admissionRedirectPeers, ","));
+		}
+		return admission;
+	}
+
+	NettyWebSocketSsl sslSettings() {
+		NettyWebSocketSsl settings = new NettyWebSocketSsl();
+		settings.setProvider(sslProvider);
+		if (StringUtils.hasText(sslCertificate)) {
+			settings.setPem(new File(sslCertificate), new File(sslPrivateKey),
+					StringUtils.hasText(sslPrivateKeyPassword) ? sslPrivateKeyPassword : null);
+		} else if (StringUtils.hasText(sslKeyStore)) {
+			settings.setKeyStore(new File(sslKeyStore), sslKeyStoreType, sslKeyStorePassword,
+					StringUtils.hasText(sslKeyAlias) ? sslKeyAlias : null);
+		}
+		if (StringUtils.hasText(sslProtocols)) {
+			settings.setProtocols(StringUtils.tokenizeToStringArray(sslProtocols, ","));
+		}
+		if (StringUtils.hasText(sslCiphers)) {
+			settings.setCiphers(StringUtils.tokenizeToStringArray(sslCiphers, ","));
+		}
+		settings.setSessionCache(sslSessionCacheSize, sslSessionTimeout);
+		return settings;
+	}
+
+	@Bean
+	NettyWebSocketBroadcaster broadcaster() {
+		NettyWebSocketPayloadSerializer serializer = NettyWebSocketPayloadSerializer.TO_STRING;
+		if (StringUtils.hasText(payloadSerializer)) {
+			serializer = BeanUtils.instantiateClass(
+					ClassUtils.resolveClassName(payloadSerializer, getClass().getClassLoader()),
+					NettyWebSocketPayloadSerializer.class);
+		}
+		return new NettyWebSocketBroadcaster(PooledByteBufAllocator.DEFAULT, payloadMode, serializer);
 	}
 
+	/**
+	 * The handler is bound to the subscribers of this sink's path when the sink starts,
+	 * so messages need no routing information.
+	 */
 	@Bean
 	MessageHandler webSocketOutboundAdapter() {
 		if(handler == null) {
-			final MessageHandler h2 = new NettyWebSocketOutboundMessageHandler(path);
-			handler = new MessageHandler() {
-				public void handleMessage(Message<?> msg) throws MessagingException {
-					if(path.equals(msg.getHeaders().get(MSG_HEADER_PATH))) {
-						h2.handleMessage(msg);
-					}
-				}
-			};
+			NettyWebSocketOutboundMessageHandler h = new NettyWebSocketOutboundMessageHandler(subscribers, broadcaster());
+			h.setTracer(tracer);
+			h.setRelay(messageRelay);
+			handler = h;
+			if (pathBound) {
+				// sinks of other class loaders using the path hand their messages to this handler
+				NettyWebSocketSubscriptionRegistry.setPathHandler(path, handler);
+			}
 		}
 		return handler;
 	}
@@ -111,21 +652,81 @@ public class WebsocketSink {
 	@Bean
 	MessageChannel input() {
 		if(channel == null) {
-			channel = new DirectChannel() {
-				protected boolean doSend(Message<?> message, long timeout) {
-					Message<?> newMsg = MessageBuilder.fromMessage(message).setHeader(MSG_HEADER_PATH, path).build();
-					return super.doSend(newMsg, timeout);
-				}
-			};
+			channel = new DirectChannel();
+			if (tracer != null) {
+				channel.addInterceptor(tracer.ingressInterceptor());
+			}
 		}
 		return channel;
 	}
 
+	/**
+	 * The channel the messages sent by clients are published to if inbound is enabled, bound to the
+	 * bus when the module is deployed as processor. Messages carry the
+	 * {@link NettyWebSocketInbound#PATH_HEADER} and {@link NettyWebSocketInbound#CONNECTION_ID_HEADER} headers.
+	 */
+	@Bean
+	MessageChannel output() {
+		if (outputChannel == null) {
+			outputChannel = new DirectChannel();
+		}
+		return outputChannel;
+	}
+
+	/**
+	 * @return the dispatcher of this sink, created on first use; DIRECT mode does not use one
+	 */
+	synchronized NettyWebSocketDispatcher dispatcher() {
+		if (dispatcher == null) {
+			dispatcher = new NettyWebSocketDispatcher(path,
+					NettyWebSocketDispatcher.sharedPool(dispatchThreads), dispatchQueueSize, dispatchRejectionPolicy,
+					dispatchTimeout, TimeUnit.MILLISECONDS);
+			NettyWebSocketJmx.register(dispatcher, NettyWebSocketJmx.dispatcherName(path, instance));
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * @return the conflator of the path if conflation is configured, handing the conflated messages
+	 * to the outbound adapter through the dispatcher, or directly in DIRECT mode
+	 */
+	NettyWebSocketConflator conflator() {
+		if (conflator == null && (StringUtils.hasText(conflationKey) || StringUtils.hasText(conflationExpression))) {
+			Executor executor;
+			if (dispatchMode == NettyWebSocketDispatcher.Mode.DIRECT) {
+				executor = new Executor() {
+					public void execute(Runnable task) {
+						task.run();
+					}
+				};
+			} else {
+				executor = dispatcher();
+			}
+			conflator = new NettyWebSocketConflator(path,
+					StringUtils.hasText(conflationKey) ? conflationKey : null,
+					StringUtils.hasText(conflationKey) ? null : new SpelExpressionParser().parseExpression(conflationExpression),
+					conflationTick, TimeUnit.MILLISECONDS, webSocketOutboundAdapter(), executor);
+			conflator.start();
+			NettyWebSocketJmx.register(conflator, NettyWebSocketJmx.conflationName(path, instance));
+		}
+		return conflator;
+	}
+
 	@Bean
 	IntegrationFlow webSocketFlow() {
+		if (conflator() != null) {
+			return IntegrationFlows
+					.from(input())
+					.handle(conflator()).get();
+		}
+		if (dispatchMode == NettyWebSocketDispatcher.Mode.DIRECT) {
+			return IntegrationFlows
+					.from(input())
+					.handle(webSocketOutboundAdapter()).get();
+		}
 		Function<Channels, MessageChannelSpec<?, ?>> func = new Function<Channels, MessageChannelSpec<?,?>>() {
 			public MessageChannelSpec<?, ?> apply(Channels c) {
-				return c.executor(Executors.newCachedThreadPool());
+				return c.executor(dispatcher());
 			}
 		};
 		return IntegrationFlows
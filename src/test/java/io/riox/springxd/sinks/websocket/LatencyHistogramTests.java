@@ -0,0 +1,45 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTests {
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileMicros(99));
+		for (int i = 0; i < 98; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+
+		assertEquals(100, histogram.getCount());
+		// within a sub-bucket of 1/16 of the power of two
+		assertEquals(103, histogram.getPercentileMicros(50));
+		assertEquals(10239, histogram.getPercentileMicros(99));
+		assertEquals(20000, histogram.getPercentileMicros(100));
+		assertEquals(20000, histogram.getMaxMicros());
+		assertEquals((98 * 100 + 10000 + 20000) / 100, histogram.getMeanMicros());
+	}
+
+	@Test
+	public void testBucketsAreContiguous() {
+		for (long micros = 0; micros < 1 << 16; micros++) {
+			int bucket = LatencyHistogram.bucket(micros);
+			assertTrue(micros <= LatencyHistogram.highestMicros(bucket));
+			assertTrue(bucket == 0 || micros > LatencyHistogram.highestMicros(bucket - 1));
+			// at most 1/16 coarser than the duration
+			assertTrue(LatencyHistogram.highestMicros(bucket) - micros <= micros / 16);
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(LatencyHistogram.MAX_MICROS - 1));
+	}
+}
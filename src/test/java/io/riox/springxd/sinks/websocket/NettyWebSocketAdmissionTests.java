@@ -0,0 +1,139 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for accepting or refusing handshakes.
+ */
+public class NettyWebSocketAdmissionTests {
+
+	@Test
+	public void testConnectionLimits() {
+		String path = "/admission-limits";
+		ChannelGroup group = NettyWebSocketSubscriptionRegistry.bind(path);
+		try {
+			NettyWebSocketSubscriptionRegistry.setMaxSubscribers(path, 1);
+			NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+			admission.setMaxConnections(10);
+
+			assertNull(admission.refusal(path, 10));
+			assertNotNull(admission.refusal(path, 11));
+			assertTrue(NettyWebSocketSubscriptionRegistry.subscribe(path, new EmbeddedChannel()));
+			assertNotNull(admission.refusal(path, 2));
+			assertNull(admission.refusal("/admission-other", 2));
+		} finally {
+			NettyWebSocketSubscriptionRegistry.unbind(group);
+		}
+		assertEquals(0, NettyWebSocketSubscriptionRegistry.maxSubscribers(path));
+	}
+
+	@Test
+	public void testRefusedClientsAreAskedToRetry() {
+		NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+		admission.setRetryAfter(7);
+		FullHttpResponse res = admission.refuse(request());
+		assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, res.getStatus());
+		assertEquals("7", res.headers().get(HttpHeaders.Names.RETRY_AFTER));
+		res.release();
+	}
+
+	@Test
+	public void testRefusedClientsAreRedirectedToPeersInTurn() {
+		NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+		admission.setRedirectPeers("ws://node2:9292", "ws://node3:9292");
+		String[] expected = { "ws://node2:9292/path?device=1", "ws://node3:9292/path?device=1",
+				"ws://node2:9292/path?device=1" };
+		for (String location : expected) {
+			FullHttpResponse res = admission.refuse(request());
+			assertEquals(HttpResponseStatus.TEMPORARY_REDIRECT, res.getStatus());
+			assertEquals(location, res.headers().get(HttpHeaders.Names.LOCATION));
+			res.release();
+		}
+	}
+
+	@Test
+	public void testLaggingEventLoopRefusesHandshakes() throws Exception {
+		NioEventLoopGroup eventLoops = new NioEventLoopGroup(1);
+		NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+		admission.setMaxEventLoopLag(50, TimeUnit.MILLISECONDS);
+		admission.setProbeInterval(10, TimeUnit.MILLISECONDS);
+		admission.start(eventLoops);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			assertTrue(awaitRefusal(admission, false));
+			eventLoops.execute(new Runnable() {
+				public void run() {
+					try {
+						blocked.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			// the probe is overdue while the event loop is blocked
+			assertTrue(awaitRefusal(admission, true));
+			blocked.countDown();
+			assertTrue(awaitRefusal(admission, false));
+		} finally {
+			blocked.countDown();
+			admission.stop();
+			eventLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testPendingBytesRefuseHandshakes() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/admission-pending", SlowConsumerPolicy.DROP_OLDEST, 10);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		NettyWebSocketSubscriberTests.block(channel);
+		NettyWebSocketAdmission admission = new NettyWebSocketAdmission();
+		// bytes other tests left queued count as well
+		admission.setMaxPendingBytes(NettyWebSocketServerRuntime.pendingBytes().get() + 100);
+
+		NettyWebSocketSubscriberTests.send(group, new String(new char[200]));
+		admission.sample();
+		assertNotNull(admission.refusal("/admission-pending", 1));
+
+		NettyWebSocketSubscriberTests.unblock(channel);
+		admission.sample();
+		assertNull(admission.refusal("/admission-pending", 1));
+	}
+
+	/**
+	 * Polls for up to 5 seconds until handshakes are refused, or accepted, as the sampler catches up.
+	 *
+	 * @return false if they were not by then
+	 */
+	static boolean awaitRefusal(NettyWebSocketAdmission admission, boolean refused) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((admission.refusal("/admission-lag", 1) != null) != refused) {
+			if (deadline - System.nanoTime() <= 0) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	static FullHttpRequest request() {
+		return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/path?device=1");
+	}
+}
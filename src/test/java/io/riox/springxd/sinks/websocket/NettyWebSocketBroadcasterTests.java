@@ -0,0 +1,76 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for the payload encoding of {@link NettyWebSocketBroadcaster}.
+ */
+public class NettyWebSocketBroadcasterTests {
+
+	@Test
+	public void testUtf8Encoding() {
+		String text = "ascii äöü € 😀 unpaired \ud83d end";
+		ByteBuf buf = NettyWebSocketBroadcaster.encodeUtf8(text, UnpooledByteBufAllocator.DEFAULT);
+		byte[] encoded = new byte[buf.readableBytes()];
+		buf.readBytes(encoded);
+		buf.release();
+		assertArrayEquals(text.getBytes(CharsetUtil.UTF_8), encoded);
+	}
+
+	@Test
+	public void testBinaryPayloadIsWrappedWithoutCopy() {
+		byte[] payload = { 1, 2, 3, 4 };
+		WebSocketFrame frame = new NettyWebSocketBroadcaster().encode(payload);
+		assertTrue(frame instanceof BinaryWebSocketFrame);
+		assertSame(payload, frame.content().array());
+		frame.release();
+
+		frame = new NettyWebSocketBroadcaster().encode(ByteBuffer.wrap(payload));
+		assertTrue(frame instanceof BinaryWebSocketFrame);
+		assertSame(payload, frame.content().array());
+		frame.release();
+	}
+
+	@Test
+	public void testPayloadModes() {
+		NettyWebSocketBroadcaster text = new NettyWebSocketBroadcaster(UnpooledByteBufAllocator.DEFAULT,
+				NettyWebSocketBroadcaster.PayloadMode.TEXT, NettyWebSocketPayloadSerializer.TO_STRING);
+		WebSocketFrame frame = text.encode("foo".getBytes(CharsetUtil.UTF_8));
+		assertEquals("foo", ((TextWebSocketFrame) frame).text());
+		frame.release();
+
+		NettyWebSocketBroadcaster binary = new NettyWebSocketBroadcaster(UnpooledByteBufAllocator.DEFAULT,
+				NettyWebSocketBroadcaster.PayloadMode.BINARY, NettyWebSocketPayloadSerializer.TO_STRING);
+		frame = binary.encode("foo");
+		assertTrue(frame instanceof BinaryWebSocketFrame);
+		assertEquals("foo", frame.content().toString(CharsetUtil.UTF_8));
+		frame.release();
+	}
+
+	@Test
+	public void testSerializer() {
+		NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster(UnpooledByteBufAllocator.DEFAULT,
+				NettyWebSocketBroadcaster.PayloadMode.AUTO, new NettyWebSocketPayloadSerializer() {
+					public ByteBuf serialize(Object payload, ByteBufAllocator allocator) {
+						return NettyWebSocketBroadcaster.encodeUtf8("{\"value\":" + payload + "}", allocator);
+					}
+				});
+		WebSocketFrame frame = broadcaster.encode(42);
+		assertEquals("{\"value\":42}", ((TextWebSocketFrame) frame).text());
+		frame.release();
+	}
+}
@@ -0,0 +1,108 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessagingException;
+
+/**
+ * Tests for {@link NettyWebSocketConflator}.
+ */
+public class NettyWebSocketConflatorTests {
+
+	final List<Object> sent = new ArrayList<Object>();
+
+	final MessageHandler handler = new MessageHandler() {
+		public void handleMessage(Message<?> message) throws MessagingException {
+			sent.add(message.getPayload());
+		}
+	};
+
+	final Executor direct = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	@Test
+	public void testLatestValuePerHeaderKey() {
+		NettyWebSocketConflator conflator = new NettyWebSocketConflator("/conflate", "symbol", null,
+				1, TimeUnit.HOURS, handler, direct);
+		conflator.handleMessage(message("EUR", 1));
+		conflator.handleMessage(message("USD", 2));
+		conflator.handleMessage(message("EUR", 3));
+		conflator.handleMessage(MessageBuilder.withPayload(4).build());
+		assertEquals(1, sent.size());
+		assertEquals(2, conflator.getPendingKeys());
+
+		conflator.flush();
+		assertEquals(3, sent.size());
+		assertEquals(3, sent.get(1));
+		assertEquals(2, sent.get(2));
+		assertEquals(4, conflator.getReceivedMessages());
+		assertEquals(4d / 3, conflator.getConflationRatio(), 0.001);
+	}
+
+	@Test
+	public void testExpressionKey() {
+		NettyWebSocketConflator conflator = new NettyWebSocketConflator("/conflate-spel", null,
+				new SpelExpressionParser().parseExpression("payload % 2"), 1, TimeUnit.HOURS, handler, direct);
+		for (int i = 0; i < 5; i++) {
+			conflator.handleMessage(MessageBuilder.withPayload(i).build());
+		}
+		conflator.flush();
+		assertEquals(2, sent.size());
+		assertEquals(4, sent.get(0));
+		assertEquals(3, sent.get(1));
+	}
+
+	@Test
+	public void testTickKeepsMessagesWhileDispatchQueueIsFull() {
+		final List<Runnable> pool = new ArrayList<Runnable>();
+		NettyWebSocketDispatcher dispatcher = new NettyWebSocketDispatcher("/conflate-full", new Executor() {
+			public void execute(Runnable task) {
+				pool.add(task);
+			}
+		}, 1, NettyWebSocketDispatcher.RejectionPolicy.BLOCK, 1, TimeUnit.HOURS);
+		NettyWebSocketConflator conflator = new NettyWebSocketConflator("/conflate-full", "symbol", null,
+				1, TimeUnit.HOURS, handler, dispatcher);
+		dispatcher.execute(new Runnable() {
+			public void run() {
+			}
+		});
+		conflator.handleMessage(message("EUR", 1));
+
+		// the tick returns at once rather than waiting for the dispatch timeout
+		conflator.tick();
+		conflator.handleMessage(message("EUR", 2));
+		assertEquals(1, conflator.getPendingKeys());
+		assertEquals(1, dispatcher.getQueueDepth());
+
+		pool.remove(0).run();
+		conflator.tick();
+		conflator.tick();
+		assertEquals(1, dispatcher.getQueueDepth());
+		pool.remove(0).run();
+		assertEquals(1, sent.size());
+		assertEquals(2, sent.get(0));
+		assertEquals(0, dispatcher.getRejectedMessages());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTickMustBePositive() {
+		new NettyWebSocketConflator("/conflate-tick", "symbol", null, 0, TimeUnit.MILLISECONDS, handler, direct);
+	}
+
+	static Message<Integer> message(String symbol, int value) {
+		return MessageBuilder.withPayload(value).setHeader("symbol", symbol).build();
+	}
+}
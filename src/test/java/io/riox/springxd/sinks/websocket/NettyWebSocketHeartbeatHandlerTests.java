@@ -0,0 +1,69 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the heartbeat pinging silent connections and reaping those that do not answer.
+ */
+public class NettyWebSocketHeartbeatHandlerTests {
+
+	@Test
+	public void testSilentConnectionIsPingedAndReaped() {
+		NettyWebSocketServerMetrics metrics = new NettyWebSocketServerMetrics(0);
+		EmbeddedChannel channel = websocket(metrics);
+
+		channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+		PingWebSocketFrame ping = (PingWebSocketFrame) channel.readOutbound();
+		ping.release();
+		assertTrue(channel.isOpen());
+
+		channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+		assertFalse(channel.isOpen());
+		assertEquals(1, metrics.getReapedConnections());
+	}
+
+	@Test
+	public void testAnsweringConnectionIsKept() {
+		NettyWebSocketServerMetrics metrics = new NettyWebSocketServerMetrics(0);
+		EmbeddedChannel channel = websocket(metrics);
+
+		channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+		((PingWebSocketFrame) channel.readOutbound()).release();
+		channel.writeInbound(new PongWebSocketFrame());
+		((PongWebSocketFrame) channel.readInbound()).release();
+
+		channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+		assertTrue(channel.isOpen());
+		assertEquals(0, metrics.getReapedConnections());
+		((PingWebSocketFrame) channel.readOutbound()).release();
+		assertNull(channel.readOutbound());
+	}
+
+	@Test
+	public void testIdleConnectionIsClosedBeforeHandshake() {
+		EmbeddedChannel channel = new EmbeddedChannel(
+				new NettyWebSocketHeartbeatHandler(0, 0, TimeUnit.MILLISECONDS, new NettyWebSocketServerMetrics(0)));
+		channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+		assertFalse(channel.isOpen());
+		assertNull(channel.readOutbound());
+	}
+
+	static EmbeddedChannel websocket(NettyWebSocketServerMetrics metrics) {
+		EmbeddedChannel channel = new EmbeddedChannel(
+				new NettyWebSocketHeartbeatHandler(0, 0, TimeUnit.MILLISECONDS, metrics));
+		channel.pipeline().fireUserEventTriggered(new QueryStringDecoder("/heartbeat"));
+		return channel;
+	}
+}
@@ -0,0 +1,118 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.messaging.Message;
+
+/**
+ * Tests for publishing the messages clients send to the output channel.
+ */
+public class NettyWebSocketInboundTests {
+
+	static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	@Test
+	public void testMessagesArePublishedWithPathAndConnection() {
+		QueueChannel output = new QueueChannel();
+		NettyWebSocketInbound inbound = new NettyWebSocketInbound("/inbound", output, DIRECT, 10, 10, 0);
+		NettyWebSocketPathGroup group = group("/inbound", inbound);
+		group.setFilterHeaders("device");
+		EmbeddedChannel one = NettyWebSocketSubscriberTests.subscribe(group);
+		EmbeddedChannel two = NettyWebSocketSubscriberTests.subscribe(group);
+
+		one.writeInbound(new TextWebSocketFrame("hello \u20ac"));
+		one.writeInbound(new TextWebSocketFrame("?device=2"));
+		two.writeInbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[] { 1, 2, 3 })));
+
+		Message<?> text = output.receive(0);
+		assertEquals("hello \u20ac", text.getPayload());
+		assertEquals("/inbound", text.getHeaders().get(NettyWebSocketInbound.PATH_HEADER));
+		Message<?> binary = output.receive(0);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) binary.getPayload());
+		assertFalse(text.getHeaders().get(NettyWebSocketInbound.CONNECTION_ID_HEADER)
+				.equals(binary.getHeaders().get(NettyWebSocketInbound.CONNECTION_ID_HEADER)));
+		assertNull(output.receive(0));
+		assertEquals(1, group.index.get("device").get("2").size());
+		assertEquals(2, inbound.getPublishedMessages());
+	}
+
+	@Test
+	public void testMessagesOverRateLimitAreDiscarded() {
+		QueueChannel output = new QueueChannel();
+		NettyWebSocketInbound inbound = new NettyWebSocketInbound("/inbound-rate", output, DIRECT, 10, 10, 2);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group("/inbound-rate", inbound));
+
+		for (int i = 0; i < 5; i++) {
+			channel.writeInbound(new TextWebSocketFrame("message " + i));
+		}
+
+		assertEquals("message 0", output.receive(0).getPayload());
+		assertEquals("message 1", output.receive(0).getPayload());
+		assertNull(output.receive(0));
+		assertEquals(3, inbound.getRateLimitedMessages());
+	}
+
+	@Test
+	public void testMessagesAreDiscardedWhenQueueIsFull() {
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		QueueChannel output = new QueueChannel();
+		NettyWebSocketInbound inbound = new NettyWebSocketInbound("/inbound-full", output, new Executor() {
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		}, 2, 1, 0);
+
+		assertTrue(inbound.offer("a", "c1"));
+		assertTrue(inbound.offer("b", "c1"));
+		assertFalse(inbound.offer("c", "c1"));
+		assertEquals(1, inbound.getDroppedMessages());
+		assertEquals(1, tasks.size());
+
+		// a task publishes one batch and hands the rest to the next task
+		tasks.remove(0).run();
+		assertEquals("a", output.receive(0).getPayload());
+		tasks.remove(0).run();
+		assertEquals("b", output.receive(0).getPayload());
+		assertTrue(tasks.isEmpty());
+		assertTrue(inbound.awaitIdle(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testTokenBucketRefills() {
+		NettyWebSocketTokenBucket bucket = new NettyWebSocketTokenBucket(10, 2);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(1, now));
+		assertTrue(bucket.tryAcquire(1, now));
+		assertFalse(bucket.tryAcquire(1, now));
+		assertTrue(bucket.tryAcquire(1, now + TimeUnit.MILLISECONDS.toNanos(150)));
+		assertFalse(bucket.tryAcquire(1, now + TimeUnit.MILLISECONDS.toNanos(150)));
+		// never more than the burst
+		assertTrue(bucket.tryAcquire(2, now + TimeUnit.SECONDS.toNanos(10)));
+		assertFalse(bucket.tryAcquire(1, now + TimeUnit.SECONDS.toNanos(10)));
+	}
+
+	static NettyWebSocketPathGroup group(String path, NettyWebSocketInbound inbound) {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup(path, SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setInbound(inbound);
+		return group;
+	}
+}
@@ -0,0 +1,88 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the rate limits of paths and client addresses.
+ */
+public class NettyWebSocketRateLimitTests {
+
+	@Test
+	public void testSharedBucketAllowsBurstThenRate() {
+		NettyWebSocketTokenBucket.Shared bucket = new NettyWebSocketTokenBucket.Shared(10, 3);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(1, now));
+		assertTrue(bucket.tryAcquire(2, now));
+		assertFalse(bucket.tryAcquire(1, now));
+		assertFalse(bucket.isFull(now));
+		assertTrue(bucket.tryAcquire(1, now + TimeUnit.MILLISECONDS.toNanos(150)));
+		assertFalse(bucket.tryAcquire(1, now + TimeUnit.MILLISECONDS.toNanos(150)));
+		assertTrue(bucket.isFull(now + TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	@Test
+	public void testMessagesOverPathLimitAreDiscarded() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/limited", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setRateLimit(2, 0);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+
+		NettyWebSocketSubscriberTests.send(group, "a", "b", "c");
+
+		assertEquals("a", NettyWebSocketSubscriberTests.readText(channel));
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		assertEquals(2, group.getMessages());
+		assertEquals(1, group.getRateLimitedMessages());
+	}
+
+	@Test
+	public void testMessagesOverPathByteLimitAreDiscarded() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/limited-bytes", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setRateLimit(0, 10);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+
+		NettyWebSocketSubscriberTests.send(group, "12345678", "123", "12");
+
+		assertEquals("12345678", NettyWebSocketSubscriberTests.readText(channel));
+		assertEquals("12", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		assertEquals(1, group.getRateLimitedMessages());
+	}
+
+	@Test
+	public void testClientAddressesAreLimitedSeparately() {
+		NettyWebSocketClientRateLimiter limiter = new NettyWebSocketClientRateLimiter(2, 0);
+		InetSocketAddress one = new InetSocketAddress("127.0.0.1", 40001);
+		InetSocketAddress sameHost = new InetSocketAddress("127.0.0.1", 40002);
+		InetSocketAddress other = new InetSocketAddress("127.0.0.2", 40001);
+
+		assertTrue(limiter.tryHandshake(one));
+		assertTrue(limiter.tryHandshake(sameHost));
+		assertFalse(limiter.tryHandshake(one));
+		assertTrue(limiter.tryHandshake(other));
+		// frames are not limited
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.tryFrame(one));
+		}
+	}
+
+	@Test
+	public void testAddressesBeyondTableShareLimits() {
+		NettyWebSocketClientRateLimiter limiter = new NettyWebSocketClientRateLimiter(1, 0, 4);
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(limiter.tryHandshake(new InetSocketAddress("127.0.0." + i, 40001)));
+		}
+		// the table is full of addresses still limited, so the next one is limited with one of them
+		assertFalse(limiter.tryHandshake(new InetSocketAddress("127.0.0.5", 40001)));
+		assertEquals(4, limiter.slots.length());
+	}
+}
@@ -0,0 +1,45 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the replay of recent messages to new subscribers.
+ */
+public class NettyWebSocketReplayCacheTests {
+
+	@Test
+	public void testLastMessagesAreReplayed() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/replay", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setReplay(2, 0, TimeUnit.MILLISECONDS);
+		NettyWebSocketSubscriberTests.send(group, "a", "b", "c");
+		assertEquals(2, group.replayCache.size());
+
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		NettyWebSocketSubscriberTests.send(group, "d");
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertEquals("c", NettyWebSocketSubscriberTests.readText(channel));
+		assertEquals("d", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		group.setReplay(0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testExpiredMessagesAreNotReplayed() throws InterruptedException {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/replay-expiry", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setReplay(10, 20, TimeUnit.MILLISECONDS);
+		NettyWebSocketSubscriberTests.send(group, "a");
+		Thread.sleep(50);
+		NettyWebSocketSubscriberTests.send(group, "b");
+
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		group.setReplay(0, 0, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,122 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.integration.test.util.SocketUtils;
+
+/**
+ * Tests for the event loops and port references shared by the websocket servers of a container.
+ */
+public class NettyWebSocketServerRuntimeTests {
+
+	@Test
+	public void testServersShareEventLoops() throws Exception {
+		NettyWebSocketServer server1 = new NettyWebSocketServer(SocketUtils.findAvailableServerSocket());
+		server1.run();
+		try {
+			NettyWebSocketServer server2 = new NettyWebSocketServer(SocketUtils.findAvailableServerSocket());
+			server2.run();
+			assertSame(server1.workerGroup, server2.workerGroup);
+			assertSame(server1.bossGroup, server2.bossGroup);
+
+			server2.shutdown();
+			assertFalse(NettyWebSocketServerRuntime.isBound(server2.port));
+			assertFalse(server1.workerGroup.isShuttingDown());
+		} finally {
+			server1.shutdown();
+		}
+		assertFalse(NettyWebSocketServerRuntime.isBound(server1.port));
+	}
+
+	@Test
+	public void testPortIsUnboundWithLastReference() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		Runnable first = starter(port, new AtomicInteger());
+		Runnable second = starter(port, new AtomicInteger());
+		assertTrue(NettyWebSocketServerRuntime.retain(port, first));
+		new NettyWebSocketServer(port).run();
+		assertFalse(NettyWebSocketServerRuntime.retain(port, second));
+		assertEquals(2, NettyWebSocketServerRuntime.references(port));
+
+		NettyWebSocketServerRuntime.release(port, second);
+		assertTrue(NettyWebSocketServerRuntime.isBound(port));
+		NettyWebSocketServerRuntime.release(port, first);
+		assertFalse(NettyWebSocketServerRuntime.isBound(port));
+		assertEquals(0, NettyWebSocketServerRuntime.references(port));
+	}
+
+	@Test
+	public void testNextSinkTakesPortOver() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		AtomicInteger secondStarts = new AtomicInteger();
+		Runnable first = starter(port, new AtomicInteger());
+		Runnable second = starter(port, secondStarts);
+		assertTrue(NettyWebSocketServerRuntime.retain(port, first));
+		first.run();
+		NettyWebSocketServerRuntime.setOptions(port, Collections.singletonMap("workerThreads", "4"));
+		assertFalse(NettyWebSocketServerRuntime.retain(port, second));
+		assertEquals("4", NettyWebSocketServerRuntime.options(port).get("workerThreads"));
+
+		NettyWebSocketServerRuntime.release(port, first);
+		assertEquals(1, secondStarts.get());
+		assertTrue(NettyWebSocketServerRuntime.isBound(port));
+		assertNull(NettyWebSocketServerRuntime.options(port));
+		assertEquals(1, NettyWebSocketServerRuntime.references(port));
+
+		NettyWebSocketServerRuntime.release(port, second);
+		assertFalse(NettyWebSocketServerRuntime.isBound(port));
+	}
+
+	@Test
+	public void testFailedServerKeepsOtherReferences() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		AtomicInteger secondStarts = new AtomicInteger();
+		Runnable first = starter(port, new AtomicInteger());
+		Runnable second = starter(port, secondStarts);
+		assertTrue(NettyWebSocketServerRuntime.retain(port, first));
+		assertFalse(NettyWebSocketServerRuntime.retain(port, second));
+		ServerSocket occupied = new ServerSocket(port);
+		try {
+			new NettyWebSocketServer(port).run();
+			fail("port is in use");
+		} catch (Exception e) {
+			// the server unbinds the port, but the sinks still use it
+		} finally {
+			occupied.close();
+		}
+		assertFalse(NettyWebSocketServerRuntime.isBound(port));
+		assertEquals(2, NettyWebSocketServerRuntime.references(port));
+
+		NettyWebSocketServerRuntime.release(port, first);
+		assertEquals(1, secondStarts.get());
+		assertTrue(NettyWebSocketServerRuntime.isBound(port));
+		NettyWebSocketServerRuntime.release(port, second);
+		assertEquals(0, NettyWebSocketServerRuntime.references(port));
+	}
+
+	/**
+	 * @return a starter running a server on the given port, counting its starts
+	 */
+	static Runnable starter(final int port, final AtomicInteger starts) {
+		return new Runnable() {
+			public void run() {
+				starts.incrementAndGet();
+				try {
+					new NettyWebSocketServer(port).run();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+}
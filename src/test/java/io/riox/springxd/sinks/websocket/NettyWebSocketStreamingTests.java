@@ -0,0 +1,212 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+
+import org.junit.Test;
+
+/**
+ * Tests for sending large payloads as fragmented messages.
+ */
+public class NettyWebSocketStreamingTests {
+
+	final NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster(UnpooledByteBufAllocator.DEFAULT);
+
+	/** the reads of streamed payloads, run by the tests */
+	final Queue<Runnable> reads = new ArrayDeque<Runnable>();
+
+	@Before
+	public void setUp() {
+		broadcaster.setStreamExecutor(new Executor() {
+			public void execute(Runnable command) {
+				reads.add(command);
+			}
+		});
+	}
+
+	@Test
+	public void testSmallPayloadIsNotStreamed() throws Exception {
+		assertNull(NettyWebSocketPayloadStream.of("short", 100, UnpooledByteBufAllocator.DEFAULT));
+		assertNull(NettyWebSocketPayloadStream.of(new byte[100], 100, UnpooledByteBufAllocator.DEFAULT));
+		assertNull(NettyWebSocketPayloadStream.of(new byte[1000], 0, UnpooledByteBufAllocator.DEFAULT));
+	}
+
+	@Test
+	public void testTextIsSentInFragments() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("fragment ").append(i).append(" \u20ac\ud83d\ude00 ");
+		}
+		NettyWebSocketPayloadStream stream = NettyWebSocketPayloadStream.of(text, 100, UnpooledByteBufAllocator.DEFAULT);
+		assertEquals(1, broadcaster.stream(stream, group, null));
+		runReads();
+
+		ByteBuf message = readMessage(channel, TextWebSocketFrame.class);
+		assertEquals(text.toString(), message.toString(CharsetUtil.UTF_8));
+		message.release();
+		assertNull(channel.readOutbound());
+		assertEquals(0, group.getPendingBytes());
+	}
+
+	@Test
+	public void testInputStreamIsSentInFragments() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		byte[] payload = new byte[1000];
+		new Random(42).nextBytes(payload);
+		NettyWebSocketPayloadStream stream = NettyWebSocketPayloadStream.of(new ByteArrayInputStream(payload), 100,
+				UnpooledByteBufAllocator.DEFAULT);
+		assertEquals(1, broadcaster.stream(stream, group, null));
+		runReads();
+
+		assertArrayEquals(payload, readBytes(channel));
+		assertNull(channel.readOutbound());
+	}
+
+	@Test
+	public void testMessagesAreHeldUntilStreamedMessageEnds() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		byte[] first = new byte[1000];
+		byte[] second = new byte[1000];
+		Arrays.fill(first, (byte) 1);
+		Arrays.fill(second, (byte) 2);
+		assertEquals(1, broadcaster.stream(NettyWebSocketPayloadStream.of(new ByteArrayInputStream(first), 100,
+				UnpooledByteBufAllocator.DEFAULT), group, null));
+		NettyWebSocketSubscriberTests.send(group, "a");
+		assertEquals(1, broadcaster.stream(NettyWebSocketPayloadStream.of(new ByteArrayInputStream(second), 100,
+				UnpooledByteBufAllocator.DEFAULT), group, null));
+		NettyWebSocketSubscriberTests.send(group, "b");
+		// one chunk is read at a time, so the messages are sent to the subscriber in turn
+		assertEquals(1, reads.size());
+		runReads();
+
+		assertArrayEquals(first, readBytes(channel));
+		assertEquals("a", NettyWebSocketSubscriberTests.readText(channel));
+		assertArrayEquals(second, readBytes(channel));
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+	}
+
+	@Test
+	public void testUnreadablePayloadIsMissed() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("unreadable");
+			}
+		};
+		assertEquals(1, broadcaster.stream(NettyWebSocketPayloadStream.of(in, 100, UnpooledByteBufAllocator.DEFAULT),
+				group, null));
+		runReads();
+		assertNull(channel.readOutbound());
+
+		NettyWebSocketSubscriberTests.send(group, "a");
+		assertEquals("a", NettyWebSocketSubscriberTests.readText(channel));
+		assertTrue(channel.isOpen());
+	}
+
+	@Test
+	public void testSlowSubscriberIsDisconnected() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		NettyWebSocketSubscriberTests.block(channel);
+		NettyWebSocketPayloadStream stream = NettyWebSocketPayloadStream.of(new byte[1000], 100,
+				UnpooledByteBufAllocator.DEFAULT);
+		assertEquals(1, broadcaster.stream(stream, group, null));
+		runReads();
+		// the subscriber does not take the second chunk within the stream timeout
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (channel.isOpen() && deadline - System.nanoTime() > 0) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, group.getDisconnectedSubscribers());
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testStreamIsNotSentToBlockedSubscriberDroppingNewest() throws Exception {
+		NettyWebSocketPathGroup group = group(SlowConsumerPolicy.DROP_NEWEST);
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		NettyWebSocketSubscriberTests.block(channel);
+		NettyWebSocketPayloadStream stream = NettyWebSocketPayloadStream.of(new byte[1000], 100,
+				UnpooledByteBufAllocator.DEFAULT);
+		assertEquals(0, broadcaster.stream(stream, group, null));
+		assertEquals(1, group.getDroppedMessages());
+		assertTrue(NettyWebSocketSubscriberTests.unblock(channel).isEmpty());
+	}
+
+	void runReads() {
+		Runnable read;
+		while ((read = reads.poll()) != null) {
+			read.run();
+		}
+	}
+
+	static byte[] readBytes(EmbeddedChannel channel) {
+		ByteBuf message = readMessage(channel, BinaryWebSocketFrame.class);
+		byte[] received = new byte[message.readableBytes()];
+		message.readBytes(received);
+		message.release();
+		return received;
+	}
+
+	static NettyWebSocketPathGroup group(SlowConsumerPolicy policy) {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/streaming", policy, 10);
+		group.setStreaming(100, 64, 50, TimeUnit.MILLISECONDS);
+		return group;
+	}
+
+	/**
+	 * Reads the fragments of a message, checking their types and that only the last one is final.
+	 *
+	 * @return the content of the message
+	 */
+	static ByteBuf readMessage(EmbeddedChannel channel, Class<? extends WebSocketFrame> type) {
+		ByteBuf content = Unpooled.buffer();
+		WebSocketFrame frame = (WebSocketFrame) channel.readOutbound();
+		assertTrue(type.isInstance(frame));
+		int fragments = 0;
+		while (true) {
+			fragments++;
+			content.writeBytes(frame.content());
+			boolean last = frame.isFinalFragment();
+			frame.release();
+			if (last) {
+				break;
+			}
+			frame = (WebSocketFrame) channel.readOutbound();
+			assertTrue(frame instanceof ContinuationWebSocketFrame);
+		}
+		assertTrue(fragments > 1);
+		return content;
+	}
+}
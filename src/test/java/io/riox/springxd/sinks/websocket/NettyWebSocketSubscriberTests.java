@@ -0,0 +1,183 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the slow consumer policies applied by {@link NettyWebSocketSubscriber}.
+ */
+public class NettyWebSocketSubscriberTests {
+
+	@Test
+	public void testDropNewest() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/drop-newest", SlowConsumerPolicy.DROP_NEWEST, 10);
+		EmbeddedChannel channel = subscribe(group);
+		block(channel);
+		send(group, "a", "b");
+		assertEquals(2, group.getDroppedMessages());
+		assertTrue(unblock(channel).isEmpty());
+	}
+
+	@Test
+	public void testDropOldest() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/drop-oldest", SlowConsumerPolicy.DROP_OLDEST, 2);
+		EmbeddedChannel channel = subscribe(group);
+		block(channel);
+		send(group, "a", "b", "c");
+		assertEquals(1, group.getDroppedMessages());
+		List<String> received = unblock(channel);
+		assertEquals(2, received.size());
+		assertEquals("b", received.get(0));
+		assertEquals("c", received.get(1));
+	}
+
+	@Test
+	public void testConflate() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/conflate", SlowConsumerPolicy.CONFLATE, 10);
+		EmbeddedChannel channel = subscribe(group);
+		block(channel);
+		send(group, "a", "b", "c");
+		assertEquals(2, group.getDroppedMessages());
+		List<String> received = unblock(channel);
+		assertEquals(1, received.size());
+		assertEquals("c", received.get(0));
+	}
+
+	@Test
+	public void testDisconnect() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/disconnect", SlowConsumerPolicy.DISCONNECT, 10);
+		EmbeddedChannel channel = subscribe(group);
+		block(channel);
+		send(group, "a");
+		assertEquals(1, group.getDisconnectedSubscribers());
+		assertFalse(channel.isOpen());
+		assertEquals(0, group.size());
+	}
+
+	@Test
+	public void testWritableChannelIsNotAffected() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/writable", SlowConsumerPolicy.DISCONNECT, 10);
+		EmbeddedChannel channel = subscribe(group);
+		send(group, "a", "b");
+		assertEquals("a", readText(channel));
+		assertEquals("b", readText(channel));
+		assertNull(channel.readOutbound());
+		assertEquals(0, group.getDisconnectedSubscribers());
+	}
+
+	@Test
+	public void testBurstToWritableChannelIsQueued() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/burst", SlowConsumerPolicy.DROP_NEWEST, 2);
+		EmbeddedChannel channel = subscribe(group);
+		NettyWebSocketSubscriber subscriber = group.subscribers().iterator().next();
+		// keeps the frames queued as if the event loop did not run the drain yet
+		group.setFlushPolicy(1, TimeUnit.HOURS, 1024);
+		subscriber.delayedDrainPending.set(true);
+		send(group, "a", "b", "c", "d");
+		assertEquals(0, group.getDroppedMessages());
+		subscriber.drain();
+		for (String expected : new String[] { "a", "b", "c", "d" }) {
+			assertEquals(expected, readText(channel));
+		}
+		assertNull(channel.readOutbound());
+	}
+
+	@Test
+	public void testBatchIsNotBoundedAsSlowConsumer() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/batch", SlowConsumerPolicy.DISCONNECT, 2);
+		group.setFlushPolicy(1, TimeUnit.HOURS, 1024);
+		EmbeddedChannel channel = subscribe(group);
+		channel.config().setWriteBufferLowWaterMark(1);
+		channel.config().setWriteBufferHighWaterMark(8);
+		NettyWebSocketSubscriber subscriber = group.subscribers().iterator().next();
+		subscriber.delayedDrainPending.set(true);
+		send(group, "12345678", "12345678", "12345678");
+		assertTrue(channel.isOpen());
+		assertEquals(24, group.getPendingBytes());
+		subscriber.drain();
+		channel.flush();
+		for (int i = 0; i < 3; i++) {
+			assertEquals("12345678", readText(channel));
+		}
+		assertEquals(0, group.getDisconnectedSubscribers());
+	}
+
+	@Test
+	public void testMetrics() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/metrics", SlowConsumerPolicy.DROP_OLDEST, 10);
+		EmbeddedChannel channel = subscribe(group);
+		send(group, "ab", "cd");
+		assertEquals(1, group.getActiveConnections());
+		assertEquals(2, group.getMessages());
+		assertEquals(2, group.getFramesSent());
+		assertEquals(4, group.getBytesSent());
+		assertEquals(0, group.getPendingBytes());
+		assertTrue(group.writeLatency.getCount() > 0);
+		assertEquals("ab", readText(channel));
+		assertEquals("cd", readText(channel));
+	}
+
+	static EmbeddedChannel subscribe(NettyWebSocketPathGroup group) {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		assertTrue(group.add(channel));
+		return channel;
+	}
+
+	static void send(NettyWebSocketPathGroup group, String... messages) {
+		NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster();
+		for (String message : messages) {
+			broadcaster.broadcast(broadcaster.encode(message), group);
+		}
+	}
+
+	/**
+	 * Makes the channel unwritable by queueing an unflushed write above its high water mark.
+	 */
+	static void block(EmbeddedChannel channel) {
+		channel.config().setWriteBufferLowWaterMark(1);
+		channel.config().setWriteBufferHighWaterMark(8);
+		channel.write(Unpooled.wrappedBuffer(new byte[64]));
+		assertFalse(channel.isWritable());
+	}
+
+	/**
+	 * Flushes the blocking write and returns the text of all frames written afterwards.
+	 */
+	static List<String> unblock(EmbeddedChannel channel) {
+		channel.flush();
+		channel.runPendingTasks();
+		channel.flush();
+		ByteBuf blocker = (ByteBuf) channel.readOutbound();
+		blocker.release();
+		List<String> texts = new ArrayList<String>();
+		String text;
+		while ((text = readText(channel)) != null) {
+			texts.add(text);
+		}
+		return texts;
+	}
+
+	static String readText(EmbeddedChannel channel) {
+		TextWebSocketFrame frame = (TextWebSocketFrame) channel.readOutbound();
+		if (frame == null) {
+			return null;
+		}
+		try {
+			return frame.text();
+		} finally {
+			frame.release();
+		}
+	}
+}
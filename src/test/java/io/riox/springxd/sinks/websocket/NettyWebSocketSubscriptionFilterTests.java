@@ -0,0 +1,91 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for filtering the messages of a path by the values subscribers ask for.
+ */
+public class NettyWebSocketSubscriptionFilterTests {
+
+	@Test
+	public void testMessagesAreFilteredByQueryParameters() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/filter", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setFilterHeaders("device", "type");
+		EmbeddedChannel one = subscribe(group, "/filter?device=1");
+		EmbeddedChannel oneAlarms = subscribe(group, "/filter?device=1&type=alarm");
+		EmbeddedChannel all = subscribe(group, "/filter");
+
+		send(group, "a", headers("2", "alarm"));
+		send(group, "b", headers("1", "reading"));
+		send(group, "c", headers("1", "alarm"));
+
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(one));
+		assertEquals("c", NettyWebSocketSubscriberTests.readText(one));
+		assertNull(one.readOutbound());
+		assertEquals("c", NettyWebSocketSubscriberTests.readText(oneAlarms));
+		assertNull(oneAlarms.readOutbound());
+		assertEquals("a", NettyWebSocketSubscriberTests.readText(all));
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(all));
+		assertEquals("c", NettyWebSocketSubscriberTests.readText(all));
+	}
+
+	@Test
+	public void testSubscriptionIsUpdatedByTextFrame() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/filter-update", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setFilterHeaders("device");
+		EmbeddedChannel channel = subscribe(group, "/filter-update?device=1");
+
+		channel.writeInbound(new TextWebSocketFrame("device=2&device=3"));
+		send(group, "a", headers("1", null));
+		send(group, "b", headers("3", null));
+
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		assertEquals(1, group.index.get("device").get("2").size());
+		assertNull(group.index.get("device").get("1"));
+	}
+
+	@Test
+	public void testOnlyMatchingMessagesAreReplayed() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/filter-replay", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setFilterHeaders("device");
+		group.setReplay(10, 0, TimeUnit.MILLISECONDS);
+		send(group, "a", headers("1", null));
+		send(group, "b", headers("2", null));
+
+		EmbeddedChannel channel = subscribe(group, "/filter-replay?device=2");
+		assertEquals("b", NettyWebSocketSubscriberTests.readText(channel));
+		assertNull(channel.readOutbound());
+		group.setReplay(0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	static EmbeddedChannel subscribe(NettyWebSocketPathGroup group, String uri) {
+		EmbeddedChannel channel = NettyWebSocketSubscriberTests.subscribe(group);
+		channel.pipeline().fireUserEventTriggered(new QueryStringDecoder(uri));
+		return channel;
+	}
+
+	static void send(NettyWebSocketPathGroup group, String message, Map<String,Object> headers) {
+		NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster();
+		broadcaster.broadcast(broadcaster.encode(message), group, headers);
+	}
+
+	static Map<String,Object> headers(String device, String type) {
+		Map<String,Object> headers = new HashMap<String,Object>();
+		headers.put("device", device);
+		if (type != null) {
+			headers.put("type", type);
+		}
+		return headers;
+	}
+}
@@ -0,0 +1,131 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.ChannelGroup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Tests for {@link NettyWebSocketSubscriptionRegistry}.
+ */
+public class NettyWebSocketSubscriptionRegistryTests {
+
+	@Test
+	public void testClosedChannelsAreRemoved() {
+		String path = "/registry-close";
+		ChannelGroup group = NettyWebSocketSubscriptionRegistry.bind(path);
+		assertSame(group, NettyWebSocketSubscriptionRegistry.bind(path));
+
+		EmbeddedChannel c1 = new EmbeddedChannel();
+		EmbeddedChannel c2 = new EmbeddedChannel();
+		assertTrue(NettyWebSocketSubscriptionRegistry.subscribe(path, c1));
+		assertTrue(NettyWebSocketSubscriptionRegistry.subscribe(path, c2));
+		assertEquals(2, NettyWebSocketSubscriptionRegistry.subscriberCount(path));
+		assertEquals(Integer.valueOf(2), NettyWebSocketSubscriptionRegistry.subscriberCounts().get(path));
+
+		c1.close();
+		assertEquals(1, NettyWebSocketSubscriptionRegistry.subscriberCount(path));
+		c2.close();
+		assertEquals(0, NettyWebSocketSubscriptionRegistry.subscriberCount(path));
+	}
+
+	@Test
+	public void testUnknownPath() {
+		assertNull(NettyWebSocketSubscriptionRegistry.lookup("/registry-unknown"));
+		assertFalse(NettyWebSocketSubscriptionRegistry.subscribe("/registry-unknown", new EmbeddedChannel()));
+		assertEquals(0, NettyWebSocketSubscriptionRegistry.subscriberCount("/registry-unknown"));
+	}
+
+	@Test
+	public void testPathOptionsAreComparedWithThoseInEffect() {
+		String path = "/registry-options";
+		ChannelGroup group = NettyWebSocketSubscriptionRegistry.bind(path);
+		Map<String,String> bound = new LinkedHashMap<String,String>();
+		bound.put("replaySize", "10");
+		bound.put("compression", "false");
+		NettyWebSocketSubscriptionRegistry.setPathOptions(path, bound);
+
+		Map<String,String> options = new LinkedHashMap<String,String>(bound);
+		options.put("replaySize", "0");
+		assertEquals(Collections.singletonList("replaySize=0 (in effect: 10)"),
+				WebsocketSink.conflicts(options, NettyWebSocketSubscriptionRegistry.pathOptions(path)));
+		assertTrue(WebsocketSink.conflicts(bound, NettyWebSocketSubscriptionRegistry.pathOptions(path)).isEmpty());
+
+		NettyWebSocketSubscriptionRegistry.unbind(group);
+		assertNull(NettyWebSocketSubscriptionRegistry.pathOptions(path));
+	}
+
+	@Test
+	public void testMessagesToForeignGroupAreHandedToPathHandler() {
+		String path = "/registry-handler";
+		ChannelGroup group = NettyWebSocketSubscriptionRegistry.bind(path);
+		final List<Message<?>> handled = new ArrayList<Message<?>>();
+		NettyWebSocketSubscriptionRegistry.setPathHandler(path, new MessageHandler() {
+			public void handleMessage(Message<?> message) {
+				handled.add(message);
+			}
+		});
+		EmbeddedChannel channel = new EmbeddedChannel();
+		group.add(channel);
+
+		Message<String> message = new GenericMessage<String>("foo");
+		new NettyWebSocketOutboundMessageHandler(group).handleMessage(message);
+		assertEquals(Collections.singletonList(message), handled);
+		assertNull(channel.readOutbound());
+
+		NettyWebSocketSubscriptionRegistry.unbind(group);
+		assertNull(NettyWebSocketSubscriptionRegistry.pathHandler(path));
+	}
+
+	@Test
+	public void testIterationDuringChurn() throws Exception {
+		final String path = "/registry-churn";
+		final ChannelGroup group = NettyWebSocketSubscriptionRegistry.bind(path);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		Thread churn = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 5000; i++) {
+						EmbeddedChannel channel = new EmbeddedChannel();
+						NettyWebSocketSubscriptionRegistry.subscribe(path, channel);
+						if (i % 2 == 0) {
+							channel.close();
+						}
+					}
+				} catch (Throwable t) {
+					error.set(t);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		churn.start();
+		while (!done.await(0, TimeUnit.MILLISECONDS)) {
+			for (Channel channel : group) {
+				channel.isOpen();
+			}
+		}
+		assertNull(error.get());
+		assertEquals(2500, NettyWebSocketSubscriptionRegistry.subscriberCount(path));
+	}
+}
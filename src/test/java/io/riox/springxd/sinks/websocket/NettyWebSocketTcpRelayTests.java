@@ -0,0 +1,154 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.integration.test.util.SocketUtils;
+
+/**
+ * Tests for relaying messages between sink instances over loopback TCP.
+ */
+public class NettyWebSocketTcpRelayTests {
+
+	@Test
+	public void testDeduplicationWindow() {
+		NettyWebSocketTcpRelay.DeduplicationWindow window = new NettyWebSocketTcpRelay.DeduplicationWindow();
+		assertTrue(window.accept(1));
+		assertTrue(window.accept(3));
+		assertFalse(window.accept(1));
+		assertTrue(window.accept(2));
+		assertFalse(window.accept(3));
+		assertTrue(window.accept(100));
+		assertFalse(window.accept(36));
+		assertTrue(window.accept(37));
+		assertFalse(window.accept(37));
+	}
+
+	@Test
+	public void testRelaysOnceToOtherInstances() throws Exception {
+		int port1 = SocketUtils.findAvailableServerSocket();
+		int port2 = SocketUtils.findAvailableServerSocket(port1 + 1);
+		InetSocketAddress address1 = new InetSocketAddress("localhost", port1);
+		InetSocketAddress address2 = new InetSocketAddress("localhost", port2);
+		// the first instance knows the second one twice, so the second receives every batch twice
+		NettyWebSocketTcpRelay relay1 = new NettyWebSocketTcpRelay(port1,
+				Arrays.asList(address1, address2, address2), 1024, 1, TimeUnit.MILLISECONDS);
+		NettyWebSocketTcpRelay relay2 = new NettyWebSocketTcpRelay(port2,
+				Arrays.asList(address1, address2), 1024, 1, TimeUnit.MILLISECONDS);
+		Collector received1 = new Collector();
+		Collector received2 = new Collector();
+		relay1.start(received1);
+		relay2.start(received2);
+		try {
+			awaitPeers(relay1, 3);
+			awaitPeers(relay2, 2);
+			for (int i = 0; i < 100; i++) {
+				WebSocketFrame frame = new TextWebSocketFrame("message " + i);
+				relay1.publish("/relay", frame, Collections.singletonMap("symbol", i % 2 == 0 ? "EUR" : "USD"));
+				frame.release();
+			}
+			for (int i = 0; i < 100; i++) {
+				Relayed relayed = received2.queue.poll(5, TimeUnit.SECONDS);
+				assertEquals("/relay", relayed.path);
+				assertEquals("message " + i, relayed.text);
+				assertEquals(i % 2 == 0 ? "EUR" : "USD", relayed.headers.get("symbol"));
+			}
+			Thread.sleep(100);
+			assertTrue(received1.queue.isEmpty());
+			assertTrue(received2.queue.isEmpty());
+			assertEquals(100, relay2.getRelayedMessages());
+			assertEquals(100, relay2.getDuplicateMessages());
+			assertTrue(relay1.getBatchesSent() < 3 * 100);
+		} finally {
+			relay1.stop();
+			relay2.stop();
+		}
+	}
+
+	@Test
+	public void testStringsLongerThanShortLength() {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 70000; i++) {
+			value.append((char) ('a' + i % 26));
+		}
+		ByteBuf buf = Unpooled.buffer();
+		NettyWebSocketTcpRelay.writeString(buf, value.toString());
+		assertEquals(value.toString(), NettyWebSocketTcpRelay.readString(buf));
+		assertFalse(buf.isReadable());
+		buf.release();
+	}
+
+	@Test
+	public void testRelayPortIsNotShared() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		List<InetSocketAddress> peers = Collections.emptyList();
+		NettyWebSocketTcpRelay relay1 = new NettyWebSocketTcpRelay(port, peers, 1024, 1, TimeUnit.MILLISECONDS);
+		NettyWebSocketTcpRelay relay2 = new NettyWebSocketTcpRelay(port, peers, 1024, 1, TimeUnit.MILLISECONDS);
+		relay1.start(new Collector());
+		try {
+			relay2.start(new Collector());
+			fail("relay port is in use");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			relay2.stop();
+			relay1.stop();
+		}
+		// the port can be used again once its relay stopped
+		relay2.start(new Collector());
+		relay2.stop();
+	}
+
+	static void awaitPeers(NettyWebSocketTcpRelay relay, int peers) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (relay.getConnectedPeers() < peers && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(peers, relay.getConnectedPeers());
+	}
+
+	static class Relayed {
+
+		final String path;
+
+		final String text;
+
+		final Map<String,String> headers;
+
+		Relayed(String path, String text, Map<String,String> headers) {
+			this.path = path;
+			this.text = text;
+			this.headers = headers;
+		}
+	}
+
+	static class Collector implements NettyWebSocketRelay.Listener {
+
+		final BlockingQueue<Relayed> queue = new LinkedBlockingQueue<Relayed>();
+
+		public void relayed(String path, WebSocketFrame frame, Map<String,String> headers) {
+			try {
+				queue.add(new Relayed(path, frame.content().toString(CharsetUtil.UTF_8), headers));
+			} finally {
+				frame.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Tests for {@link NettyWebSocketTracer}.
+ */
+public class NettyWebSocketTracerTests {
+
+	@Test
+	public void testSampling() {
+		NettyWebSocketTracer tracer = new NettyWebSocketTracer(0.5);
+		Message<String> message = new GenericMessage<String>("foo");
+		Message<?> first = tracer.ingressInterceptor().preSend(message, null);
+		Message<?> second = tracer.ingressInterceptor().preSend(message, null);
+		assertTrue(first.getHeaders().containsKey(NettyWebSocketTracer.INGRESS_HEADER));
+		assertNull(second.getHeaders().get(NettyWebSocketTracer.INGRESS_HEADER));
+	}
+
+	@Test
+	public void testStagesAreRecorded() {
+		NettyWebSocketTracer tracer = new NettyWebSocketTracer(1);
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/traced", SlowConsumerPolicy.DROP_OLDEST, 10);
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		group.add(first);
+		group.add(second);
+
+		NettyWebSocketOutboundMessageHandler handler = new NettyWebSocketOutboundMessageHandler(group);
+		handler.setTracer(tracer);
+		handler.handleMessage(tracer.ingressInterceptor().preSend(new GenericMessage<String>("foo"), null));
+
+		assertEquals(1, tracer.stage("dispatch").getCount());
+		assertEquals(1, tracer.stage("encode").getCount());
+		assertEquals(2, tracer.stage("write").getCount());
+		assertEquals(2, tracer.stage("total").getCount());
+		for (EmbeddedChannel channel : new EmbeddedChannel[] { first, second }) {
+			TextWebSocketFrame frame = (TextWebSocketFrame) channel.readOutbound();
+			assertEquals("foo", frame.text());
+			frame.release();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PerMessageDeflate} and {@link PerMessageDeflateDecoder}.
+ */
+public class PerMessageDeflateTests {
+
+	static final String PAYLOAD = "{\"device\":\"sensor-1\",\"value\":42,\"unit\":\"celsius\"}"
+			+ "{\"device\":\"sensor-2\",\"value\":43,\"unit\":\"celsius\"}"
+			+ "{\"device\":\"sensor-3\",\"value\":44,\"unit\":\"celsius\"}";
+
+	@Test
+	public void testNegotiate() {
+		assertNull(PerMessageDeflate.negotiate(null));
+		assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame"));
+		assertEquals("permessage-deflate; server_no_context_takeover",
+				PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits"));
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+				PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover"));
+		// a smaller server window cannot be honoured, the second offer can
+		assertEquals("permessage-deflate; server_no_context_takeover",
+				PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate"));
+	}
+
+	@Test
+	public void testCompressedBroadcastRoundTrip() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/deflate", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setCompression(true, 6, 16);
+		EmbeddedChannel compressing = new EmbeddedChannel();
+		compressing.pipeline().addLast(PerMessageDeflate.DECODER_NAME, new PerMessageDeflateDecoder());
+		EmbeddedChannel plain = new EmbeddedChannel();
+		group.add(compressing);
+		group.add(plain);
+
+		NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster();
+		broadcaster.broadcast(broadcaster.encode(PAYLOAD), group);
+
+		TextWebSocketFrame uncompressed = (TextWebSocketFrame) plain.readOutbound();
+		assertEquals(0, uncompressed.rsv());
+		assertEquals(PAYLOAD, uncompressed.text());
+		uncompressed.release();
+
+		TextWebSocketFrame compressed = (TextWebSocketFrame) compressing.readOutbound();
+		assertEquals(PerMessageDeflate.RSV1, compressed.rsv());
+		assertTrue(compressed.content().readableBytes() < PAYLOAD.length());
+
+		// feed the compressed frame to the decoder, as a client echoing it would
+		EmbeddedChannel client = new EmbeddedChannel(new PerMessageDeflateDecoder());
+		client.writeInbound(compressed);
+		TextWebSocketFrame inflated = (TextWebSocketFrame) client.readInbound();
+		assertEquals(0, inflated.rsv());
+		assertEquals(PAYLOAD, inflated.text());
+		inflated.release();
+	}
+
+	@Test
+	public void testSmallMessagesAreNotCompressed() {
+		NettyWebSocketPathGroup group = new NettyWebSocketPathGroup("/deflate-small", SlowConsumerPolicy.DROP_OLDEST, 10);
+		group.setCompression(true, 6, 1024);
+		EmbeddedChannel compressing = new EmbeddedChannel();
+		compressing.pipeline().addLast(PerMessageDeflate.DECODER_NAME, new PerMessageDeflateDecoder());
+		group.add(compressing);
+
+		NettyWebSocketBroadcaster broadcaster = new NettyWebSocketBroadcaster();
+		broadcaster.broadcast(broadcaster.encode(PAYLOAD), group);
+
+		TextWebSocketFrame frame = (TextWebSocketFrame) compressing.readOutbound();
+		assertEquals(0, frame.rsv());
+		assertEquals(PAYLOAD, frame.text());
+		frame.release();
+	}
+}
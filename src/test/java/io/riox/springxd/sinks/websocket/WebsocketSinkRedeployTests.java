@@ -0,0 +1,196 @@
+package io.riox.springxd.sinks.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.integration.test.util.SocketUtils;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * Deploys and undeploys a sink over and over, checking that nothing is left behind.
+ */
+public class WebsocketSinkRedeployTests {
+
+	static final String PATH = "/redeploy";
+
+	static final int REDEPLOYS = 20;
+
+	@Test
+	public void testRedeployDoesNotLeak() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		redeploy(port);
+		int threads = settledThreadCount();
+		long heap = usedHeap();
+
+		for (int i = 0; i < REDEPLOYS; i++) {
+			redeploy(port);
+		}
+
+		assertNull(NettyWebSocketSubscriptionRegistry.lookup(PATH));
+		assertFalse(NettyWebSocketServerRuntime.isBound(port));
+		assertEquals(0, NettyWebSocketServerRuntime.references(port));
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(NettyWebSocketJmx.pathName(PATH)));
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(NettyWebSocketJmx.serverName(port)));
+		// event loops of the last deployment may take a moment to terminate
+		assertTrue(awaitThreads(threads + 2) <= threads + 2);
+		assertTrue(usedHeap() < heap + 32 * 1024 * 1024);
+	}
+
+	@Test
+	public void testRedeployWithAdmissionDoesNotLeak() throws Exception {
+		// another server keeps the shared event loops running, where lag probes could be left behind
+		Properties other = properties(SocketUtils.findAvailableServerSocket());
+		other.put("path", PATH + "-other");
+		AnnotationConfigApplicationContext running = deploy(other);
+		int port = SocketUtils.findAvailableServerSocket();
+		Properties props = properties(port);
+		props.put("admissionMaxEventLoopLag", 1000);
+		props.put("admissionMaxPendingBytes", 64 * 1024 * 1024);
+		try {
+			redeploy(props);
+			int threads = settledThreadCount();
+
+			for (int i = 0; i < REDEPLOYS; i++) {
+				redeploy(props);
+			}
+
+			assertFalse(NettyWebSocketServerRuntime.isBound(port));
+			assertTrue(awaitThreads(threads + 2) <= threads + 2);
+		} finally {
+			running.close();
+		}
+		// the samplers of the undeployed sinks were cancelled, so the global executor goes idle
+		assertTrue(GlobalEventExecutor.INSTANCE.awaitInactivity(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSinksSharingPathKeepTheirMBeans() throws Exception {
+		int port = SocketUtils.findAvailableServerSocket();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName dispatchers = NettyWebSocketJmx.name("type=Dispatcher,path=" + ObjectName.quote(PATH) + ",*");
+		AnnotationConfigApplicationContext first = deploy(properties(port));
+		AnnotationConfigApplicationContext second = deploy(properties(port));
+		try {
+			assertEquals(2, server.queryNames(dispatchers, null).size());
+			first.close();
+			assertEquals(1, server.queryNames(dispatchers, null).size());
+		} finally {
+			first.close();
+			second.close();
+		}
+		assertTrue(server.queryNames(dispatchers, null).isEmpty());
+	}
+
+	/**
+	 * Deploys the sink, sends a message to a subscriber and undeploys the sink, which has to close
+	 * the subscriber with a going away close frame.
+	 */
+	static void redeploy(int port) throws Exception {
+		redeploy(properties(port));
+	}
+
+	static void redeploy(Properties props) throws Exception {
+		int port = (Integer) props.get("port");
+		AnnotationConfigApplicationContext context = deploy(props);
+
+		final CountDownLatch received = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final AtomicInteger closeCode = new AtomicInteger();
+		WebSocketClient client = new WebSocketClient(new URI("ws://localhost:" + port + PATH)) {
+			public void onMessage(String msg) {
+				received.countDown();
+			}
+			public void onOpen(ServerHandshake handshake) {}
+			public void onClose(int code, String reason, boolean remote) {
+				closeCode.set(code);
+				closed.countDown();
+			}
+			public void onError(Exception e) {}
+		};
+		try {
+			assertTrue(client.connectBlocking());
+			context.getBean("input", MessageChannel.class).send(new GenericMessage<String>("foo"));
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+		} finally {
+			context.close();
+		}
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertEquals(1001, closeCode.get());
+	}
+
+	static Properties properties(int port) {
+		Properties props = new Properties();
+		props.put("port", port);
+		props.put("path", PATH);
+		props.put("ssl", false);
+		return props;
+	}
+
+	static AnnotationConfigApplicationContext deploy(Properties props) {
+		PropertySourcesPlaceholderConfigurer configurer = new PropertySourcesPlaceholderConfigurer();
+		configurer.setProperties(props);
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.addBeanFactoryPostProcessor(configurer);
+		context.register(WebsocketSink.class);
+		context.refresh();
+		return context;
+	}
+
+	/**
+	 * Waits up to 10 seconds for the threads of a previous deployment to terminate.
+	 *
+	 * @return the number of live threads once it did not change for half a second
+	 */
+	static int settledThreadCount() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		int previous = -1;
+		while (threads != previous && System.currentTimeMillis() < deadline) {
+			Thread.sleep(500);
+			previous = threads;
+			threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		}
+		return threads;
+	}
+
+	/**
+	 * Waits up to 10 seconds for the number of live threads to drop to the given maximum.
+	 *
+	 * @return the number of live threads
+	 */
+	static int awaitThreads(int max) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		while (threads > max && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		}
+		return threads;
+	}
+
+	static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}